@@ -0,0 +1,3 @@
+CREATE TABLE IF NOT EXISTS StoredRoutes (Id INTEGER PRIMARY KEY AUTOINCREMENT, shortName VARCHAR NOT NULL ON CONFLICT FAIL UNIQUE ON CONFLICT FAIL, fullName VARCHAR, plot VARCHAR, color INTEGER, stopCodes VARCHAR, hash VARCHAR);
+
+CREATE TABLE IF NOT EXISTS StoredStops (Id INTEGER PRIMARY KEY AUTOINCREMENT, code VARCHAR NOT NULL ON CONFLICT FAIL UNIQUE ON CONFLICT FAIL, name VARCHAR, latitude REAL, longitude REAL, hash VARCHAR);
@@ -47,8 +47,12 @@ import android.widget.ImageButton;
 import android.widget.Toast;
 
 import com.android.vending.billing.IInAppBillingService;
-import com.bt4vt.external.bt4u.Bus;
+import com.bt4vt.async.AdaptiveRefreshScheduler;
 import com.bt4vt.external.bt4u.BusService;
+import com.bt4vt.external.bt4u.DepartureService;
+import com.bt4vt.external.bt4u.Fleet;
+import com.bt4vt.external.bt4u.RequestService;
+import com.bt4vt.external.bt4u.RequestToken;
 import com.bt4vt.external.bt4u.Response;
 import com.bt4vt.external.bt4u.Route;
 import com.bt4vt.external.bt4u.RouteService;
@@ -73,8 +77,6 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import roboguice.activity.RoboFragmentActivity;
 import roboguice.inject.ContentView;
@@ -89,11 +91,12 @@ import uk.co.deanwild.materialshowcaseview.MaterialShowcaseView;
 @ContentView(R.layout.activity_main)
 public class MainActivity extends RoboFragmentActivity implements
     RetainedMapFragment.TalkToActivity, NavigationDrawerFragment.TalkToActivity,
-    View.OnClickListener {
+    ScheduledDeparturesDialogFragment.TalkToActivity, View.OnClickListener {
 
   private static final String TAG = "MainActivity";
 
   private static final String DEPARTURES_DIALOG_TAG = "scheduled_departures_dialog_tag";
+  private static final String MAP_REQUESTS = "map";
 
   public static final String EXTRA_STOP_CODE = "com.bt4vt.extra.stop";
   private static final String FIRST_TIME_OPEN_KEY = "first_time_open_app";
@@ -107,9 +110,15 @@ public class MainActivity extends RoboFragmentActivity implements
   @Inject
   private ConnectivityManager connectivityManager;
 
+  @Inject
+  private RequestService requestService;
+
   @Inject
   private BusService busService;
 
+  @Inject
+  private DepartureService departureService;
+
   @Inject
   private RouteService routeService;
 
@@ -142,7 +151,9 @@ public class MainActivity extends RoboFragmentActivity implements
 
   private Route currentRoute;
 
-  private Timer busRefreshTimer;
+  private RequestToken mapRequestToken;
+
+  private AdaptiveRefreshScheduler busRefreshScheduler;
 
   private IInAppBillingService billingService;
 
@@ -164,6 +175,9 @@ public class MainActivity extends RoboFragmentActivity implements
       mapFragment = (RetainedMapFragment) getSupportFragmentManager().findFragmentById(R.id.map);
     }
 
+    busRefreshScheduler = new AdaptiveRefreshScheduler(
+        getResources().getInteger(R.integer.bus_refresh_rate_ms));
+
     initData();
 
     busStopGeofenceService = new BusStopGeofenceService(this);
@@ -179,12 +193,23 @@ public class MainActivity extends RoboFragmentActivity implements
     }
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (mapFragment != null) {
+      mapFragment.onTrimMemory(level);
+    }
+  }
+
   @Override
   protected void onPause() {
     super.onPause();
-    if (busRefreshTimer != null) {
-      busRefreshTimer.cancel();
-    }
+    busRefreshScheduler.stop();
+    Log.d(TAG, String.format("Refreshed buses %d times, saving %d refreshes",
+        busRefreshScheduler.getRefreshCount(), busRefreshScheduler.getSavedRefreshCount()));
+    Log.d(TAG, String.format("Served %.0f%% of departures from cache, %d of them stale, "
+        + "and estimated %d without BT4U", departureService.getCacheHitRate() * 100,
+        departureService.getStaleCacheHitCount(), departureService.getEstimatedCount()));
   }
 
   @Override
@@ -214,6 +239,9 @@ public class MainActivity extends RoboFragmentActivity implements
       }
     }
 
+    if (getSupportFragmentManager().findFragmentByTag(DEPARTURES_DIALOG_TAG) != null) {
+      busRefreshScheduler.pause();
+    }
     if (currentRoute != null) {
       startBusRefreshTask(currentRoute);
     }
@@ -244,8 +272,13 @@ public class MainActivity extends RoboFragmentActivity implements
     mainLoadingView.setVisibility(View.VISIBLE);
     refreshRouteButton.setVisibility(View.VISIBLE);
     currentRoute = route;
+    mapRequestToken = requestService.newToken(MAP_REQUESTS);
+    if (!ignoreCache && mapFragment.showCachedRoute(route.getShortName())) {
+      startBusRefreshTask(route);
+      return;
+    }
     mapFragment.clearMap();
-    routeService.get(route.getShortName(), ignoreCache, new Response.Listener<Route>() {
+    routeService.get(route.getShortName(), ignoreCache, mapRequestToken, new Response.Listener<Route>() {
       @Override
       public void onResult(Route route) {
         List<Stop> stops = route.getStops();
@@ -258,8 +291,7 @@ public class MainActivity extends RoboFragmentActivity implements
           hideLoadingIcon();
           return;
         }
-        mapFragment.showRoutePlot(route.getPlot(), route.getColor());
-        mapFragment.showStops(route.getStops());
+        mapFragment.showRoute(route);
       }
     }, new ExceptionHandler(getString(R.string.stops_error), mapFragment.getView(), Snackbar.LENGTH_LONG));
     startBusRefreshTask(route);
@@ -269,8 +301,10 @@ public class MainActivity extends RoboFragmentActivity implements
   public void showAllStops() {
     mainLoadingView.setVisibility(View.VISIBLE);
     currentRoute = null;
+    busRefreshScheduler.stop();
+    mapRequestToken = requestService.newToken(MAP_REQUESTS);
     mapFragment.clearMap();
-    stopService.getAll(new Response.Listener<List<Stop>>() {
+    stopService.getAll(mapRequestToken, new Response.Listener<List<Stop>>() {
       @Override
       public void onResult(List<Stop> stops) {
         mapFragment.showStops(stops);
@@ -536,7 +570,8 @@ public class MainActivity extends RoboFragmentActivity implements
     if (!isNetworkAvailable()) {
       View view = mapFragment.getView();
       if (view != null) {
-        Snackbar.make(view, R.string.no_network_message, Snackbar.LENGTH_INDEFINITE)
+        // Stored routes and stops are still usable, so don't cover the map for good
+        Snackbar.make(view, R.string.no_network_message, Snackbar.LENGTH_LONG)
             .setAction(R.string.retry, this)
             .show();
       }
@@ -601,23 +636,26 @@ public class MainActivity extends RoboFragmentActivity implements
   }
 
   private void startBusRefreshTask(final Route route) {
-    if (busRefreshTimer != null) {
-      busRefreshTimer.cancel();
-    }
-    busRefreshTimer = new Timer();
-    busRefreshTimer.scheduleAtFixedRate(new TimerTask() {
+    busRefreshScheduler.start(new AdaptiveRefreshScheduler.Task() {
       @Override
-      public void run() {
+      public void refresh(final AdaptiveRefreshScheduler.Poll poll) {
         Log.d(TAG, "Refreshing buses for route " + route.getShortName());
-        busService.get(route.getShortName(), new Response.Listener<List<Bus>>() {
-          @Override
-          public void onResult(List<Bus> buses) {
-            mapFragment.showBuses(buses);
-          }
-        }, new ExceptionHandler(getString(R.string.bus_error), mapFragment.getView(),
-            Snackbar.LENGTH_SHORT));
+        busService.get(route.getShortName(), mapRequestToken, mapFragment.getFleet(),
+            new Response.Listener<Fleet>() {
+              @Override
+              public void onResult(Fleet fleet) {
+                poll.done(mapFragment.showBuses() > 0);
+              }
+            }, new ExceptionHandler(getString(R.string.bus_error), mapFragment.getView(),
+                Snackbar.LENGTH_SHORT) {
+              @Override
+              public void onException(Exception e) {
+                super.onException(e);
+                poll.failed();
+              }
+            });
       }
-    }, 0, getResources().getInteger(R.integer.bus_refresh_rate_ms));
+    });
   }
 
   private void setShortcuts() {
@@ -670,24 +708,27 @@ public class MainActivity extends RoboFragmentActivity implements
     }
   }
 
+  /**
+   * Loads the routes and any stop we were launched for. This doesn't wait on the network, stored
+   * routes and stops are shown while offline.
+   */
   private void initData() {
-    if (isNetworkAvailable()) {
-      Intent intent = getIntent();
-      String stopCode = intent.getStringExtra(EXTRA_STOP_CODE);
-      if (stopCode != null) {
-        Log.i(TAG, String.format("Stop code: %s", stopCode));
-        mainLoadingView.setVisibility(View.VISIBLE);
-        stopService.get(stopCode, new Response.Listener<Stop>() {
-          @Override
-          public void onResult(Stop result) {
-            Log.d(TAG, result.toString());
-            mapFragment.showStops(Collections.singletonList(result));
-          }
-        }, new ExceptionHandler(getString(R.string.stop_error), mapFragment.getView(),
-            Snackbar.LENGTH_LONG));
-      }
-      fetchRoutes(false);
+    Intent intent = getIntent();
+    String stopCode = intent.getStringExtra(EXTRA_STOP_CODE);
+    if (stopCode != null) {
+      Log.i(TAG, String.format("Stop code: %s", stopCode));
+      mainLoadingView.setVisibility(View.VISIBLE);
+      mapRequestToken = requestService.newToken(MAP_REQUESTS);
+      stopService.get(stopCode, mapRequestToken, new Response.Listener<Stop>() {
+        @Override
+        public void onResult(Stop result) {
+          Log.d(TAG, result.toString());
+          mapFragment.showStops(Collections.singletonList(result));
+        }
+      }, new ExceptionHandler(getString(R.string.stop_error), mapFragment.getView(),
+          Snackbar.LENGTH_LONG));
     }
+    fetchRoutes(false);
   }
 
   @Override
@@ -717,10 +758,17 @@ public class MainActivity extends RoboFragmentActivity implements
 
   @Override
   public void showDeparturesDialog(Stop stop, Route route) {
+    // The map is covered so there is no point in moving buses around
+    busRefreshScheduler.pause();
     ScheduledDeparturesDialogFragment.newInstance(stop, route, busStopGeofenceService)
         .show(getSupportFragmentManager(), DEPARTURES_DIALOG_TAG);
   }
 
+  @Override
+  public void onDeparturesDialogDismissed() {
+    busRefreshScheduler.resume();
+  }
+
   @Override
   public Route getCurrentRoute() {
     return currentRoute;
@@ -29,11 +29,17 @@ import java.util.List;
 
 /**
  * Adapter for {@link Departure} lists.
+ * <p/>
+ * Each departure time is shown with the minutes left until it, worked out again every time the
+ * list is redrawn, so calling {@link #notifyDataSetChanged()} once a minute keeps the countdowns
+ * current without fetching the departures again.
  *
  * @author Ben Sechrist
  */
 public class DepartureArrayAdapter extends ArrayAdapter<Departure> {
 
+  private final StringBuilder departureLines = new StringBuilder();
+
   public DepartureArrayAdapter(Context context, List<Departure> departures) {
     super(context, R.layout.departure_entry, departures);
   }
@@ -51,11 +57,21 @@ public class DepartureArrayAdapter extends ArrayAdapter<Departure> {
 
     assert departure != null;
     routeText.setText(departure.getRouteName());
-    String departureString = "";
-    for (String departureStringText : departure.getDepartures()) {
-      departureString += departureStringText + '\n';
+    long now = System.currentTimeMillis();
+    departureLines.setLength(0);
+    for (int i = 0; i < departure.size(); i++) {
+      if (i > 0) {
+        departureLines.append('\n');
+      }
+      int minutes = departure.getMinutesUntil(i, now);
+      if (minutes > 0) {
+        departureLines.append(getContext().getString(R.string.departure_countdown_format,
+            departure.getLabel(i), minutes));
+      } else {
+        departureLines.append(departure.getLabel(i));
+      }
     }
-    departureText.setText(departureString);
+    departureText.setText(departureLines.toString());
 
     return convertView;
   }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.async;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * Repeatedly runs a refresh {@link Task}, adapting the delay between refreshes instead of polling
+ * at a fixed rate.
+ * <p/>
+ * The next refresh is only scheduled once the current one reports back through its {@link Poll},
+ * so refreshes never overlap. Failures back off exponentially, refreshes that changed nothing
+ * slow the cadence down, and {@link #pause()} holds refreshes while their result isn't visible.
+ * Every delay gets a little jitter so clients don't poll in lockstep.
+ * <p/>
+ * All methods, and the {@link Clock} callbacks, are expected to run on a single thread.
+ *
+ * @author Ben Sechrist
+ */
+public class AdaptiveRefreshScheduler {
+
+  /**
+   * Longest delay between two refreshes.
+   */
+  static final long MAX_INTERVAL_MS = 60000;
+
+  /**
+   * Consecutive failures double the interval up to this many times.
+   */
+  static final int MAX_BACKOFF_SHIFT = 4;
+
+  /**
+   * Consecutive refreshes without changes double the interval up to this many times.
+   */
+  static final int MAX_IDLE_SHIFT = 2;
+
+  /**
+   * Delays are randomly stretched or shrunk by up to this fraction.
+   */
+  static final double JITTER = 0.1;
+
+  private final Clock clock;
+
+  private final long intervalMs;
+
+  private final Random random;
+
+  private final Runnable refreshRunnable = new Runnable() {
+    @Override
+    public void run() {
+      refresh();
+    }
+  };
+
+  private Task task;
+
+  private boolean running = false;
+
+  private boolean paused = false;
+
+  private Poll currentPoll;
+
+  private int failures = 0;
+
+  private int idleRefreshes = 0;
+
+  private long nextRefreshAt;
+
+  private long startedAt;
+
+  private int refreshesSinceStart = 0;
+
+  private int refreshCount = 0;
+
+  private int savedRefreshCount = 0;
+
+  public AdaptiveRefreshScheduler(long intervalMs) {
+    this(new MainThreadClock(), intervalMs, new Random());
+  }
+
+  public AdaptiveRefreshScheduler(Clock clock, long intervalMs, Random random) {
+    this.clock = clock;
+    this.intervalMs = intervalMs;
+    this.random = random;
+  }
+
+  /**
+   * Starts refreshing with <code>task</code> right away, replacing any task already running.
+   * Results still to come from the previous task are ignored.
+   *
+   * @param task the task to run
+   */
+  public void start(Task task) {
+    stop();
+    this.task = task;
+    running = true;
+    failures = 0;
+    idleRefreshes = 0;
+    startedAt = clock.uptimeMillis();
+    refreshesSinceStart = 0;
+    schedule(0);
+  }
+
+  /**
+   * Stops refreshing. Pausing is left as is so it carries over to the next task.
+   */
+  public void stop() {
+    if (!running) {
+      return;
+    }
+    savedRefreshCount += savedSinceStart();
+    running = false;
+    currentPoll = null;
+    task = null;
+    clock.removeCallbacks(refreshRunnable);
+  }
+
+  /**
+   * Holds refreshes until {@link #resume()} is called. A refresh already in flight still reports
+   * back, but the next one waits.
+   */
+  public void pause() {
+    paused = true;
+    clock.removeCallbacks(refreshRunnable);
+  }
+
+  /**
+   * Allows refreshes again, running right away if one came due while paused.
+   */
+  public void resume() {
+    if (!paused) {
+      return;
+    }
+    paused = false;
+    if (running && currentPoll == null) {
+      clock.postDelayed(refreshRunnable, Math.max(0, nextRefreshAt - clock.uptimeMillis()));
+    }
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * Returns how many refreshes have been run.
+   *
+   * @return the number of refreshes
+   */
+  public int getRefreshCount() {
+    return refreshCount;
+  }
+
+  /**
+   * Returns how many fewer refreshes were run than polling every interval would have, over the
+   * time the scheduler has been running.
+   *
+   * @return the number of refreshes saved
+   */
+  public int getSavedRefreshCount() {
+    return savedRefreshCount + (running ? savedSinceStart() : 0);
+  }
+
+  private int savedSinceStart() {
+    // A fixed rate schedule refreshes at start and then once every interval
+    long fixedRefreshes = (clock.uptimeMillis() - startedAt) / intervalMs + 1;
+    return (int) (fixedRefreshes - refreshesSinceStart);
+  }
+
+  private void refresh() {
+    if (!running || paused || currentPoll != null) {
+      return;
+    }
+    refreshCount++;
+    refreshesSinceStart++;
+    currentPoll = new Poll();
+    task.refresh(currentPoll);
+  }
+
+  private void onPollDone(Poll poll, boolean changed) {
+    // Polls from a stopped task, or reported twice, are ignored
+    if (poll != currentPoll) {
+      return;
+    }
+    failures = 0;
+    idleRefreshes = changed ? 0 : idleRefreshes + 1;
+    schedule(jitter(interval(Math.min(idleRefreshes, MAX_IDLE_SHIFT))));
+  }
+
+  private void onPollFailed(Poll poll) {
+    if (poll != currentPoll) {
+      return;
+    }
+    failures++;
+    schedule(jitter(interval(Math.min(failures, MAX_BACKOFF_SHIFT))));
+  }
+
+  private long interval(int shift) {
+    return Math.min(intervalMs << shift, Math.max(intervalMs, MAX_INTERVAL_MS));
+  }
+
+  private long jitter(long delay) {
+    return Math.round(delay * (1 + JITTER * (2 * random.nextDouble() - 1)));
+  }
+
+  private void schedule(long delay) {
+    currentPoll = null;
+    nextRefreshAt = clock.uptimeMillis() + delay;
+    if (!paused) {
+      clock.postDelayed(refreshRunnable, delay);
+    }
+  }
+
+  /**
+   * The work run on every refresh.
+   */
+  public interface Task {
+
+    /**
+     * Starts a refresh. Once it completes, exactly one of {@link Poll#done(boolean)} or
+     * {@link Poll#failed()} must be called on the scheduler's thread.
+     *
+     * @param poll used to report the outcome
+     */
+    void refresh(Poll poll);
+  }
+
+  /**
+   * Reports the outcome of a single refresh back to the scheduler.
+   */
+  public final class Poll {
+
+    private Poll() {
+    }
+
+    /**
+     * The refresh succeeded.
+     *
+     * @param changed whether anything changed since the previous refresh
+     */
+    public void done(boolean changed) {
+      onPollDone(this, changed);
+    }
+
+    /**
+     * The refresh failed.
+     */
+    public void failed() {
+      onPollFailed(this);
+    }
+  }
+
+  /**
+   * Source of time and delayed execution for the scheduler.
+   */
+  public interface Clock {
+
+    long uptimeMillis();
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    void removeCallbacks(Runnable runnable);
+  }
+
+  /**
+   * {@link Clock} running on the main thread.
+   */
+  public static class MainThreadClock implements Clock {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public long uptimeMillis() {
+      return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+      handler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      handler.removeCallbacks(runnable);
+    }
+  }
+}
@@ -18,20 +18,43 @@ package com.bt4vt.external.bt4u;
 
 import com.google.android.gms.maps.model.LatLng;
 
-import java.util.Date;
-
 /**
  * BT4U bus information.
+ * <p/>
+ * Buses kept in a {@link Fleet} are updated in place on every poll. Each setter records whether
+ * it changed anything in {@link #getChanges()}, which the fleet resets before the next poll.
  *
  * @author Ben Sechrist
  */
 public class Bus {
 
+  /**
+   * The bus was not in the previous poll.
+   */
+  public static final int ADDED = 1;
+
+  /**
+   * The position or direction changed.
+   */
+  public static final int MOVED = 1 << 1;
+
+  /**
+   * The route changed.
+   */
+  public static final int ROUTE_CHANGED = 1 << 2;
+
+  /**
+   * Passengers, last stop, tripper status or timestamp changed.
+   */
+  public static final int DETAILS_CHANGED = 1 << 3;
+
   private String id;
 
   private Route route;
 
-  private LatLng latLng;
+  private double latitude;
+
+  private double longitude;
 
   private int direction;
 
@@ -43,7 +66,9 @@ public class Bus {
 
   private String lastStopName;
 
-  private Date timestamp;
+  private long timestamp;
+
+  private int changes;
 
   public Bus(String busId) {
     this.id = busId;
@@ -62,15 +87,33 @@ public class Bus {
   }
 
   public void setRoute(Route route) {
-    this.route = route;
+    if (route != this.route) {
+      this.route = route;
+      changes |= ROUTE_CHANGED;
+    }
   }
 
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  /**
+   * Returns a new {@link LatLng} of the bus position.
+   */
   public LatLng getLatLng() {
-    return latLng;
+    return new LatLng(latitude, longitude);
   }
 
-  public void setLatLng(LatLng latLng) {
-    this.latLng = latLng;
+  public void setPosition(double latitude, double longitude) {
+    if (latitude != this.latitude || longitude != this.longitude) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      changes |= MOVED;
+    }
   }
 
   public int getDirection() {
@@ -78,7 +121,10 @@ public class Bus {
   }
 
   public void setDirection(int direction) {
-    this.direction = direction;
+    if (direction != this.direction) {
+      this.direction = direction;
+      changes |= MOVED;
+    }
   }
 
   public boolean isTripper() {
@@ -86,7 +132,10 @@ public class Bus {
   }
 
   public void setTripper(boolean tripper) {
-    isTripper = tripper;
+    if (tripper != isTripper) {
+      isTripper = tripper;
+      changes |= DETAILS_CHANGED;
+    }
   }
 
   public int getPassengers() {
@@ -94,7 +143,10 @@ public class Bus {
   }
 
   public void setPassengers(int passengers) {
-    this.passengers = passengers;
+    if (passengers != this.passengers) {
+      this.passengers = passengers;
+      changes |= DETAILS_CHANGED;
+    }
   }
 
   public String getLastStopCode() {
@@ -102,7 +154,11 @@ public class Bus {
   }
 
   public void setLastStopCode(String lastStopCode) {
-    this.lastStopCode = lastStopCode;
+    if (lastStopCode == null ? this.lastStopCode != null
+        : !lastStopCode.equals(this.lastStopCode)) {
+      this.lastStopCode = lastStopCode;
+      changes |= DETAILS_CHANGED;
+    }
   }
 
   public String getLastStopName() {
@@ -110,15 +166,37 @@ public class Bus {
   }
 
   public void setLastStopName(String lastStopName) {
-    this.lastStopName = lastStopName;
+    if (lastStopName == null ? this.lastStopName != null
+        : !lastStopName.equals(this.lastStopName)) {
+      this.lastStopName = lastStopName;
+      changes |= DETAILS_CHANGED;
+    }
   }
 
-  public Date getTimestamp() {
+  /**
+   * Returns when the bus reported its position, in milliseconds since the epoch.
+   */
+  public long getTimestamp() {
     return timestamp;
   }
 
-  public void setTimestamp(Date timestamp) {
-    this.timestamp = timestamp;
+  public void setTimestamp(long timestamp) {
+    if (timestamp != this.timestamp) {
+      this.timestamp = timestamp;
+      changes |= DETAILS_CHANGED;
+    }
+  }
+
+  /**
+   * Returns what changed since the changes were last reset, a combination of {@link #ADDED},
+   * {@link #MOVED}, {@link #ROUTE_CHANGED} and {@link #DETAILS_CHANGED}.
+   */
+  public int getChanges() {
+    return changes;
+  }
+
+  void resetChanges(int changes) {
+    this.changes = changes;
   }
 
   @Override
@@ -16,47 +16,221 @@
 
 package com.bt4vt.external.bt4u;
 
-import com.google.android.gms.maps.model.LatLng;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
 
 /**
  * Creates {@link Bus} objects.
+ * <p/>
+ * Polls are read in two steps. {@link #parse(byte[], String)} reads the whole response body into
+ * a {@link BusPoll} on Volley's network thread, so a malformed body is rejected before any bus is
+ * touched. {@link #update(Fleet, BusPoll)} then applies it to a {@link Fleet} in place on the main
+ * thread, comparing strings with what each bus already has, and only allocates for what actually
+ * changed: a new bus id, a new last stop or a route the bus was not on before. Polls are reused
+ * once applied, so neither step allocates in steady state.
+ * <p/>
+ * Bus routes are resolved through the {@link EntityRegistry}, so every bus on a route shares one
+ * {@link Route} across polls rather than getting its own.
  *
  * @author Ben Sechrist
  */
 @Singleton
 public class BusFactory {
 
-  public List<Bus> buses(JSONArray jsonBuses) throws JSONException {
-    List<Bus> buses = new ArrayList<>();
-    for (int i = 0; i < jsonBuses.length(); i++) {
-      JSONObject jsonBus = jsonBuses.getJSONObject(i);
-      Bus bus = new Bus(jsonBus.getString("id"));
-      JSONObject jsonRoute = jsonBus.getJSONObject("route");
-      Route route = new Route(jsonRoute.getString("shortName"));
-      route.setFullName(jsonRoute.getString("fullName"));
-      bus.setRoute(route);
-      bus.setLatLng(new LatLng(jsonBus.getDouble("latitude"), jsonBus.getDouble("longitude")));
-      bus.setDirection(jsonBus.getInt("direction"));
-      bus.setTripper(jsonBus.getBoolean("isTripper"));
-      bus.setPassengers(jsonBus.getInt("passengers"));
-      if (jsonBus.has("lastStopCode")) {
-        bus.setLastStopCode(jsonBus.getString("lastStopCode"));
+  private static final String UTF_8 = "UTF-8";
+
+  /**
+   * Polls kept for reuse, more are only needed while several requests are in flight.
+   */
+  private static final int MAX_SPARE_POLLS = 4;
+
+  @Inject
+  EntityRegistry entityRegistry;
+
+  private final ArrayList<BusPoll> sparePolls = new ArrayList<>();
+
+  /**
+   * Reads the buses array in <code>json</code>, off the main thread.
+   *
+   * @param json    the response body
+   * @param charset the charset of the body
+   * @return the poll, to be applied with {@link #update(Fleet, BusPoll)} and handed back with
+   * {@link #recycle(BusPoll)}
+   * @throws IOException if the JSON could not be read
+   */
+  BusPoll parse(byte[] json, String charset) throws IOException {
+    if (!UTF_8.equalsIgnoreCase(charset) && !"UTF8".equalsIgnoreCase(charset)) {
+      // The scanner works on UTF-8
+      json = new String(json, charset).getBytes(UTF_8);
+    }
+    BusPoll poll = obtain();
+    poll.reset(json);
+    JsonScanner scanner = new JsonScanner(json);
+    try {
+      scanner.beginArray();
+      while (scanner.hasNext()) {
+        bus(scanner, poll);
       }
-      if (jsonBus.has("lastStopName")) {
-        bus.setLastStopName(jsonBus.getString("lastStopName"));
+      scanner.endArray();
+    } catch (IOException e) {
+      recycle(poll);
+      throw e;
+    }
+    return poll;
+  }
+
+  /**
+   * Updates <code>fleet</code> in place with the buses of <code>poll</code>, on the main thread.
+   *
+   * @param fleet the fleet to update
+   * @param poll  a poll read by {@link #parse(byte[], String)}
+   */
+  void update(Fleet fleet, BusPoll poll) {
+    JsonScanner scanner = new JsonScanner(poll.getData());
+    fleet.begin();
+    for (int i = 0; i < poll.size(); i++) {
+      poll.selectString(i, BusPoll.ID, scanner);
+      Bus bus = fleet.take(scanner);
+      route(poll, i, scanner, bus);
+      bus.setPosition(poll.latitudes[i], poll.longitudes[i]);
+      bus.setDirection(poll.directions[i]);
+      bus.setTripper(poll.trippers[i]);
+      bus.setPassengers(poll.passengers[i]);
+      bus.setTimestamp(poll.timestamps[i]);
+      bus.setLastStopCode(string(poll, i, BusPoll.LAST_STOP_CODE, scanner,
+          bus.getLastStopCode()));
+      bus.setLastStopName(string(poll, i, BusPoll.LAST_STOP_NAME, scanner,
+          bus.getLastStopName()));
+    }
+    fleet.end();
+  }
+
+  /**
+   * Hands <code>poll</code> back for reuse, once it has been applied to every fleet it is for.
+   */
+  void recycle(BusPoll poll) {
+    poll.reset(null);
+    synchronized (sparePolls) {
+      if (sparePolls.size() < MAX_SPARE_POLLS) {
+        sparePolls.add(poll);
+      }
+    }
+  }
+
+  private BusPoll obtain() {
+    synchronized (sparePolls) {
+      if (!sparePolls.isEmpty()) {
+        return sparePolls.remove(sparePolls.size() - 1);
       }
-      bus.setTimestamp(new Date(jsonBus.getLong("timestamp")));
-      buses.add(bus);
     }
-    return buses;
+    return new BusPoll();
+  }
+
+  private void bus(JsonScanner scanner, BusPoll poll) throws IOException {
+    int bus = poll.add();
+    boolean hasId = false;
+    boolean hasRoute = false;
+    boolean hasLatitude = false;
+    boolean hasLongitude = false;
+    scanner.beginObject();
+    while (scanner.hasNext()) {
+      scanner.nextName();
+      if (scanner.stringEquals("id")) {
+        scanner.nextString();
+        poll.setString(bus, BusPoll.ID, scanner);
+        hasId = true;
+      } else if (scanner.stringEquals("route")) {
+        route(scanner, poll, bus);
+        hasRoute = true;
+      } else if (scanner.stringEquals("latitude")) {
+        poll.latitudes[bus] = scanner.nextDouble();
+        hasLatitude = true;
+      } else if (scanner.stringEquals("longitude")) {
+        poll.longitudes[bus] = scanner.nextDouble();
+        hasLongitude = true;
+      } else if (scanner.stringEquals("direction")) {
+        poll.directions[bus] = scanner.nextInt();
+      } else if (scanner.stringEquals("isTripper")) {
+        poll.trippers[bus] = scanner.nextBoolean();
+      } else if (scanner.stringEquals("passengers")) {
+        poll.passengers[bus] = scanner.nextInt();
+      } else if (scanner.stringEquals("lastStopCode")) {
+        nextStringOrNull(scanner, poll, bus, BusPoll.LAST_STOP_CODE);
+      } else if (scanner.stringEquals("lastStopName")) {
+        nextStringOrNull(scanner, poll, bus, BusPoll.LAST_STOP_NAME);
+      } else if (scanner.stringEquals("timestamp")) {
+        poll.timestamps[bus] = scanner.nextLong();
+      } else {
+        scanner.skipValue();
+      }
+    }
+    scanner.endObject();
+    JsonUtils.requireField(hasId, "Bus", "id");
+    JsonUtils.requireField(hasRoute, "Bus", "route");
+    JsonUtils.requireField(hasLatitude, "Bus", "latitude");
+    JsonUtils.requireField(hasLongitude, "Bus", "longitude");
+  }
+
+  private static void route(JsonScanner scanner, BusPoll poll, int bus) throws IOException {
+    boolean hasShortName = false;
+    scanner.beginObject();
+    while (scanner.hasNext()) {
+      scanner.nextName();
+      if (scanner.stringEquals("shortName")) {
+        scanner.nextString();
+        poll.setString(bus, BusPoll.ROUTE_SHORT_NAME, scanner);
+        hasShortName = true;
+      } else if (scanner.stringEquals("fullName")) {
+        nextStringOrNull(scanner, poll, bus, BusPoll.ROUTE_FULL_NAME);
+      } else {
+        scanner.skipValue();
+      }
+    }
+    scanner.endObject();
+    JsonUtils.requireField(hasShortName, "Bus route", "shortName");
+  }
+
+  /**
+   * Points <code>bus</code> at the route of bus <code>index</code> in <code>poll</code>, keeping
+   * its current route if it is the same.
+   */
+  private void route(BusPoll poll, int index, JsonScanner scanner, Bus bus) {
+    Route current = bus.getRoute();
+    poll.selectString(index, BusPoll.ROUTE_SHORT_NAME, scanner);
+    String shortName = current != null && scanner.stringEquals(current.getShortName())
+        ? current.getShortName() : scanner.string();
+    String fullName = string(poll, index, BusPoll.ROUTE_FULL_NAME, scanner,
+        current == null ? null : current.getFullName());
+    // Same strings as the current route means the same route
+    if (current == null || shortName != current.getShortName()
+        || fullName != current.getFullName()) {
+      bus.setRoute(entityRegistry.route(shortName, fullName));
+    }
+  }
+
+  /**
+   * Reads the next string or null into the <code>string</code> of <code>bus</code>.
+   */
+  private static void nextStringOrNull(JsonScanner scanner, BusPoll poll, int bus, int string)
+      throws IOException {
+    if (!scanner.nextNull()) {
+      scanner.nextString();
+      poll.setString(bus, string, scanner);
+    }
+  }
+
+  /**
+   * Returns the <code>string</code> of bus <code>index</code> in <code>poll</code>, or
+   * <code>current</code> itself if the string is equal to it.
+   */
+  private static String string(BusPoll poll, int index, int string, JsonScanner scanner,
+                               String current) {
+    if (!poll.selectString(index, string, scanner)) {
+      return null;
+    }
+    return scanner.stringEquals(current) ? current : scanner.string();
   }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+/**
+ * The buses of one poll, as read by {@link BusFactory#parse(byte[], String)} on Volley's network
+ * thread, waiting to be applied to a {@link Fleet} on the main thread.
+ * <p/>
+ * Numbers are kept as read. Strings are kept as where they lie in the UTF-8 body, so that
+ * applying the poll compares them in place with what each bus already has and only decodes the
+ * ones that changed. Polls are reused by the {@link BusFactory}, none should be held once applied.
+ *
+ * @author Ben Sechrist
+ */
+final class BusPoll {
+
+  static final int ID = 0;
+
+  static final int ROUTE_SHORT_NAME = 1;
+
+  static final int ROUTE_FULL_NAME = 2;
+
+  static final int LAST_STOP_CODE = 3;
+
+  static final int LAST_STOP_NAME = 4;
+
+  private static final int STRINGS = 5;
+
+  /**
+   * Start, end and whether it is plain, of each string of each bus.
+   */
+  private static final int SPAN = 3;
+
+  private byte[] data;
+
+  private int size;
+
+  /**
+   * Where each string of each bus lies in {@link #data}, a start of -1 standing for null.
+   */
+  private int[] strings = new int[0];
+
+  double[] latitudes = new double[0];
+
+  double[] longitudes = new double[0];
+
+  int[] directions = new int[0];
+
+  boolean[] trippers = new boolean[0];
+
+  int[] passengers = new int[0];
+
+  long[] timestamps = new long[0];
+
+  /**
+   * Empties the poll for the buses in <code>data</code>.
+   */
+  void reset(byte[] data) {
+    this.data = data;
+    size = 0;
+  }
+
+  byte[] getData() {
+    return data;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds a bus with every field null or zero, growing the poll if needed.
+   *
+   * @return the index of the bus
+   */
+  int add() {
+    if (size == latitudes.length) {
+      grow(Math.max(16, size * 2));
+    }
+    int bus = size++;
+    for (int i = 0; i < STRINGS; i++) {
+      strings[(bus * STRINGS + i) * SPAN] = -1;
+    }
+    latitudes[bus] = 0;
+    longitudes[bus] = 0;
+    directions[bus] = 0;
+    trippers[bus] = false;
+    passengers[bus] = 0;
+    timestamps[bus] = 0;
+    return bus;
+  }
+
+  /**
+   * Sets the <code>string</code> of <code>bus</code> to the last string <code>scanner</code>
+   * read.
+   */
+  void setString(int bus, int string, JsonScanner scanner) {
+    int span = (bus * STRINGS + string) * SPAN;
+    strings[span] = scanner.stringStart();
+    strings[span + 1] = scanner.stringEnd();
+    strings[span + 2] = scanner.isPlain() ? 1 : 0;
+  }
+
+  /**
+   * Has <code>scanner</code>, which must be over this poll's body, select the
+   * <code>string</code> of <code>bus</code> as its last string read.
+   *
+   * @return false if the string is null, in which case nothing is selected
+   */
+  boolean selectString(int bus, int string, JsonScanner scanner) {
+    int span = (bus * STRINGS + string) * SPAN;
+    if (strings[span] < 0) {
+      return false;
+    }
+    scanner.select(strings[span], strings[span + 1], strings[span + 2] == 1);
+    return true;
+  }
+
+  private void grow(int capacity) {
+    int[] grownStrings = new int[capacity * STRINGS * SPAN];
+    System.arraycopy(strings, 0, grownStrings, 0, strings.length);
+    strings = grownStrings;
+    double[] grownLatitudes = new double[capacity];
+    System.arraycopy(latitudes, 0, grownLatitudes, 0, size);
+    latitudes = grownLatitudes;
+    double[] grownLongitudes = new double[capacity];
+    System.arraycopy(longitudes, 0, grownLongitudes, 0, size);
+    longitudes = grownLongitudes;
+    int[] grownDirections = new int[capacity];
+    System.arraycopy(directions, 0, grownDirections, 0, size);
+    directions = grownDirections;
+    boolean[] grownTrippers = new boolean[capacity];
+    System.arraycopy(trippers, 0, grownTrippers, 0, size);
+    trippers = grownTrippers;
+    int[] grownPassengers = new int[capacity];
+    System.arraycopy(passengers, 0, grownPassengers, 0, size);
+    passengers = grownPassengers;
+    long[] grownTimestamps = new long[capacity];
+    System.arraycopy(timestamps, 0, grownTimestamps, 0, size);
+    timestamps = grownTimestamps;
+  }
+}
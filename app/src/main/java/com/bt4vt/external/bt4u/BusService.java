@@ -20,14 +20,15 @@ import com.android.volley.VolleyError;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
 import java.net.URISyntaxException;
-import java.util.List;
 
 /**
  * Service to get current bus information.
+ * <p/>
+ * Buses are polled into a {@link Fleet}. Each poll is read off the main thread, then applied to
+ * the fleet in place on the main thread, so a steady stream of polls does not allocate a new set
+ * of buses each time and a malformed one leaves the fleet as it was. Every poll is also handed to
+ * the {@link EtaPredictor} to learn how fast the buses go.
  *
  * @author Ben Sechrist
  */
@@ -43,54 +44,50 @@ public class BusService {
   @Inject
   private BusFactory busFactory;
 
+  @Inject
+  private EtaPredictor etaPredictor;
+
   /**
    * Queries BT4U for information on all current buses.
    */
-  public void getAll(final Response.Listener<List<Bus>> listener,
+  public void getAll(Fleet fleet, final Response.Listener<Fleet> listener,
                      final Response.ExceptionListener exceptionListener) {
-    try {
-      requestService.addToRequestQueue(requestFactory.buses(null,
-          new com.android.volley.Response.Listener<JSONArray>() {
-            @Override
-            public void onResponse(JSONArray response) {
-              try {
-                listener.onResult(busFactory.buses(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
-              }
-            }
-          }, new com.android.volley.Response.ErrorListener() {
-            @Override
-            public void onErrorResponse(VolleyError error) {
-              exceptionListener.onException(error);
-            }
-          }
-      ));
-    } catch (URISyntaxException e) {
-      exceptionListener.onException(e);
-    }
+    get(null, fleet, listener, exceptionListener);
+  }
+
+  public void get(String route, Fleet fleet, final Response.Listener<Fleet> listener,
+                  final Response.ExceptionListener exceptionListener) {
+    get(route, null, fleet, listener, exceptionListener);
   }
 
-  public void get(String route, final Response.Listener<List<Bus>> listener,
+  /**
+   * Queries BT4U for the buses on <code>route</code> and updates <code>fleet</code> with them.
+   * Results are dropped, and the fleet left untouched, once <code>token</code> is canceled.
+   */
+  public void get(String route, final RequestToken token, final Fleet fleet,
+                  final Response.Listener<Fleet> listener,
                   final Response.ExceptionListener exceptionListener) {
     try {
       requestService.addToRequestQueue(requestFactory.buses(route,
-          new com.android.volley.Response.Listener<JSONArray>() {
+          new com.android.volley.Response.Listener<BusPoll>() {
             @Override
-            public void onResponse(JSONArray response) {
-              try {
-                listener.onResult(busFactory.buses(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
+            public void onResponse(BusPoll response) {
+              if (RequestToken.isCanceled(token)) {
+                return;
               }
+              busFactory.update(fleet, response);
+              etaPredictor.record(fleet.getBuses(), System.currentTimeMillis());
+              listener.onResult(fleet);
             }
           }, new com.android.volley.Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-              exceptionListener.onException(error);
+              if (!RequestToken.isCanceled(token)) {
+                exceptionListener.onException(error);
+              }
             }
           }
-      ));
+      ), token);
     } catch (URISyntaxException e) {
       exceptionListener.onException(e);
     }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Content hash of every route and stop BT4U currently lists, used to fetch only what changed
+ * since the last sync.
+ *
+ * @author Ben Sechrist
+ */
+class CatalogManifest {
+
+  private final Map<String, String> routeHashes;
+
+  private final Map<String, String> stopHashes;
+
+  CatalogManifest(Map<String, String> routeHashes, Map<String, String> stopHashes) {
+    this.routeHashes = Collections.unmodifiableMap(routeHashes);
+    this.stopHashes = Collections.unmodifiableMap(stopHashes);
+  }
+
+  /**
+   * Returns the hash of every route by short name.
+   */
+  Map<String, String> getRouteHashes() {
+    return routeHashes;
+  }
+
+  /**
+   * Returns the hash of every stop by code.
+   */
+  Map<String, String> getStopHashes() {
+    return stopHashes;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates {@link CatalogManifest} objects.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+class CatalogManifestFactory {
+
+  /**
+   * Streams a {@link CatalogManifest} out of <code>reader</code>. The manifest looks like
+   * <code>{"routes": {"HWD": "&lt;hash&gt;", ...}, "stops": {"1114": "&lt;hash&gt;", ...}}</code>.
+   *
+   * @param reader reader positioned at the start of the manifest object
+   * @return the manifest
+   * @throws IOException if the JSON could not be read
+   */
+  public CatalogManifest manifest(JsonReader reader) throws IOException {
+    Map<String, String> routeHashes = null;
+    Map<String, String> stopHashes = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "routes":
+          routeHashes = hashes(reader);
+          break;
+        case "stops":
+          stopHashes = hashes(reader);
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    JsonUtils.requireField(routeHashes, "CatalogManifest", "routes");
+    JsonUtils.requireField(stopHashes, "CatalogManifest", "stops");
+    return new CatalogManifest(routeHashes, stopHashes);
+  }
+
+  private Map<String, String> hashes(JsonReader reader) throws IOException {
+    Map<String, String> hashes = new HashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      hashes.put(reader.nextName(), reader.nextString());
+    }
+    reader.endObject();
+    return hashes;
+  }
+}
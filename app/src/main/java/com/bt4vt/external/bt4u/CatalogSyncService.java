@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.android.volley.NetworkError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.bt4vt.service.OfflineStoreService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the routes and stops stored by the {@link OfflineStoreService} in sync with BT4U while
+ * downloading as little as possible.
+ * <p/>
+ * A sync first fetches the {@link CatalogManifest}, the content hash of every route and stop, and
+ * compares it with the hashes stored alongside them. Only routes and stops whose hash changed are
+ * fetched again, and those no longer listed are removed. When many stops changed at once they are
+ * fetched in a single request instead. If BT4U doesn't serve a manifest the sync falls back to
+ * fetching the full route and stop lists, through Volley's cache and conditionally, so an
+ * unchanged catalog is neither downloaded nor stored again. The manifest is then not asked for
+ * again for {@link #MANIFEST_RETRY_INTERVAL_MS}. Only the parsed results that changed are evicted
+ * from the {@link ParsedObjectCache}.
+ * <p/>
+ * Syncs run at most once every {@link #MIN_SYNC_INTERVAL_MS}, and only one at a time. All of
+ * this happens on the main thread, where Volley and the {@link OfflineStoreService} deliver
+ * results.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+public class CatalogSyncService {
+
+  static final long MIN_SYNC_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+
+  /**
+   * How long syncs go without asking for the manifest once BT4U failed to serve one.
+   */
+  static final long MANIFEST_RETRY_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * Fraction of the stops that may have changed and still be fetched one by one.
+   */
+  static final float MAX_STOP_DELTA_FRACTION = 0.25f;
+
+  @Inject
+  private RequestService requestService;
+
+  @Inject
+  RequestFactory requestFactory;
+
+  @Inject
+  private OfflineStoreService offlineStoreService;
+
+  @Inject
+  private ParsedObjectCache parsedObjectCache;
+
+  private boolean syncing = false;
+
+  private long lastSyncMs = -1;
+
+  private boolean manifestSupported = false;
+
+  /**
+   * When BT4U last failed to serve the manifest, -1 if it hasn't.
+   */
+  private long manifestFailedMs = -1;
+
+  /**
+   * Starts a sync unless one is running or the last one finished recently.
+   */
+  public void sync() {
+    if (syncing || (lastSyncMs >= 0 && now() - lastSyncMs < MIN_SYNC_INTERVAL_MS)) {
+      return;
+    }
+    syncing = true;
+    final Sync sync = new Sync(true);
+    if (manifestFailedMs >= 0 && now() - manifestFailedMs < MANIFEST_RETRY_INTERVAL_MS) {
+      syncAll(sync);
+      return;
+    }
+    enqueue(sync, new RequestBuilder<CatalogManifest>() {
+      @Override
+      public RequestFactory.BT4VTRequest<CatalogManifest> build(
+          com.android.volley.Response.Listener<CatalogManifest> listener,
+          com.android.volley.Response.ErrorListener errorListener) throws URISyntaxException {
+        return requestFactory.manifest(listener, errorListener);
+      }
+    }, new com.android.volley.Response.Listener<CatalogManifest>() {
+      @Override
+      public void onResponse(CatalogManifest manifest) {
+        manifestSupported = true;
+        manifestFailedMs = -1;
+        sync.revalidate = true;
+        syncDelta(sync, manifest);
+      }
+    }, new com.android.volley.Response.ErrorListener() {
+      @Override
+      public void onErrorResponse(VolleyError error) {
+        manifestSupported = false;
+        // Without a connection there is no telling whether BT4U serves one
+        if (!(error instanceof NetworkError || error instanceof TimeoutError)) {
+          manifestFailedMs = now();
+        }
+        syncAll(sync);
+      }
+    });
+  }
+
+  /**
+   * Makes sure the stored route with <code>shortName</code> gets refreshed. With a manifest that is
+   * part of a regular sync, without one the route is fetched on its own.
+   */
+  public void syncRoute(String shortName) {
+    if (!manifestSupported) {
+      fetchRoute(new Sync(false), shortName, null);
+    }
+    sync();
+  }
+
+  /**
+   * Returns the current time in milliseconds, overridable for testing.
+   */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private void syncDelta(final Sync sync, final CatalogManifest manifest) {
+    // Held open until the stored hashes are read and the changes queued
+    sync.pending++;
+    offlineStoreService.getRouteHashes(new Response.Listener<Map<String, String>>() {
+      @Override
+      public void onResult(final Map<String, String> storedRouteHashes) {
+        offlineStoreService.getStopHashes(new Response.Listener<Map<String, String>>() {
+          @Override
+          public void onResult(Map<String, String> storedStopHashes) {
+            syncDelta(sync, manifest, storedRouteHashes, storedStopHashes);
+            sync.finish();
+          }
+        });
+      }
+    });
+  }
+
+  private void syncDelta(Sync sync, CatalogManifest manifest,
+                         Map<String, String> storedRouteHashes,
+                         Map<String, String> storedStopHashes) {
+    List<String> removedRoutes = removed(storedRouteHashes, manifest.getRouteHashes());
+    List<String> removedStops = removed(storedStopHashes, manifest.getStopHashes());
+    if (!removedRoutes.isEmpty() || !removedStops.isEmpty()) {
+      offlineStoreService.delete(removedRoutes, removedStops);
+      for (String shortName : removedRoutes) {
+        sync.routeChanged(shortName);
+      }
+      if (!removedStops.isEmpty()) {
+        sync.stopChanged();
+      }
+    }
+
+    for (Map.Entry<String, String> route : manifest.getRouteHashes().entrySet()) {
+      if (!route.getValue().equals(storedRouteHashes.get(route.getKey()))) {
+        fetchRoute(sync, route.getKey(), route.getValue());
+      }
+    }
+
+    final Map<String, String> stopHashes = manifest.getStopHashes();
+    List<String> changedStops = new ArrayList<>();
+    for (Map.Entry<String, String> stop : stopHashes.entrySet()) {
+      if (!stop.getValue().equals(storedStopHashes.get(stop.getKey()))) {
+        changedStops.add(stop.getKey());
+      }
+    }
+    if (changedStops.size() > MAX_STOP_DELTA_FRACTION * stopHashes.size()) {
+      fetchStops(sync, stopHashes);
+    } else {
+      for (String code : changedStops) {
+        fetchStop(sync, code, stopHashes.get(code));
+      }
+    }
+  }
+
+  private void syncAll(final Sync sync) {
+    enqueue(sync, new RequestBuilder<List<Route>>() {
+      @Override
+      public RequestFactory.BT4VTRequest<List<Route>> build(
+          com.android.volley.Response.Listener<List<Route>> listener,
+          com.android.volley.Response.ErrorListener errorListener) throws URISyntaxException {
+        return requestFactory.routes(listener, errorListener);
+      }
+    }, new com.android.volley.Response.Listener<List<Route>>() {
+      @Override
+      public void onResponse(List<Route> routes) {
+        offlineStoreService.saveRoutes(routes);
+        sync.changedKeys.add(ParsedObjectCache.ROUTES_KEY);
+      }
+    }, null);
+    fetchStops(sync, null);
+  }
+
+  private void fetchRoute(final Sync sync, final String shortName, final String hash) {
+    enqueue(sync, new RequestBuilder<Route>() {
+      @Override
+      public RequestFactory.BT4VTRequest<Route> build(
+          com.android.volley.Response.Listener<Route> listener,
+          com.android.volley.Response.ErrorListener errorListener) throws URISyntaxException {
+        return requestFactory.route(shortName, listener, errorListener);
+      }
+    }, new com.android.volley.Response.Listener<Route>() {
+      @Override
+      public void onResponse(Route route) {
+        offlineStoreService.saveRoute(route, hash);
+        sync.routeChanged(shortName);
+      }
+    }, null);
+  }
+
+  private void fetchStops(final Sync sync, final Map<String, String> hashes) {
+    enqueue(sync, new RequestBuilder<List<Stop>>() {
+      @Override
+      public RequestFactory.BT4VTRequest<List<Stop>> build(
+          com.android.volley.Response.Listener<List<Stop>> listener,
+          com.android.volley.Response.ErrorListener errorListener) throws URISyntaxException {
+        return requestFactory.stops(listener, errorListener);
+      }
+    }, new com.android.volley.Response.Listener<List<Stop>>() {
+      @Override
+      public void onResponse(List<Stop> stops) {
+        offlineStoreService.saveStops(stops, hashes);
+        sync.stopChanged();
+      }
+    }, null);
+  }
+
+  private void fetchStop(final Sync sync, final String code, final String hash) {
+    enqueue(sync, new RequestBuilder<Stop>() {
+      @Override
+      public RequestFactory.BT4VTRequest<Stop> build(
+          com.android.volley.Response.Listener<Stop> listener,
+          com.android.volley.Response.ErrorListener errorListener) throws URISyntaxException {
+        return requestFactory.stop(code, listener, errorListener);
+      }
+    }, new com.android.volley.Response.Listener<Stop>() {
+      @Override
+      public void onResponse(Stop stop) {
+        Map<String, String> hashes = new HashMap<>();
+        hashes.put(code, hash);
+        offlineStoreService.saveStops(Collections.singletonList(stop), hashes);
+        sync.stopChanged();
+      }
+    }, null);
+  }
+
+  /**
+   * Queues a request built by <code>builder</code> as part of <code>sync</code>. An
+   * <code>errorListener</code> recovers from failures itself, without one the sync is marked as
+   * failed so the next one isn't held back, and whatever failed is fetched again then.
+   * <p/>
+   * Without a manifest to go by, requests go through Volley's cache and are conditional, and
+   * <code>listener</code> only hears of bodies that were actually downloaded. Anything else was
+   * stored when it was downloaded.
+   */
+  private <T> void enqueue(Sync sync, RequestBuilder<T> builder,
+                           com.android.volley.Response.Listener<T> listener,
+                           com.android.volley.Response.ErrorListener errorListener) {
+    SyncListener<T> syncListener = new SyncListener<>(sync, listener, errorListener);
+    try {
+      syncListener.request = builder.build(syncListener, syncListener);
+    } catch (URISyntaxException e) {
+      sync.failed = true;
+      sync.pending++;
+      sync.finish();
+      return;
+    }
+    if (sync.revalidate) {
+      // Cached copies could be older than the manifest
+      syncListener.request.setShouldCache(false);
+    }
+    sync.pending++;
+    requestService.addToRequestQueue(syncListener.request);
+  }
+
+  private static List<String> removed(Map<String, String> stored, Map<String, String> listed) {
+    List<String> removed = new ArrayList<>();
+    for (String key : stored.keySet()) {
+      if (!listed.containsKey(key)) {
+        removed.add(key);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Builds a request around the listeners tracking a {@link Sync}.
+   */
+  private interface RequestBuilder<T> {
+    RequestFactory.BT4VTRequest<T> build(com.android.volley.Response.Listener<T> listener,
+                                         com.android.volley.Response.ErrorListener errorListener)
+        throws URISyntaxException;
+  }
+
+  /**
+   * Listeners of a request queued as part of a {@link Sync}.
+   */
+  private static class SyncListener<T> implements com.android.volley.Response.Listener<T>,
+      com.android.volley.Response.ErrorListener {
+
+    private final Sync sync;
+
+    private final com.android.volley.Response.Listener<T> listener;
+
+    private final com.android.volley.Response.ErrorListener errorListener;
+
+    private RequestFactory.BT4VTRequest<T> request;
+
+    SyncListener(Sync sync, com.android.volley.Response.Listener<T> listener,
+                 com.android.volley.Response.ErrorListener errorListener) {
+      this.sync = sync;
+      this.listener = listener;
+      this.errorListener = errorListener;
+    }
+
+    @Override
+    public void onResponse(T response) {
+      // With a manifest, even an unchanged body may come with a new hash to store
+      if (sync.revalidate || !request.isUnchanged()) {
+        listener.onResponse(response);
+      }
+      sync.finish();
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+      if (errorListener != null) {
+        errorListener.onErrorResponse(error);
+      } else {
+        sync.failed = true;
+      }
+      sync.finish();
+    }
+  }
+
+  /**
+   * Requests still pending for one sync. A request's follow up requests are queued from its
+   * listener, before it counts as finished, so the sync is over once nothing is pending.
+   */
+  private class Sync {
+
+    /**
+     * Whether this is a regular sync, rather than a route fetched on its own.
+     */
+    private final boolean regular;
+
+    /**
+     * Whether requests are driven by the manifest, which they must be fresher than.
+     */
+    private boolean revalidate = false;
+
+    private int pending = 0;
+
+    /**
+     * Keys of the {@link ParsedObjectCache} entries this sync changed.
+     */
+    private final Set<String> changedKeys = new HashSet<>();
+
+    /**
+     * Whether stops changed, which every cached route holds.
+     */
+    private boolean stopsChanged = false;
+
+    private boolean failed = false;
+
+    Sync(boolean regular) {
+      this.regular = regular;
+    }
+
+    private void finish() {
+      if (--pending > 0) {
+        return;
+      }
+      // The stored copies may now be newer than what was parsed before
+      for (String key : changedKeys) {
+        parsedObjectCache.remove(key);
+      }
+      if (stopsChanged) {
+        parsedObjectCache.remove(ParsedObjectCache.STOPS_KEY);
+        parsedObjectCache.removeAll(ParsedObjectCache.ROUTE_KEY_PREFIX);
+      }
+      if (regular) {
+        syncing = false;
+        if (!failed) {
+          lastSyncMs = now();
+        }
+      }
+    }
+
+    private void routeChanged(String shortName) {
+      changedKeys.add(ParsedObjectCache.ROUTES_KEY);
+      changedKeys.add(ParsedObjectCache.routeKey(shortName));
+    }
+
+    private void stopChanged() {
+      stopsChanged = true;
+    }
+  }
+}
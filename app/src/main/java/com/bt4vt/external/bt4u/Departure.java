@@ -16,44 +16,118 @@
 
 package com.bt4vt.external.bt4u;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * BT4U bus information.
+ * <p/>
+ * Departure times are parsed once into minutes since the epoch, in ascending order, along with
+ * their display text, so they can be counted down, compared and merged across routes without
+ * being parsed or fetched again.
  *
  * @author Ben Sechrist
  */
 public class Departure {
 
-  private String routeName;
+  /**
+   * Orders departures by their next time, routes without any last.
+   */
+  public static final Comparator<Departure> BY_NEXT_TIME = new Comparator<Departure>() {
+    @Override
+    public int compare(Departure lhs, Departure rhs) {
+      int lhsTime = lhs.size() == 0 ? Integer.MAX_VALUE : lhs.getTime(0);
+      int rhsTime = rhs.size() == 0 ? Integer.MAX_VALUE : rhs.getTime(0);
+      return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+    }
+  };
 
-  private List<String> departures;
+  private static final long MINUTE_MS = 60000;
 
-  public Departure(String routeName) {
+  private final String routeName;
+
+  private final int[] times;
+
+  private final String[] labels;
+
+  private final String text;
+
+  /**
+   * @param routeName the route full name
+   * @param times     the departure times in minutes since the epoch, ascending
+   * @param labels    the display text of each time
+   */
+  public Departure(String routeName, int[] times, String[] labels) {
     this.routeName = routeName;
+    this.times = times;
+    this.labels = labels;
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < labels.length; i++) {
+      if (i > 0) {
+        text.append('\n');
+      }
+      text.append(labels[i]);
+    }
+    this.text = text.toString();
   }
 
   public String getRouteName() {
     return routeName;
   }
 
-  public void setRouteName(String routeName) {
-    this.routeName = routeName;
+  public int size() {
+    return times.length;
+  }
+
+  /**
+   * Returns the departure time at <code>index</code>, in minutes since the epoch.
+   */
+  public int getTime(int index) {
+    return times[index];
+  }
+
+  /**
+   * Returns the display text of the departure time at <code>index</code>, like "10:35 AM".
+   */
+  public String getLabel(int index) {
+    return labels[index];
+  }
+
+  /**
+   * Returns the display text of every departure time, one per line.
+   */
+  public String getText() {
+    return text;
   }
 
-  public List<String> getDepartures() {
-    return departures;
+  /**
+   * Returns the whole minutes left until the departure at <code>index</code>, negative once it
+   * is past.
+   *
+   * @param index the departure
+   * @param nowMs the current time
+   * @return the minutes left
+   */
+  public int getMinutesUntil(int index, long nowMs) {
+    return (int) (times[index] - nowMs / MINUTE_MS);
   }
 
-  public void setDepartures(List<String> departures) {
-    this.departures = departures;
+  /**
+   * Returns these departures cut down to the first <code>max</code>, or this if there are no more
+   * than that.
+   */
+  public Departure limit(int max) {
+    if (times.length <= max) {
+      return this;
+    }
+    return new Departure(routeName, Arrays.copyOf(times, max), Arrays.copyOf(labels, max));
   }
 
   @Override
   public String toString() {
     return "Departure{" +
         "routeName='" + routeName + '\'' +
-        ", departures=" + departures +
+        ", departures=" + Arrays.toString(labels) +
         '}';
   }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import android.support.v4.util.LruCache;
+
+import com.google.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recently fetched departures, by stop and route, so a stop opened again shortly after shows its
+ * departures straight away.
+ * <p/>
+ * Departures younger than {@link #FRESH_MS} are served as they are. Older ones are still served,
+ * up to {@link #MAX_STALE_MS}, but are stale: the caller shows them while fetching fresh ones.
+ * Lookups are counted as fresh hits, stale hits or misses.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+class DepartureCache {
+
+  static final long FRESH_MS = 30000;
+
+  static final long MAX_STALE_MS = 5 * 60000;
+
+  static final int MAX_ENTRIES = 32;
+
+  private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+  private int hitCount = 0;
+
+  private int staleHitCount = 0;
+
+  private int missCount = 0;
+
+  /**
+   * Returns a copy of the departures cached under <code>key</code>, unless they are too old to
+   * be shown.
+   *
+   * @param key the cache key
+   * @return the cached departures, or null
+   */
+  synchronized List<Departure> get(String key) {
+    Entry entry = entries.get(key);
+    long age = entry == null ? Long.MAX_VALUE : now() - entry.fetchedAt;
+    if (age > MAX_STALE_MS) {
+      if (entry != null) {
+        entries.remove(key);
+      }
+      missCount++;
+      return null;
+    }
+    if (age > FRESH_MS) {
+      staleHitCount++;
+    } else {
+      hitCount++;
+    }
+    return new ArrayList<>(entry.departures);
+  }
+
+  /**
+   * Returns whether the departures cached under <code>key</code> should be fetched again, which
+   * is the case once they are stale or if there are none.
+   */
+  synchronized boolean isStale(String key) {
+    Entry entry = entries.get(key);
+    return entry == null || now() - entry.fetchedAt > FRESH_MS;
+  }
+
+  /**
+   * Caches a copy of <code>departures</code> under <code>key</code>, fetched now.
+   */
+  synchronized void put(String key, List<Departure> departures) {
+    entries.put(key, new Entry(new ArrayList<>(departures), now()));
+  }
+
+  synchronized void clear() {
+    entries.evictAll();
+  }
+
+  synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  synchronized int getStaleHitCount() {
+    return staleHitCount;
+  }
+
+  synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the share of lookups that were served from the cache, fresh or stale.
+   */
+  synchronized float getHitRate() {
+    int lookups = hitCount + staleHitCount + missCount;
+    return lookups == 0 ? 0 : (float) (hitCount + staleHitCount) / lookups;
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static class Entry {
+
+    private final List<Departure> departures;
+
+    private final long fetchedAt;
+
+    Entry(List<Departure> departures, long fetchedAt) {
+      this.departures = departures;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
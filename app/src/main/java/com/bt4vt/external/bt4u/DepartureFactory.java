@@ -16,36 +16,189 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.google.gson.stream.JsonReader;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
+import java.util.TimeZone;
 
 /**
  * Creates {@link Departure} objects.
+ * <p/>
+ * BT4U departure times look like "6/16/2017 10:35:00 AM", in Blacksburg's time whatever the
+ * device's zone. Each is parsed once into minutes since the epoch and a display text like
+ * "10:35 AM". The departures of a stop come back ordered by {@link Departure#BY_NEXT_TIME}.
  *
  * @author Ben Sechrist
  */
 @Singleton
 public class DepartureFactory {
 
-  public List<Departure> departures(JSONArray jsonDepartures) throws JSONException {
+  /**
+   * The zone BT4U gives times in, which departures are shown in too.
+   */
+  static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/New_York");
+
+  private static final long MINUTE_MS = 60000;
+
+  /**
+   * Streams {@link Departure} objects straight out of <code>reader</code> without building an
+   * intermediate JSON tree.
+   *
+   * @param reader reader positioned at the start of the departures array
+   * @return the departures
+   * @throws IOException if the JSON could not be read
+   */
+  public List<Departure> departures(JsonReader reader) throws IOException {
+    TimeParser parser = new TimeParser();
     List<Departure> departures = new ArrayList<>();
-    for (int i = 0; i < jsonDepartures.length(); i++) {
-      JSONObject jsonDeparture = jsonDepartures.getJSONObject(i);
-      Departure departure = new Departure(jsonDeparture.getString("routeName"));
-      List<String> departureStrings = new ArrayList<>();
-      JSONArray jsonDepartureStrings = jsonDeparture.getJSONArray("departures");
-      for (int j = 0; j < jsonDepartureStrings.length(); j++) {
-        departureStrings.add(jsonDepartureStrings.getString(j));
-      }
-      departure.setDepartures(departureStrings);
-      departures.add(departure);
+    reader.beginArray();
+    while (reader.hasNext()) {
+      departures.add(departure(reader, parser));
     }
+    reader.endArray();
+    Collections.sort(departures, Departure.BY_NEXT_TIME);
     return departures;
   }
+
+  private Departure departure(JsonReader reader, TimeParser parser) throws IOException {
+    String routeName = null;
+    parser.reset();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "routeName":
+          routeName = reader.nextString();
+          break;
+        case "departures":
+          reader.beginArray();
+          while (reader.hasNext()) {
+            String time = reader.nextString();
+            if (!parser.parse(time)) {
+              throw new IOException("Malformed departure time " + time);
+            }
+          }
+          reader.endArray();
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    JsonUtils.requireField(routeName, "Departure", "routeName");
+    return parser.departure(routeName);
+  }
+
+  /**
+   * Parses the departure times of one route at a time, reusing its calendar and buffers across
+   * routes.
+   */
+  private static class TimeParser {
+
+    private final Calendar calendar = Calendar.getInstance(TIME_ZONE);
+
+    // Month, day, year, hour, minute and second
+    private final int[] fields = new int[6];
+
+    private final StringBuilder label = new StringBuilder();
+
+    private int[] times = new int[8];
+
+    private String[] labels = new String[8];
+
+    private int count;
+
+    void reset() {
+      count = 0;
+    }
+
+    /**
+     * Parses <code>text</code> and adds it to the departures of the current route.
+     *
+     * @return false if <code>text</code> is malformed
+     */
+    boolean parse(String text) {
+      int field = 0;
+      int i = 0;
+      int length = text.length();
+      while (field < fields.length) {
+        int value = 0;
+        int start = i;
+        while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+          value = value * 10 + text.charAt(i++) - '0';
+        }
+        if (i == start || i - start > 4) {
+          return false;
+        }
+        fields[field++] = value;
+        // Skip the separator
+        i++;
+      }
+      if (i >= length) {
+        return false;
+      }
+      boolean pm;
+      char meridiem = text.charAt(i);
+      if (meridiem == 'P' || meridiem == 'p') {
+        pm = true;
+      } else if (meridiem == 'A' || meridiem == 'a') {
+        pm = false;
+      } else {
+        return false;
+      }
+      int hour = fields[3];
+      if (fields[0] < 1 || fields[0] > 12 || fields[1] < 1 || hour < 1 || hour > 12
+          || fields[4] > 59 || fields[5] > 59) {
+        return false;
+      }
+
+      calendar.clear();
+      calendar.set(fields[2], fields[0] - 1, fields[1], hour % 12 + (pm ? 12 : 0), fields[4]);
+      // The calendar is lenient, a day past the end of the month rolls over into the next
+      if (calendar.get(Calendar.DAY_OF_MONTH) != fields[1]) {
+        return false;
+      }
+      label.setLength(0);
+      label.append(hour).append(':');
+      if (fields[4] < 10) {
+        label.append('0');
+      }
+      label.append(fields[4]).append(pm ? " PM" : " AM");
+
+      if (count == times.length) {
+        times = Arrays.copyOf(times, count * 2);
+        labels = Arrays.copyOf(labels, count * 2);
+      }
+      times[count] = (int) (calendar.getTimeInMillis() / MINUTE_MS);
+      labels[count] = label.toString();
+      count++;
+      return true;
+    }
+
+    /**
+     * Returns the departures of the current route, sorted by time.
+     */
+    Departure departure(String routeName) {
+      int[] sortedTimes = Arrays.copyOf(times, count);
+      String[] sortedLabels = Arrays.copyOf(labels, count);
+      // BT4U sends times in order, this is only a safety net
+      for (int i = 1; i < count; i++) {
+        for (int j = i; j > 0 && sortedTimes[j - 1] > sortedTimes[j]; j--) {
+          int time = sortedTimes[j];
+          sortedTimes[j] = sortedTimes[j - 1];
+          sortedTimes[j - 1] = time;
+          String label = sortedLabels[j];
+          sortedLabels[j] = sortedLabels[j - 1];
+          sortedLabels[j - 1] = label;
+        }
+      }
+      return new Departure(routeName, sortedTimes, sortedLabels);
+    }
+  }
 }
@@ -21,14 +21,23 @@ import com.android.volley.VolleyError;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Service to get current bus information.
+ * <p/>
+ * Departures of a route whose buses are being polled are estimated on the device by the
+ * {@link EtaPredictor} when it is confident enough, and merged with BT4U's for the buses not on
+ * the road yet. BT4U's are then taken from the cache, however stale, and only asked for when
+ * there are none. The estimate alone can't tell when the next bus leaves the garage, so it is
+ * shown while BT4U is asked rather than instead, and only a lookup answered without asking
+ * counts as estimated.
+ * <p/>
+ * Departures from BT4U are kept in a {@link DepartureCache} by stop and route. Stale ones are
+ * served right away and fetched again in the background, so listeners may get a second, fresh
+ * result shortly after the first. A failed background fetch leaves the stale result in place.
  *
  * @author Ben Sechrist
  */
@@ -42,26 +51,125 @@ public class DepartureService {
   private RequestFactory requestFactory;
 
   @Inject
-  private DepartureFactory departureFactory;
+  private EtaPredictor etaPredictor;
+
+  @Inject
+  private DepartureCache departureCache;
+
+  private int estimatedCount = 0;
+
+  public void getAll(Route route, Stop stop, Response.Listener<List<Departure>> listener,
+                     Response.ExceptionListener exceptionListener) {
+    getAll(route, stop, false, listener, exceptionListener);
+  }
+
+  /**
+   * Gets the departures of <code>route</code> from <code>stop</code>, estimated locally if
+   * possible, or of every route serving the stop when <code>route</code> is null. Ignoring the
+   * cache skips both the estimate and cached departures.
+   */
+  public void getAll(Route route, Stop stop, boolean ignoreCache,
+                     final Response.Listener<List<Departure>> listener,
+                     Response.ExceptionListener exceptionListener) {
+    String routeName = route == null ? null : route.getFullName();
+    if (route != null && !ignoreCache) {
+      final Departure estimated = etaPredictor.estimate(route, stop, System.currentTimeMillis());
+      if (estimated != null) {
+        String cacheKey = cacheKey(routeName, stop.getCode());
+        List<Departure> cached = departureCache.get(cacheKey);
+        if (cached != null) {
+          estimatedCount++;
+          listener.onResult(EtaPredictor.merge(estimated, cached));
+          return;
+        }
+        listener.onResult(Collections.singletonList(estimated));
+        fetch(routeName, stop.getCode(), cacheKey, new Response.Listener<List<Departure>>() {
+          @Override
+          public void onResult(List<Departure> departures) {
+            listener.onResult(EtaPredictor.merge(estimated, departures));
+          }
+        }, null);
+        return;
+      }
+    }
+    getAll(routeName, stop.getCode(), ignoreCache, listener, exceptionListener);
+  }
 
   public void getAll(String route, String stopCode,
                      final Response.Listener<List<Departure>> listener,
                      final Response.ExceptionListener exceptionListener) {
+    getAll(route, stopCode, false, listener, exceptionListener);
+  }
+
+  /**
+   * Queries BT4U for the departures of <code>route</code> from the stop with
+   * <code>stopCode</code>, or of every route serving the stop when <code>route</code> is null.
+   */
+  public void getAll(String route, String stopCode, boolean ignoreCache,
+                     final Response.Listener<List<Departure>> listener,
+                     final Response.ExceptionListener exceptionListener) {
+    String cacheKey = cacheKey(route, stopCode);
+    if (!ignoreCache) {
+      List<Departure> cached = departureCache.get(cacheKey);
+      if (cached != null) {
+        listener.onResult(cached);
+        if (departureCache.isStale(cacheKey)) {
+          fetch(route, stopCode, cacheKey, listener, null);
+        }
+        return;
+      }
+    }
+    fetch(route, stopCode, cacheKey, listener, exceptionListener);
+  }
+
+  /**
+   * Returns how many departure lookups were answered with an estimate without asking BT4U.
+   */
+  public int getEstimatedCount() {
+    return estimatedCount;
+  }
+
+  /**
+   * Returns the share of departure lookups served from the cache, fresh or stale.
+   */
+  public float getCacheHitRate() {
+    return departureCache.getHitRate();
+  }
+
+  /**
+   * Returns how many departure lookups were served stale from the cache and fetched again.
+   */
+  public int getStaleCacheHitCount() {
+    return departureCache.getStaleHitCount();
+  }
+
+  private static String cacheKey(String route, String stopCode) {
+    return stopCode + '/' + (route == null ? "" : route);
+  }
+
+  /**
+   * Fetches departures from BT4U and caches them.
+   *
+   * @param exceptionListener told about errors, or null to ignore them because stale departures
+   *                          are already shown
+   */
+  private void fetch(String route, String stopCode, final String cacheKey,
+                     final Response.Listener<List<Departure>> listener,
+                     final Response.ExceptionListener exceptionListener) {
     try {
-      com.android.volley.Response.Listener<JSONArray> requestListener = new com.android.volley.Response.Listener<JSONArray>() {
+      com.android.volley.Response.Listener<List<Departure>> requestListener = new com.android.volley.Response.Listener<List<Departure>>() {
         @Override
-        public void onResponse(JSONArray response) {
-          try {
-            listener.onResult(departureFactory.departures(response));
-          } catch (JSONException e) {
-            exceptionListener.onException(e);
-          }
+        public void onResponse(List<Departure> response) {
+          departureCache.put(cacheKey, response);
+          listener.onResult(response);
         }
       };
       com.android.volley.Response.ErrorListener errorListener = new com.android.volley.Response.ErrorListener() {
         @Override
         public void onErrorResponse(VolleyError error) {
-          exceptionListener.onException(error);
+          if (exceptionListener != null) {
+            exceptionListener.onException(error);
+          }
         }
       };
       Request request;
@@ -72,7 +180,9 @@ public class DepartureService {
       }
       requestService.addToRequestQueue(request);
     } catch (URISyntaxException e) {
-      exceptionListener.onException(e);
+      if (exceptionListener != null) {
+        exceptionListener.onException(e);
+      }
     }
   }
 }
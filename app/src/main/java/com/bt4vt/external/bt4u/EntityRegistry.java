@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.google.inject.Singleton;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Canonical {@link Route} and {@link Stop} instances, by short name and by code.
+ * <p/>
+ * The factories hand every parsed route and stop to this registry and keep the instance it
+ * returns, as does the offline store for what it reads back, so a stop served by several routes,
+ * or a route reported by every bus on every poll, is held once no matter how many responses or
+ * reads mention it. An instance is only reused when it is equal
+ * field for field to the one just parsed. Parsing never changes an instance that is already
+ * shared, a changed entity replaces the canonical one instead.
+ * <p/>
+ * Instances are only weakly referenced, they are dropped once nothing else holds them.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+public class EntityRegistry {
+
+  private final Registry<Route> routes = new Registry<>();
+
+  private final Registry<Stop> stops = new Registry<>();
+
+  /**
+   * Returns the canonical instance of <code>stop</code>, which becomes canonical itself if there is
+   * none yet or it differs from the current one.
+   *
+   * @param stop the parsed stop
+   * @return the canonical stop
+   */
+  public Stop intern(Stop stop) {
+    synchronized (stops) {
+      Stop canonical = stops.get(stop.getCode());
+      if (canonical != null && sameStop(canonical, stop)) {
+        return canonical;
+      }
+      stops.put(stop.getCode(), stop);
+      return stop;
+    }
+  }
+
+  /**
+   * Returns the canonical instance of <code>route</code>, which becomes canonical itself if there
+   * is none yet or it differs from the current one. Its stops should be interned already.
+   *
+   * @param route the parsed route
+   * @return the canonical route
+   */
+  public Route intern(Route route) {
+    synchronized (routes) {
+      Route canonical = routes.get(route.getShortName());
+      if (canonical != null && sameRoute(canonical, route)) {
+        return canonical;
+      }
+      routes.put(route.getShortName(), route);
+      return route;
+    }
+  }
+
+  /**
+   * Returns a route with <code>shortName</code> and <code>fullName</code>, as reported for a bus.
+   * <p/>
+   * Any canonical route with that full name will do, whether or not it has its plot and stops. A
+   * new route is only made canonical when there is none yet, so it never replaces a complete one.
+   *
+   * @param shortName the route short name
+   * @param fullName  the route full name
+   * @return the canonical route, or a new one if the canonical route has another full name
+   */
+  Route route(String shortName, String fullName) {
+    synchronized (routes) {
+      Route canonical = routes.get(shortName);
+      if (canonical != null && equal(canonical.getFullName(), fullName)) {
+        return canonical;
+      }
+      Route route = new Route(shortName);
+      route.setFullName(fullName);
+      if (canonical == null) {
+        routes.put(shortName, route);
+      }
+      return route;
+    }
+  }
+
+  /**
+   * Returns the number of routes still registered.
+   */
+  int routeCount() {
+    synchronized (routes) {
+      return routes.size();
+    }
+  }
+
+  /**
+   * Returns the number of stops still registered.
+   */
+  int stopCount() {
+    synchronized (stops) {
+      return stops.size();
+    }
+  }
+
+  private static boolean sameStop(Stop a, Stop b) {
+    return equal(a.getName(), b.getName())
+        && equal(a.getLatLng(), b.getLatLng())
+        && a.isFavorited() == b.isFavorited();
+  }
+
+  private static boolean sameRoute(Route a, Route b) {
+    if (!equal(a.getFullName(), b.getFullName()) || !equal(a.getPlot(), b.getPlot())
+        || !equal(a.getColor(), b.getColor())) {
+      return false;
+    }
+    List<Stop> aStops = a.getStops();
+    List<Stop> bStops = b.getStops();
+    if (aStops.size() != bStops.size()) {
+      return false;
+    }
+    for (int i = 0; i < aStops.size(); i++) {
+      // Interned stops are the same instance when they are equal
+      if (aStops.get(i) != bStops.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Weakly held values by key. Callers synchronize on the registry.
+   */
+  private static class Registry<T> {
+
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    private final ReferenceQueue<T> collected = new ReferenceQueue<>();
+
+    T get(String key) {
+      expunge();
+      Entry<T> entry = entries.get(key);
+      return entry == null ? null : entry.get();
+    }
+
+    void put(String key, T value) {
+      expunge();
+      entries.put(key, new Entry<>(key, value, collected));
+    }
+
+    int size() {
+      expunge();
+      return entries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+      Entry<T> entry;
+      while ((entry = (Entry<T>) collected.poll()) != null) {
+        // The key may have been registered again since
+        if (entries.get(entry.key) == entry) {
+          entries.remove(entry.key);
+        }
+      }
+    }
+  }
+
+  private static class Entry<T> extends WeakReference<T> {
+
+    private final String key;
+
+    Entry(String key, T value, ReferenceQueue<T> queue) {
+      super(value, queue);
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.map.RouteLine;
+import com.google.inject.Singleton;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimates when buses will reach a stop from the positions {@link BusService} polls, so the
+ * departures of the route being followed can be shown without asking BT4U.
+ * <p/>
+ * The last few fixes of every polled bus are kept. A bus's speed is the distance it covered
+ * along its {@link RouteLine} over those fixes, stops included, divided by the time BT4U says
+ * they took. Arrival at a stop is its distance along the route over that speed, counted from
+ * when the latest fix was received.
+ * <p/>
+ * Estimates are only given when they can be trusted: the route has a plot, some bus on it has a
+ * recent fix on the route and enough history to know its speed, and the arrival is close enough
+ * that the error stays small. Callers fall back to BT4U otherwise. Estimates only cover buses
+ * already on the road, callers {@link #merge(Departure, List)} them with BT4U's departures for
+ * the later ones. Their labels are marked with {@link #ESTIMATE_PREFIX} to tell them apart.
+ * <p/>
+ * Fixes are recorded and estimates made on the main thread.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+class EtaPredictor {
+
+  /**
+   * Fixes kept per bus, two minutes of history at the usual poll rate.
+   */
+  static final int HISTORY_SIZE = 8;
+
+  /**
+   * Least time fixes in the history have to span for the speed to be known.
+   */
+  static final long MIN_HISTORY_MS = 30000;
+
+  /**
+   * Buses whose latest fix was received longer ago than this are not used, and forgotten.
+   */
+  static final long MAX_FIX_AGE_MS = 60000;
+
+  /**
+   * Furthest ahead an arrival is estimated, past it a change in traffic throws estimates off.
+   */
+  static final long MAX_HORIZON_MS = 15 * 60000;
+
+  /**
+   * Slower than this on average, a bus is held up and its speed says nothing about the rest of
+   * the way.
+   */
+  static final double MIN_SPEED_MPS = 1;
+
+  /**
+   * Faster than any bus in town, anything above it between two fixes is GPS noise.
+   */
+  static final double MAX_SPEED_MPS = 25;
+
+  /**
+   * The display format of departure times, as {@link DepartureFactory} writes them.
+   */
+  static final String LABEL_FORMAT = "h:mm a";
+
+  /**
+   * Marks the labels of estimated times.
+   */
+  static final String ESTIMATE_PREFIX = "~";
+
+  /**
+   * BT4U times this close after the last estimated one are taken to be for an estimated bus.
+   */
+  static final int SAME_BUS_MINUTES = 5;
+
+  private static final long MINUTE_MS = 60000;
+
+  private final Map<String, Track> tracks = new HashMap<>();
+
+  /**
+   * Records the latest fixes of <code>buses</code>.
+   *
+   * @param buses the polled buses
+   * @param nowMs the current time
+   */
+  void record(List<Bus> buses, long nowMs) {
+    for (int i = 0; i < buses.size(); i++) {
+      Bus bus = buses.get(i);
+      if (bus.getRoute() == null) {
+        continue;
+      }
+      Track track = tracks.get(bus.getId());
+      if (track == null) {
+        track = new Track();
+        tracks.put(bus.getId(), track);
+      }
+      track.record(bus, nowMs);
+    }
+    Iterator<Track> iterator = tracks.values().iterator();
+    while (iterator.hasNext()) {
+      if (nowMs - iterator.next().receivedAtMs > MAX_FIX_AGE_MS) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Estimates when the buses on <code>route</code> will next reach <code>stop</code>.
+   *
+   * @param route the route
+   * @param stop  a stop on the route
+   * @param nowMs the current time
+   * @return the estimated departures, or null if they cannot be trusted
+   */
+  Departure estimate(Route route, Stop stop, long nowMs) {
+    if (route.getPlot() == null) {
+      return null;
+    }
+    RouteLine line = route.getPlot().getLine();
+    List<Long> arrivals = new ArrayList<>();
+    for (Track track : tracks.values()) {
+      if (!route.getShortName().equals(track.shortName)
+          || nowMs - track.receivedAtMs > MAX_FIX_AGE_MS) {
+        continue;
+      }
+      if (!track.project(line)) {
+        continue;
+      }
+      double speed = track.speed(line);
+      if (speed < MIN_SPEED_MPS) {
+        continue;
+      }
+      double distance = line.distanceTo(track.distances[track.index(track.count - 1)], stop);
+      if (distance == RouteLine.OFF_ROUTE) {
+        continue;
+      }
+      long travelMs = (long) (distance / speed * 1000);
+      if (travelMs <= MAX_HORIZON_MS) {
+        arrivals.add(track.receivedAtMs + travelMs);
+      }
+    }
+    if (arrivals.isEmpty()) {
+      return null;
+    }
+
+    Collections.sort(arrivals);
+    SimpleDateFormat format = new SimpleDateFormat(LABEL_FORMAT, Locale.US);
+    format.setTimeZone(DepartureFactory.TIME_ZONE);
+    int[] times = new int[arrivals.size()];
+    String[] labels = new String[arrivals.size()];
+    for (int i = 0; i < times.length; i++) {
+      times[i] = (int) (arrivals.get(i) / MINUTE_MS);
+      labels[i] = ESTIMATE_PREFIX + format.format(new Date(times[i] * MINUTE_MS));
+    }
+    return new Departure(route.getFullName(), times, labels);
+  }
+
+  /**
+   * Returns <code>departures</code> from BT4U with <code>estimated</code> in front of the times
+   * of its route. Those up to {@link #SAME_BUS_MINUTES} after the last estimate are dropped, they
+   * are for the buses already estimated.
+   *
+   * @param estimated  an estimate
+   * @param departures departures from BT4U
+   * @return the merged departures
+   */
+  static List<Departure> merge(Departure estimated, List<Departure> departures) {
+    List<Departure> merged = new ArrayList<>(departures.size() + 1);
+    boolean mergedEstimate = false;
+    int after = estimated.getTime(estimated.size() - 1) + SAME_BUS_MINUTES;
+    for (Departure departure : departures) {
+      String routeName = departure.getRouteName();
+      if (mergedEstimate || (routeName == null ? estimated.getRouteName() != null
+          : !routeName.equals(estimated.getRouteName()))) {
+        merged.add(departure);
+        continue;
+      }
+      int later = 0;
+      while (later < departure.size() && departure.getTime(later) <= after) {
+        later++;
+      }
+      int size = estimated.size() + departure.size() - later;
+      int[] times = new int[size];
+      String[] labels = new String[size];
+      for (int i = 0; i < estimated.size(); i++) {
+        times[i] = estimated.getTime(i);
+        labels[i] = estimated.getLabel(i);
+      }
+      for (int i = estimated.size(); i < size; i++) {
+        times[i] = departure.getTime(later + i - estimated.size());
+        labels[i] = departure.getLabel(later + i - estimated.size());
+      }
+      merged.add(new Departure(routeName, times, labels));
+      mergedEstimate = true;
+    }
+    if (!mergedEstimate) {
+      merged.add(estimated);
+    }
+    return merged;
+  }
+
+  /**
+   * The last fixes of a bus, oldest first, in a ring.
+   */
+  private static class Track {
+
+    private final double[] latitudes = new double[HISTORY_SIZE];
+
+    private final double[] longitudes = new double[HISTORY_SIZE];
+
+    private final long[] timestamps = new long[HISTORY_SIZE];
+
+    /**
+     * Distance of each fix along the route, as of the last {@link #project(RouteLine)}.
+     */
+    private final double[] distances = new double[HISTORY_SIZE];
+
+    private int start;
+
+    private int count;
+
+    private String shortName;
+
+    private long receivedAtMs;
+
+    void record(Bus bus, long nowMs) {
+      if (!bus.getRoute().getShortName().equals(shortName)) {
+        // History on another route does not tell how fast this one goes
+        shortName = bus.getRoute().getShortName();
+        count = 0;
+      } else if (count > 0 && timestamps[index(count - 1)] >= bus.getTimestamp()) {
+        return;
+      }
+      if (count == HISTORY_SIZE) {
+        start = (start + 1) % HISTORY_SIZE;
+        count--;
+      }
+      int index = index(count++);
+      latitudes[index] = bus.getLatitude();
+      longitudes[index] = bus.getLongitude();
+      timestamps[index] = bus.getTimestamp();
+      receivedAtMs = nowMs;
+    }
+
+    /**
+     * Snaps every fix onto <code>line</code>, each near the one before so that a route doubling
+     * back along a street is followed leg by leg.
+     *
+     * @return false if some fix is off the route
+     */
+    boolean project(RouteLine line) {
+      double previous = RouteLine.OFF_ROUTE;
+      for (int i = 0; i < count; i++) {
+        int index = index(i);
+        previous = line.project(latitudes[index], longitudes[index], previous);
+        if (previous == RouteLine.OFF_ROUTE) {
+          return false;
+        }
+        distances[index] = previous;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the average speed along <code>line</code> over the history, once projected onto it,
+     * 0 if it does not span {@link #MIN_HISTORY_MS}.
+     */
+    double speed(RouteLine line) {
+      double distance = 0;
+      long elapsed = 0;
+      for (int i = 1; i < count; i++) {
+        int index = index(i);
+        long interval = timestamps[index] - timestamps[index(i - 1)];
+        double step = line.between(distances[index(i - 1)], distances[index]);
+        // Jitter backwards along a loop looks like going all the way around
+        if (step != RouteLine.OFF_ROUTE && step <= MAX_SPEED_MPS * interval / 1000) {
+          distance += step;
+        }
+        elapsed += interval;
+      }
+      return elapsed < MIN_HISTORY_MS ? 0 : distance / elapsed * 1000;
+    }
+
+    int index(int i) {
+      return (start + i) % HISTORY_SIZE;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The buses last reported by BT4U, kept as one mutable {@link Bus} per bus id.
+ * <p/>
+ * The {@link BusFactory} updates the fleet in place on every poll: buses still running are
+ * updated field by field, new ones take a record left by a bus that went away, and nothing else
+ * is allocated once the fleet has seen its largest poll. What changed on each bus is available
+ * from {@link Bus#getChanges()} until the next update.
+ * <p/>
+ * A fleet is meant to be updated and read from the main thread only.
+ *
+ * @author Ben Sechrist
+ */
+public class Fleet {
+
+  private ArrayList<Bus> buses = new ArrayList<>();
+
+  /**
+   * Buses of the previous poll not matched yet by the current one, null once matched.
+   */
+  private ArrayList<Bus> previous = new ArrayList<>();
+
+  /**
+   * Records of buses that went away, reused for new ones.
+   */
+  private final ArrayList<Bus> spare = new ArrayList<>();
+
+  /**
+   * Where in {@link #previous} to look for the next bus. Polls usually list buses in the same
+   * order, so the next bus is most often found right away.
+   */
+  private int cursor;
+
+  private int removedCount;
+
+  /**
+   * Returns the buses of the last poll, in the order BT4U listed them. The list is reused by the
+   * next update and should not be modified.
+   */
+  public List<Bus> getBuses() {
+    return buses;
+  }
+
+  /**
+   * Returns how many buses appeared, moved or went away in the last poll.
+   */
+  public int getChangeCount() {
+    int changes = removedCount;
+    for (int i = 0; i < buses.size(); i++) {
+      if ((buses.get(i).getChanges() & (Bus.ADDED | Bus.MOVED)) != 0) {
+        changes++;
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Forgets every bus, the next poll reports all of them as added.
+   */
+  public void clear() {
+    for (int i = 0; i < buses.size(); i++) {
+      spare.add(buses.get(i));
+    }
+    buses.clear();
+    removedCount = 0;
+  }
+
+  /**
+   * Starts a poll, every bus is assumed gone until {@link #take(JsonScanner)} finds it again.
+   */
+  void begin() {
+    ArrayList<Bus> swap = previous;
+    previous = buses;
+    buses = swap;
+    buses.clear();
+    for (int i = 0; i < previous.size(); i++) {
+      previous.get(i).resetChanges(0);
+    }
+    cursor = 0;
+  }
+
+  /**
+   * Returns the record for the bus whose id is the last string read by <code>scanner</code>,
+   * adding it to this poll.
+   */
+  Bus take(JsonScanner scanner) {
+    int size = previous.size();
+    for (int i = 0; i < size; i++) {
+      int index = (cursor + i) % size;
+      Bus bus = previous.get(index);
+      if (bus != null && scanner.stringEquals(bus.getId())) {
+        previous.set(index, null);
+        cursor = index + 1;
+        buses.add(bus);
+        return bus;
+      }
+    }
+    Bus bus = spare.isEmpty() ? new Bus(null) : spare.remove(spare.size() - 1);
+    bus.setId(scanner.string());
+    bus.setRoute(null);
+    bus.setLastStopCode(null);
+    bus.setLastStopName(null);
+    bus.resetChanges(Bus.ADDED);
+    buses.add(bus);
+    return bus;
+  }
+
+  /**
+   * Ends a poll, buses that were not taken went away.
+   */
+  void end() {
+    removedCount = 0;
+    for (int i = 0; i < previous.size(); i++) {
+      Bus bus = previous.get(i);
+      if (bus != null) {
+        spare.add(bus);
+        removedCount++;
+      }
+    }
+    previous.clear();
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal JSON scanner working straight on a UTF-8 response body, for the parsers that run on
+ * every poll and should not allocate in steady state.
+ * <p/>
+ * Unlike {@link com.google.gson.stream.JsonReader} names and strings are not turned into
+ * {@link String}s as they are read. The last string read is compared in place with
+ * {@link #stringEquals(String)} and only decoded when {@link #string()} is called. Numbers are
+ * parsed without allocating whenever they fit in a double exactly, which covers coordinates.
+ *
+ * @author Ben Sechrist
+ */
+final class JsonScanner {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+      1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  /**
+   * Significant digits that always fit in a double's mantissa.
+   */
+  private static final int MAX_EXACT_DIGITS = 15;
+
+  private final byte[] data;
+
+  private int pos = 0;
+
+  private int stringStart;
+
+  private int stringEnd;
+
+  /**
+   * Whether the last string has neither escapes nor non ASCII characters.
+   */
+  private boolean plain;
+
+  JsonScanner(byte[] data) {
+    this.data = data;
+  }
+
+  int position() {
+    return pos;
+  }
+
+  void rewind(int position) {
+    pos = position;
+  }
+
+  void beginArray() throws IOException {
+    expect('[');
+  }
+
+  void endArray() throws IOException {
+    expect(']');
+  }
+
+  void beginObject() throws IOException {
+    expect('{');
+  }
+
+  void endObject() throws IOException {
+    expect('}');
+  }
+
+  /**
+   * Returns true if the current array or object has another element, consuming the separator.
+   */
+  boolean hasNext() throws IOException {
+    byte c = peek();
+    if (c == ']' || c == '}') {
+      return false;
+    }
+    if (c == ',') {
+      pos++;
+      peek();
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next name, which {@link #stringEquals(String)} then compares against.
+   */
+  void nextName() throws IOException {
+    nextString();
+    expect(':');
+  }
+
+  /**
+   * Reads the next string value, which {@link #stringEquals(String)} then compares against.
+   */
+  void nextString() throws IOException {
+    expect('"');
+    stringStart = pos;
+    plain = true;
+    while (pos < data.length) {
+      byte c = data[pos];
+      if (c == '"') {
+        stringEnd = pos++;
+        return;
+      }
+      if (c == '\\') {
+        plain = false;
+        pos++;
+        if (pos < data.length && data[pos] == 'u') {
+          unicodeEscape();
+        }
+      } else if (c < 0) {
+        plain = false;
+      }
+      pos++;
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  /**
+   * Returns where the last name or string read starts, past its opening quote.
+   */
+  int stringStart() {
+    return stringStart;
+  }
+
+  /**
+   * Returns where the last name or string read ends, at its closing quote.
+   */
+  int stringEnd() {
+    return stringEnd;
+  }
+
+  /**
+   * Returns whether the last name or string read has neither escapes nor non ASCII characters.
+   */
+  boolean isPlain() {
+    return plain;
+  }
+
+  /**
+   * Makes a string read earlier, from <code>start</code> to <code>end</code> as returned by
+   * {@link #stringStart()} and {@link #stringEnd()}, the last string read.
+   */
+  void select(int start, int end, boolean plain) {
+    stringStart = start;
+    stringEnd = end;
+    this.plain = plain;
+  }
+
+  /**
+   * Returns true if the last name or string read is <code>value</code>. Never true for null.
+   */
+  boolean stringEquals(String value) {
+    if (value == null) {
+      return false;
+    }
+    if (!plain) {
+      return value.equals(string());
+    }
+    int length = stringEnd - stringStart;
+    if (value.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (value.charAt(i) != data[stringStart + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decodes the last name or string read.
+   */
+  String string() {
+    String raw = new String(data, stringStart, stringEnd - stringStart, UTF_8);
+    if (plain || raw.indexOf('\\') < 0) {
+      return raw;
+    }
+    StringBuilder unescaped = new StringBuilder(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      if (c != '\\' || i + 1 == raw.length()) {
+        unescaped.append(c);
+        continue;
+      }
+      c = raw.charAt(++i);
+      switch (c) {
+        case 'b':
+          unescaped.append('\b');
+          break;
+        case 'f':
+          unescaped.append('\f');
+          break;
+        case 'n':
+          unescaped.append('\n');
+          break;
+        case 'r':
+          unescaped.append('\r');
+          break;
+        case 't':
+          unescaped.append('\t');
+          break;
+        case 'u':
+          // Checked by nextString()
+          if (i + 4 < raw.length()) {
+            unescaped.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+            i += 4;
+          }
+          break;
+        default:
+          unescaped.append(c);
+          break;
+      }
+    }
+    return unescaped.toString();
+  }
+
+  /**
+   * Consumes a <code>null</code> value if that is what comes next.
+   *
+   * @return true if the value was null
+   */
+  boolean nextNull() throws IOException {
+    if (peek() == 'n') {
+      literal("null");
+      return true;
+    }
+    return false;
+  }
+
+  boolean nextBoolean() throws IOException {
+    if (peek() == 't') {
+      literal("true");
+      return true;
+    }
+    literal("false");
+    return false;
+  }
+
+  int nextInt() throws IOException {
+    long value = nextLong();
+    if (value != (int) value) {
+      throw syntaxError("Expected an int");
+    }
+    return (int) value;
+  }
+
+  long nextLong() throws IOException {
+    int start = number();
+    boolean negative = data[start] == '-';
+    long value = 0;
+    for (int i = negative ? start + 1 : start; i < pos; i++) {
+      byte c = data[i];
+      if (c < '0' || c > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+        throw syntaxError("Expected a long");
+      }
+      value = value * 10 + (c - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  double nextDouble() throws IOException {
+    int start = number();
+    int i = start;
+    boolean negative = data[i] == '-';
+    if (negative) {
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean fraction = false;
+    for (; i < pos; i++) {
+      byte c = data[i];
+      if (c >= '0' && c <= '9') {
+        if (mantissa == 0 && c == '0' && !fraction) {
+          continue;
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (fraction) {
+          exponent--;
+        }
+      } else if (c == '.' && !fraction) {
+        fraction = true;
+      } else {
+        break;
+      }
+    }
+    // Exact when both the digits and the power of ten are exact doubles, otherwise let the
+    // platform round it
+    if (i == pos && digits <= MAX_EXACT_DIGITS && -exponent < POWERS_OF_TEN.length) {
+      double value = mantissa / POWERS_OF_TEN[-exponent];
+      return negative ? -value : value;
+    }
+    try {
+      return Double.parseDouble(new String(data, start, pos - start, UTF_8));
+    } catch (NumberFormatException e) {
+      throw syntaxError("Expected a double");
+    }
+  }
+
+  /**
+   * Skips the next value, whatever it is.
+   */
+  void skipValue() throws IOException {
+    byte c = peek();
+    if (c == '"') {
+      nextString();
+    } else if (c == '{' || c == '[') {
+      int depth = 0;
+      do {
+        c = peek();
+        if (c == '"') {
+          nextString();
+          continue;
+        }
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+        pos++;
+      } while (depth > 0);
+    } else if (c == 'n') {
+      literal("null");
+    } else if (c == 't' || c == 'f') {
+      nextBoolean();
+    } else {
+      number();
+    }
+  }
+
+  /**
+   * Moves past the next number, returning where it starts.
+   */
+  private int number() throws IOException {
+    byte c = peek();
+    int start = pos;
+    while (pos < data.length && ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'
+        || c == 'e' || c == 'E')) {
+      c = ++pos < data.length ? data[pos] : 0;
+    }
+    if (pos == start) {
+      throw syntaxError("Expected a number");
+    }
+    return start;
+  }
+
+  /**
+   * Checks the four hex digits following the <code>u</code> of an escape, which
+   * {@link #string()} decodes without checking.
+   */
+  private void unicodeEscape() throws IOException {
+    for (int i = 1; i <= 4; i++) {
+      byte c = pos + i < data.length ? data[pos + i] : 0;
+      if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+        throw syntaxError("Invalid unicode escape");
+      }
+    }
+    pos += 4;
+  }
+
+  private void literal(String literal) throws IOException {
+    peek();
+    for (int i = 0; i < literal.length(); i++, pos++) {
+      if (pos == data.length || data[pos] != literal.charAt(i)) {
+        throw syntaxError("Expected " + literal);
+      }
+    }
+  }
+
+  private void expect(char c) throws IOException {
+    if (peek() != c) {
+      throw syntaxError("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  /**
+   * Skips whitespace and returns the next byte without consuming it.
+   */
+  private byte peek() throws IOException {
+    while (pos < data.length) {
+      byte c = data[pos];
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+      pos++;
+    }
+    throw syntaxError("Unexpected end of input");
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException(String.format("%s at offset %d", message, pos));
+  }
+}
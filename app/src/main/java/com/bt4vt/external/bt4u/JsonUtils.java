@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Helpers shared by the streaming {@link JsonReader} and {@link JsonScanner} parsers in the bt4u
+ * factories.
+ *
+ * @author Ben Sechrist
+ */
+final class JsonUtils {
+
+  private JsonUtils() {
+  }
+
+  /**
+   * Reads the next string value, treating a JSON <code>null</code> as a missing value.
+   *
+   * @param reader the reader positioned at a value
+   * @return the string or null
+   * @throws IOException if the value could not be read
+   */
+  static String nextStringOrNull(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+
+  /**
+   * Verifies that a field every BT4U entity of this type carries was present.
+   *
+   * @param value  the value read for the field
+   * @param entity the entity being parsed, used in the error message
+   * @param field  the field name
+   * @throws IOException if the value is missing
+   */
+  static void requireField(Object value, String entity, String field) throws IOException {
+    requireField(value != null, entity, field);
+  }
+
+  /**
+   * Verifies that a field every BT4U entity of this type carries was present.
+   *
+   * @param present whether the field was read
+   * @param entity  the entity being parsed, used in the error message
+   * @param field   the field name
+   * @throws IOException if the field is missing
+   */
+  static void requireField(boolean present, String entity, String field) throws IOException {
+    if (!present) {
+      throw new IOException(String.format("%s is missing required field '%s'", entity, field));
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import android.support.v4.util.LruCache;
+
+import com.google.inject.Singleton;
+
+/**
+ * In memory cache of parsed BT4U results, so that going back to a route or stop list already
+ * seen skips both the network and the parsing. Refreshes BT4U answers with 304 reuse them too.
+ * <p/>
+ * Entries expire after the time to live they were put with. The cache is bounded by the total
+ * weight of its entries, roughly the number of domain objects they hold, and evicts the least
+ * recently used ones first. Values are shared, callers must not modify them.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+class ParsedObjectCache {
+
+  static final int MAX_WEIGHT = 5000;
+
+  /**
+   * Key of the list of every route.
+   */
+  static final String ROUTES_KEY = "routes";
+
+  /**
+   * Prefix of the keys of single routes, along with their stops.
+   */
+  static final String ROUTE_KEY_PREFIX = "route/";
+
+  /**
+   * Key of the list of every stop.
+   */
+  static final String STOPS_KEY = "stops";
+
+  private final LruCache<String, Entry> entries = new LruCache<String, Entry>(MAX_WEIGHT) {
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+      return entry.weight;
+    }
+  };
+
+  /**
+   * Returns the value cached under <code>key</code> if it hasn't expired yet.
+   *
+   * @param key the cache key
+   * @return the cached value, or null
+   */
+  @SuppressWarnings("unchecked")
+  synchronized <T> T get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt <= now()) {
+      entries.remove(key);
+      return null;
+    }
+    return (T) entry.value;
+  }
+
+  /**
+   * Caches <code>value</code> under <code>key</code>.
+   *
+   * @param key    the cache key
+   * @param value  the parsed value
+   * @param weight the number of objects held by the value, at least 1
+   * @param ttlMs  how long the value stays valid
+   */
+  synchronized void put(String key, Object value, int weight, long ttlMs) {
+    entries.put(key, new Entry(value, Math.max(1, weight), now() + ttlMs));
+  }
+
+  /**
+   * Removes the value cached under <code>key</code>, if any.
+   *
+   * @param key the cache key
+   */
+  synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Removes every value cached under a key starting with <code>prefix</code>.
+   *
+   * @param prefix the key prefix
+   */
+  synchronized void removeAll(String prefix) {
+    for (String key : entries.snapshot().keySet()) {
+      if (key.startsWith(prefix)) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.evictAll();
+  }
+
+  /**
+   * Returns the key of the route with <code>shortName</code>.
+   */
+  static String routeKey(String shortName) {
+    return ROUTE_KEY_PREFIX + shortName;
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static class Entry {
+
+    private final Object value;
+
+    private final int weight;
+
+    private final long expiresAt;
+
+    Entry(Object value, int weight, long expiresAt) {
+      this.value = value;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -16,33 +16,73 @@
 
 package com.bt4vt.external.bt4u;
 
+import android.support.v4.util.LruCache;
+
 import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonArrayRequest;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.bt4vt.R;
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import roboguice.inject.InjectResource;
 
 /**
  * Creates {@link com.android.volley.Request} objects.
+ * <p/>
+ * Every request reads its response body inside
+ * {@link Request#parseNetworkResponse(NetworkResponse)}, which Volley runs on its network
+ * dispatcher thread, so listeners on the main thread only receive ready-made results. Most stream
+ * it into domain objects, bus polls are read into a {@link BusPoll} for the main thread to apply
+ * to a {@link Fleet} in place.
  *
  * @author Ben Sechrist
  */
 @Singleton
 class RequestFactory {
 
+  private static final String PROTOCOL_CHARSET = "utf-8";
+
+  /**
+   * How long route lists are kept, both parsed in memory and raw in Volley's disk cache.
+   */
+  static final long ROUTES_CACHE_TTL_MS = TimeUnit.HOURS.toMillis(12);
+
+  /**
+   * How long a route's details, its plot and stops, are kept.
+   */
+  static final long ROUTE_CACHE_TTL_MS = TimeUnit.HOURS.toMillis(12);
+
+  /**
+   * How long stops are kept.
+   */
+  static final long STOPS_CACHE_TTL_MS = TimeUnit.HOURS.toMillis(12);
+
+  /**
+   * Number of urls whose validators are kept for revalidation.
+   */
+  static final int MAX_VALIDATED = 64;
+
   @InjectResource(R.string.bt4u_base_url)
   String BT4U_BASE_URL;
 
@@ -52,6 +92,29 @@ class RequestFactory {
   @InjectResource(R.string.bt4u_api_key)
   private String API_KEY;
 
+  @Inject
+  private DepartureFactory departureFactory;
+
+  @Inject
+  private RouteFactory routeFactory;
+
+  @Inject
+  private StopFactory stopFactory;
+
+  @Inject
+  private CatalogManifestFactory catalogManifestFactory;
+
+  @Inject
+  private BusFactory busFactory;
+
+  @Inject
+  private ParsedObjectCache parsedObjectCache;
+
+  @Inject
+  RequestService requestService;
+
+  private final LruCache<String, Validated> validated = new LruCache<>(MAX_VALIDATED);
+
   private final String BT4U_BUS_URI = "buses?route=%s";
 
   private final String BT4U_DEPARTURE_URI = "departures?route=%s&stopCode=%s";
@@ -62,6 +125,8 @@ class RequestFactory {
 
   private final String BT4U_STOP_URI = "stops/%s";
 
+  private static final String BT4U_MANIFEST_URI = "manifest";
+
   private URI getUrl(String uri) throws URISyntaxException {
     return new URI(BT4U_BASE_URL).resolve(uri);
   }
@@ -72,87 +137,525 @@ class RequestFactory {
     return headers;
   }
 
-  private class BT4VTArrayRequest extends JsonArrayRequest {
-    BT4VTArrayRequest(String url, Response.Listener<JSONArray> listener,
-                      Response.ErrorListener errorListener) {
-      super(url, listener, errorListener);
+  /**
+   * GET request to BT4U whose result can be shared with identical requests made while it is in
+   * flight, see {@link #addFollower(BT4VTRequest)}.
+   * <p/>
+   * Requests created with a cache time to live are kept in Volley's disk cache for that long,
+   * whatever caching headers BT4U sends, so they survive the process being killed. Their ETag and
+   * Last-Modified validators are remembered, so the next request for the same url, even one
+   * skipping the cache, is conditional. Requests skipping the cache still write the body they
+   * download to it, so it always matches the remembered validators.
+   * <p/>
+   * A 304, or a fresh body in Volley's cache, is answered with the result already in the
+   * {@link ParsedObjectCache} when there is one, without parsing anything. Failing that the body
+   * in Volley's cache is parsed. Should that be gone too, the validators are dropped and the
+   * request is sent again unconditionally, so callers only ever see the downloaded result.
+   * <p/>
+   * Followers are delivered a {@link #copy(Object)} of the result, so that each caller owns the
+   * list it receives. The domain objects in it are shared and must not be modified.
+   */
+  abstract class BT4VTRequest<T> extends Request<T> {
+
+    private final Response.Listener<T> listener;
+
+    private final long cacheTtlMs;
+
+    private final List<BT4VTRequest<T>> followers = new ArrayList<>();
+
+    private boolean completed = false;
+
+    private volatile boolean unchanged = false;
+
+    /**
+     * Whether validators are sent, false for a request sent again after BT4U answered 304 with
+     * nothing to reuse.
+     */
+    private final boolean conditional;
+
+    /**
+     * Whether the error about to be delivered is that 304, which is answered by sending the
+     * request again instead.
+     */
+    private volatile boolean resend = false;
+
+    BT4VTRequest(String url, Response.Listener<T> listener, Response.ErrorListener errorListener) {
+      this(url, 0, listener, errorListener);
+    }
+
+    BT4VTRequest(String url, long cacheTtlMs, Response.Listener<T> listener,
+                 Response.ErrorListener errorListener) {
+      this(url, cacheTtlMs, true, listener, errorListener);
+    }
+
+    private BT4VTRequest(String url, long cacheTtlMs, boolean conditional,
+                         Response.Listener<T> listener, Response.ErrorListener errorListener) {
+      super(Method.GET, url, errorListener);
+      this.listener = listener;
+      this.cacheTtlMs = cacheTtlMs;
+      this.conditional = conditional;
     }
 
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-      return getBT4VTHeaders();
+      Map<String, String> headers = getBT4VTHeaders();
+      Validated previous = conditional && cacheTtlMs > 0 ? validated.get(getUrl()) : null;
+      if (previous != null) {
+        if (previous.etag != null) {
+          headers.put("If-None-Match", previous.etag);
+        }
+        if (previous.lastModified != null) {
+          headers.put("If-Modified-Since", previous.lastModified);
+        }
+      }
+      return headers;
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+      // Canceled while on the network, Volley won't deliver it so don't bother parsing
+      if (isCanceled()) {
+        return Response.error(new VolleyError("Canceled before parsing"));
+      }
+      boolean notModified = response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+      if (notModified) {
+        unchanged = true;
+      }
+      if (unchanged && getParsedKey() != null) {
+        T parsed = parsedObjectCache.get(getParsedKey());
+        if (parsed != null) {
+          return Response.success(copy(parsed),
+              response.data == null ? null : cacheEntry(response));
+        }
+      }
+      if (notModified && response.data == null) {
+        // Skipped the cache, so Volley didn't fill in the body it has on disk
+        response = cachedResponse();
+        if (response == null) {
+          validated.remove(getUrl());
+          resend = conditional;
+          return Response.error(new VolleyError("Not modified, but nothing to reuse"));
+        }
+      }
+      try {
+        T value = parse(response.data,
+            HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET));
+        Cache.Entry entry = cacheEntry(response);
+        if (cacheTtlMs > 0 && !notModified) {
+          String etag = response.headers.get("ETag");
+          String lastModified = response.headers.get("Last-Modified");
+          if (etag != null || lastModified != null) {
+            validated.put(getUrl(), new Validated(etag, lastModified));
+            if (!shouldCache()) {
+              requestService.getRequestQueue().getCache().put(getCacheKey(), entry);
+            }
+          }
+        }
+        return Response.success(value, entry);
+      } catch (IOException | IllegalStateException | NumberFormatException e) {
+        return Response.error(new ParseError(e));
+      }
+    }
+
+    @Override
+    public void addMarker(String tag) {
+      super.addMarker(tag);
+      // Volley's cache dispatcher answers with a fresh copy from disk
+      if ("cache-hit".equals(tag)) {
+        unchanged = true;
+      }
+    }
+
+    /**
+     * Returns whether the result was read from a body already in Volley's cache, because it was
+     * fresh or BT4U answered 304, rather than from a body just downloaded.
+     */
+    boolean isUnchanged() {
+      return unchanged;
+    }
+
+    @Override
+    protected void deliverResponse(T response) {
+      List<BT4VTRequest<T>> followers = complete();
+      listener.onResponse(response);
+      for (BT4VTRequest<T> follower : followers) {
+        if (!follower.isCanceled()) {
+          follower.deliverResponse(copy(response));
+        }
+      }
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+      if (resend) {
+        // The body has to be downloaded after all, the result is delivered once it is
+        resend = false;
+        unchanged = false;
+        requestService.addToRequestQueue(new Unconditional(),
+            getTag() instanceof RequestToken ? (RequestToken) getTag() : null);
+        return;
+      }
+      List<BT4VTRequest<T>> followers = complete();
+      super.deliverError(error);
+      for (BT4VTRequest<T> follower : followers) {
+        if (!follower.isCanceled()) {
+          follower.deliverError(error);
+        }
+      }
+    }
+
+    /**
+     * Has <code>follower</code> receive a {@link #copy(Object)} of this request's result instead
+     * of going to the network itself.
+     *
+     * @param follower an identical request
+     * @return false if this request is canceled or already delivered, in which case the follower
+     * has to be sent on its own
+     */
+    synchronized boolean addFollower(BT4VTRequest<T> follower) {
+      if (completed || isCanceled()) {
+        return false;
+      }
+      followers.add(follower);
+      return true;
+    }
+
+    private synchronized List<BT4VTRequest<T>> complete() {
+      completed = true;
+      return followers;
+    }
+
+    /**
+     * Returns the body Volley has on disk for this request, provided it is the one the remembered
+     * validators were taken from.
+     */
+    private NetworkResponse cachedResponse() {
+      Validated previous = validated.get(getUrl());
+      if (previous == null) {
+        return null;
+      }
+      Cache.Entry entry = requestService.getRequestQueue().getCache().get(getCacheKey());
+      if (entry == null || entry.data == null
+          || (previous.etag != null && !previous.etag.equals(entry.etag))) {
+        return null;
+      }
+      return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
+          entry.responseHeaders, true);
+    }
+
+    private Cache.Entry cacheEntry(NetworkResponse response) {
+      Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+      if (cacheTtlMs <= 0) {
+        return entry;
+      }
+      if (entry == null) {
+        // BT4U asked for no caching at all
+        entry = new Cache.Entry();
+        entry.data = response.data;
+        entry.responseHeaders = response.headers;
+        entry.etag = response.headers.get("ETag");
+      }
+      entry.softTtl = entry.ttl = System.currentTimeMillis() + cacheTtlMs;
+      return entry;
+    }
+
+    /**
+     * Returns the key of this request's result in the {@link ParsedObjectCache}, or null if it
+     * isn't kept there.
+     */
+    String getParsedKey() {
+      return null;
+    }
+
+    /**
+     * Returns a copy of <code>result</code> for a follower to own. Results holding nothing a
+     * caller could modify are returned as is.
+     */
+    T copy(T result) {
+      return result;
+    }
+
+    /**
+     * Reads the result delivered to the listener out of the raw response body.
+     *
+     * @param data    the response body
+     * @param charset the charset of the body
+     * @return the parsed result
+     * @throws IOException if the body is not what BT4U is expected to return
+     */
+    abstract T parse(byte[] data, String charset) throws IOException;
+
+    /**
+     * This request sent again without validators, delivering its result as this request's own.
+     */
+    private class Unconditional extends BT4VTRequest<T> {
+
+      Unconditional() {
+        super(BT4VTRequest.this.getUrl(), BT4VTRequest.this.cacheTtlMs, false,
+            new Response.Listener<T>() {
+              @Override
+              public void onResponse(T response) {
+                BT4VTRequest.this.deliverResponse(response);
+              }
+            }, new Response.ErrorListener() {
+              @Override
+              public void onErrorResponse(VolleyError error) {
+                BT4VTRequest.this.deliverError(error);
+              }
+            });
+        setShouldCache(BT4VTRequest.this.shouldCache());
+      }
+
+      @Override
+      T parse(byte[] data, String charset) throws IOException {
+        return BT4VTRequest.this.parse(data, charset);
+      }
     }
   }
 
-  private class BT4VTRequest extends JsonObjectRequest {
-    BT4VTRequest(String url, JSONObject jsonRequest, Response.Listener<JSONObject> listener,
-                 Response.ErrorListener errorListener) {
-      super(url, jsonRequest, listener, errorListener);
+  /**
+   * Request whose response body is streamed through a {@link JsonReader}.
+   */
+  abstract class JsonRequest<T> extends BT4VTRequest<T> {
+
+    JsonRequest(String url, Response.Listener<T> listener, Response.ErrorListener errorListener) {
+      super(url, listener, errorListener);
+    }
+
+    JsonRequest(String url, long cacheTtlMs, Response.Listener<T> listener,
+                Response.ErrorListener errorListener) {
+      super(url, cacheTtlMs, listener, errorListener);
     }
 
     @Override
-    public Map<String, String> getHeaders() throws AuthFailureError {
-      return getBT4VTHeaders();
+    final T parse(byte[] data, String charset) throws IOException {
+      JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(data),
+          charset));
+      try {
+        return parse(reader);
+      } finally {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // Backed by a byte array, nothing to release
+        }
+      }
+    }
+
+    /**
+     * Reads the result delivered to the listener out of the response body.
+     *
+     * @param reader reader over the response body
+     * @return the parsed result
+     * @throws IOException if the body is not what BT4U is expected to return
+     */
+    abstract T parse(JsonReader reader) throws IOException;
+  }
+
+  /**
+   * Request for a list streamed through a {@link JsonReader}, each follower getting a list of its
+   * own.
+   */
+  abstract class JsonListRequest<E> extends JsonRequest<List<E>> {
+
+    JsonListRequest(String url, Response.Listener<List<E>> listener,
+                    Response.ErrorListener errorListener) {
+      super(url, listener, errorListener);
+    }
+
+    JsonListRequest(String url, long cacheTtlMs, Response.Listener<List<E>> listener,
+                    Response.ErrorListener errorListener) {
+      super(url, cacheTtlMs, listener, errorListener);
+    }
+
+    @Override
+    List<E> copy(List<E> result) {
+      return new ArrayList<>(result);
+    }
+  }
+
+  /**
+   * Request for a poll of buses, read by the {@link BusFactory} on the network thread. The poll
+   * is handed back to the factory once every listener, followers included, has applied it.
+   */
+  private class BusPollRequest extends BT4VTRequest<BusPoll> {
+
+    private volatile BusPoll parsed;
+
+    BusPollRequest(String url, Response.Listener<BusPoll> listener,
+                   Response.ErrorListener errorListener) {
+      super(url, listener, errorListener);
+    }
+
+    @Override
+    BusPoll parse(byte[] data, String charset) throws IOException {
+      parsed = busFactory.parse(data, charset);
+      return parsed;
+    }
+
+    @Override
+    protected void deliverResponse(BusPoll response) {
+      super.deliverResponse(response);
+      // Followers are delivered the poll of the request they follow, which recycles it
+      if (response == parsed) {
+        busFactory.recycle(response);
+      }
     }
   }
 
-  public JsonArrayRequest buses(String route, Response.Listener<JSONArray> listener,
+  /**
+   * Requests the buses on <code>route</code>. The poll is delivered for
+   * {@link BusFactory#update(Fleet, BusPoll)} to apply to the fleet on the main thread, and
+   * should not be held past that.
+   */
+  public Request<BusPoll> buses(String route, Response.Listener<BusPoll> listener,
                                 Response.ErrorListener errorListener) throws URISyntaxException {
     try {
       URI url = getUrl(String.format(BT4U_BUS_URI, URLEncoder.encode(route, "UTF-8")));
-      return new BT4VTArrayRequest(url.toString(), listener, errorListener);
+      return new BusPollRequest(url.toString(), listener, errorListener);
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public JsonArrayRequest departures(String route, String stopCode,
-                                     Response.Listener<JSONArray> listener,
-                                     Response.ErrorListener errorListener)
+  public Request<List<Departure>> departures(String route, String stopCode,
+                                             Response.Listener<List<Departure>> listener,
+                                             Response.ErrorListener errorListener)
       throws URISyntaxException {
     try {
       URI url = getUrl(String.format(BT4U_DEPARTURE_URI,
           URLEncoder.encode(route, "UTF-8"),
           URLEncoder.encode(stopCode, "UTF-8")));
-      return new BT4VTArrayRequest(url.toString(), listener, errorListener);
+      return departuresRequest(url, listener, errorListener);
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public JsonArrayRequest departures(String stopCode, Response.Listener<JSONArray> listener,
-                                     Response.ErrorListener errorListener)
+  public Request<List<Departure>> departures(String stopCode,
+                                             Response.Listener<List<Departure>> listener,
+                                             Response.ErrorListener errorListener)
       throws URISyntaxException {
     try {
       URI url = getUrl(String.format(BT4U_DEPARTURE_URI_NO_ROUTE,
           URLEncoder.encode(stopCode, "UTF-8")));
-      return new BT4VTArrayRequest(url.toString(), listener, errorListener);
+      return departuresRequest(url, listener, errorListener);
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e);
     }
   }
 
-  public JsonArrayRequest routes(Response.Listener<JSONArray> listener,
-                                 Response.ErrorListener errorListener) throws URISyntaxException {
+  public BT4VTRequest<List<Route>> routes(Response.Listener<List<Route>> listener,
+                                          Response.ErrorListener errorListener)
+      throws URISyntaxException {
     URI url = getUrl(String.format(BT4U_ROUTE_URI, ""));
-    return new BT4VTArrayRequest(url.toString(), listener, errorListener);
+    return new JsonListRequest<Route>(url.toString(), ROUTES_CACHE_TTL_MS, listener,
+        errorListener) {
+      @Override
+      List<Route> parse(JsonReader reader) throws IOException {
+        return routeFactory.routes(reader);
+      }
+
+      @Override
+      String getParsedKey() {
+        return ParsedObjectCache.ROUTES_KEY;
+      }
+    };
   }
 
-  public JsonObjectRequest route(String shortName, Response.Listener<JSONObject> listener,
-                                 Response.ErrorListener errorListener) throws URISyntaxException {
+  public BT4VTRequest<Route> route(final String shortName, Response.Listener<Route> listener,
+                                   Response.ErrorListener errorListener)
+      throws URISyntaxException {
     URI url = getUrl(String.format(BT4U_ROUTE_URI, shortName));
-    return new BT4VTRequest(url.toString(), null, listener, errorListener);
+    return new JsonRequest<Route>(url.toString(), ROUTE_CACHE_TTL_MS, listener, errorListener) {
+      @Override
+      Route parse(JsonReader reader) throws IOException {
+        return routeFactory.route(reader);
+      }
+
+      @Override
+      String getParsedKey() {
+        return ParsedObjectCache.routeKey(shortName);
+      }
+
+      @Override
+      Route copy(Route result) {
+        return result.copy();
+      }
+    };
   }
 
-  public JsonArrayRequest stops(Response.Listener<JSONArray> listener,
-                                Response.ErrorListener errorListener) throws URISyntaxException {
+  public BT4VTRequest<List<Stop>> stops(Response.Listener<List<Stop>> listener,
+                                        Response.ErrorListener errorListener)
+      throws URISyntaxException {
     URI url = getUrl(String.format(BT4U_STOP_URI, ""));
-    return new BT4VTArrayRequest(url.toString(), listener, errorListener);
+    return new JsonListRequest<Stop>(url.toString(), STOPS_CACHE_TTL_MS, listener,
+        errorListener) {
+      @Override
+      List<Stop> parse(JsonReader reader) throws IOException {
+        return stopFactory.stops(reader);
+      }
+
+      @Override
+      String getParsedKey() {
+        return ParsedObjectCache.STOPS_KEY;
+      }
+    };
   }
 
-  public JsonObjectRequest stop(String stopCode, Response.Listener<JSONObject> listener,
-                                Response.ErrorListener errorListener) throws URISyntaxException {
+  public BT4VTRequest<Stop> stop(String stopCode, Response.Listener<Stop> listener,
+                                 Response.ErrorListener errorListener) throws URISyntaxException {
     URI url = getUrl(String.format(BT4U_STOP_URI, stopCode));
-    return new BT4VTRequest(url.toString(), null, listener, errorListener);
+    return new JsonRequest<Stop>(url.toString(), STOPS_CACHE_TTL_MS, listener, errorListener) {
+      @Override
+      Stop parse(JsonReader reader) throws IOException {
+        return stopFactory.stop(reader);
+      }
+    };
+  }
+
+  /**
+   * Request for the {@link CatalogManifest}. It is not cached, a stale manifest would hide
+   * changes.
+   */
+  public BT4VTRequest<CatalogManifest> manifest(Response.Listener<CatalogManifest> listener,
+                                                Response.ErrorListener errorListener)
+      throws URISyntaxException {
+    URI url = getUrl(BT4U_MANIFEST_URI);
+    BT4VTRequest<CatalogManifest> request = new JsonRequest<CatalogManifest>(url.toString(),
+        listener, errorListener) {
+      @Override
+      CatalogManifest parse(JsonReader reader) throws IOException {
+        return catalogManifestFactory.manifest(reader);
+      }
+    };
+    request.setShouldCache(false);
+    return request;
+  }
+
+  private Request<List<Departure>> departuresRequest(URI url,
+                                                     Response.Listener<List<Departure>> listener,
+                                                     Response.ErrorListener errorListener) {
+    return new JsonListRequest<Departure>(url.toString(), listener, errorListener) {
+      @Override
+      List<Departure> parse(JsonReader reader) throws IOException {
+        return departureFactory.departures(reader);
+      }
+    };
+  }
+
+  /**
+   * Validators of a full response.
+   */
+  private static class Validated {
+
+    private final String etag;
+
+    private final String lastModified;
+
+    Validated(String etag, String lastModified) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
   }
 }
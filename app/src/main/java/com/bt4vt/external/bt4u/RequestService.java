@@ -18,24 +18,43 @@ package com.bt4vt.external.bt4u;
 
 import android.content.Context;
 
+import com.android.volley.AuthFailureError;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Handles all requests sent to BT4U.
+ * <p/>
+ * Requests can be added with a {@link RequestToken}, which tags them with the current generation
+ * of their group. Starting a new generation, or canceling the group, cancels the queued requests
+ * of the previous one so their results are neither parsed nor delivered.
+ * <p/>
+ * A BT4U request identical to one still in flight, same method, url, headers, caching and token,
+ * does not go to the network. It waits for the first one and receives the same parsed result.
  *
  * @author Ben Sechrist
  */
 @Singleton
-public class RequestService {
+public class RequestService implements RequestQueue.RequestFinishedListener<Object> {
 
-  private RequestQueue requestQueue;
+  RequestQueue requestQueue;
 
   private Context context;
 
+  private final Map<String, RequestToken> tokens = new HashMap<>();
+
+  private final Map<CoalescingKey, RequestFactory.BT4VTRequest<?>> inFlight = new HashMap<>();
+
+  private int requestCount = 0;
+
+  private int coalescedCount = 0;
+
   @Inject
   public RequestService(Context context) {
     this.context = context;
@@ -44,11 +63,164 @@ public class RequestService {
   public RequestQueue getRequestQueue() {
     if (requestQueue == null) {
       requestQueue = Volley.newRequestQueue(context.getApplicationContext());
+      requestQueue.addRequestFinishedListener(this);
     }
     return requestQueue;
   }
 
   public <T> void addToRequestQueue(Request<T> request) {
-    getRequestQueue().add(request);
+    addToRequestQueue(request, null);
+  }
+
+  /**
+   * Adds the <code>request</code> as part of the generation identified by <code>token</code>.
+   * Requests for an already canceled token are dropped.
+   *
+   * @param request the request
+   * @param token   the token of the request's generation, may be null
+   */
+  public <T> void addToRequestQueue(Request<T> request, RequestToken token) {
+    if (token != null) {
+      if (token.isCanceled()) {
+        return;
+      }
+      request.setTag(token);
+    }
+    if (!coalesce(request)) {
+      getRequestQueue().add(request);
+    }
+  }
+
+  /**
+   * Starts a new generation of requests for <code>group</code>, canceling the previous one.
+   *
+   * @param group the request group
+   * @return the token for the new generation
+   */
+  public synchronized RequestToken newToken(String group) {
+    cancel(group);
+    RequestToken token = new RequestToken(group);
+    tokens.put(group, token);
+    return token;
+  }
+
+  /**
+   * Cancels the current generation of requests for <code>group</code>, if any.
+   *
+   * @param group the request group
+   */
+  public synchronized void cancel(String group) {
+    RequestToken token = tokens.remove(group);
+    if (token != null) {
+      token.cancel();
+      getRequestQueue().cancelAll(token);
+    }
+  }
+
+  /**
+   * Returns how many requests have been added.
+   *
+   * @return the number of requests
+   */
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Returns how many requests were served by an identical request already in flight instead of
+   * making their own network call.
+   *
+   * @return the number of requests coalesced
+   */
+  public synchronized int getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  @Override
+  public synchronized void onRequestFinished(Request<Object> request) {
+    CoalescingKey key = CoalescingKey.of(request);
+    if (key != null && inFlight.get(key) == request) {
+      inFlight.remove(key);
+    }
+  }
+
+  /**
+   * Attaches <code>request</code> to an identical request in flight, or records it as in flight.
+   *
+   * @param request the request
+   * @return true if the request will be answered by the one in flight
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <T> boolean coalesce(Request<T> request) {
+    requestCount++;
+    if (!(request instanceof RequestFactory.BT4VTRequest)) {
+      return false;
+    }
+    CoalescingKey key = CoalescingKey.of(request);
+    if (key == null) {
+      return false;
+    }
+    RequestFactory.BT4VTRequest<T> primary = (RequestFactory.BT4VTRequest<T>) inFlight.get(key);
+    if (primary != null && primary.addFollower((RequestFactory.BT4VTRequest<T>) request)) {
+      coalescedCount++;
+      return true;
+    }
+    inFlight.put(key, (RequestFactory.BT4VTRequest<?>) request);
+    return false;
+  }
+
+  /**
+   * What makes two requests identical. Tokens are compared by identity so canceling a generation
+   * never leaves requests of another waiting on it.
+   */
+  private static final class CoalescingKey {
+
+    private final int method;
+    private final String url;
+    private final Map<String, String> headers;
+    private final boolean shouldCache;
+    private final Object tag;
+
+    private CoalescingKey(int method, String url, Map<String, String> headers,
+                          boolean shouldCache, Object tag) {
+      this.method = method;
+      this.url = url;
+      this.headers = headers;
+      this.shouldCache = shouldCache;
+      this.tag = tag;
+    }
+
+    static CoalescingKey of(Request<?> request) {
+      if (request.getMethod() != Request.Method.GET) {
+        return null;
+      }
+      try {
+        return new CoalescingKey(request.getMethod(), request.getUrl(), request.getHeaders(),
+            request.shouldCache(), request.getTag());
+      } catch (AuthFailureError e) {
+        return null;
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      CoalescingKey that = (CoalescingKey) o;
+
+      return method == that.method && shouldCache == that.shouldCache && tag == that.tag
+          && url.equals(that.url) && headers.equals(that.headers);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = method;
+      result = 31 * result + url.hashCode();
+      result = 31 * result + headers.hashCode();
+      result = 31 * result + (shouldCache ? 1 : 0);
+      result = 31 * result + System.identityHashCode(tag);
+      return result;
+    }
   }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+/**
+ * Marks the requests made for one generation of a request group, such as everything drawn on
+ * the map for the selected route.
+ * <p/>
+ * Tokens come from {@link RequestService#newToken(String)}. Starting a new generation cancels the
+ * previous token, which lets listeners tell that their result has been superseded.
+ *
+ * @author Ben Sechrist
+ */
+public final class RequestToken {
+
+  private final String group;
+
+  private volatile boolean canceled = false;
+
+  RequestToken(String group) {
+    this.group = group;
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  /**
+   * Returns whether a newer generation of this token's group has started, or the group was
+   * canceled.
+   *
+   * @return true if results for this token should be dropped
+   */
+  public boolean isCanceled() {
+    return canceled;
+  }
+
+  void cancel() {
+    canceled = true;
+  }
+
+  /**
+   * Null safe version of {@link #isCanceled()}, requests without a token are never canceled.
+   *
+   * @param token the token, may be null
+   * @return true if the token is canceled
+   */
+  static boolean isCanceled(RequestToken token) {
+    return token != null && token.isCanceled();
+  }
+}
@@ -18,6 +18,8 @@ package com.bt4vt.external.bt4u;
 
 import android.support.annotation.NonNull;
 
+import com.bt4vt.map.RoutePlot;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,7 +34,7 @@ public class Route implements Comparable<Route> {
 
   private String fullName;
 
-  private String plot;
+  private RoutePlot plot;
 
   private Integer color;
 
@@ -58,11 +60,11 @@ public class Route implements Comparable<Route> {
     this.fullName = fullName;
   }
 
-  public String getPlot() {
+  public RoutePlot getPlot() {
     return plot;
   }
 
-  public void setPlot(String plot) {
+  public void setPlot(RoutePlot plot) {
     this.plot = plot;
   }
 
@@ -82,6 +84,18 @@ public class Route implements Comparable<Route> {
     this.stops = stops;
   }
 
+  /**
+   * Returns a copy of this route with a list of stops of its own. The stops are shared.
+   */
+  Route copy() {
+    Route copy = new Route(shortName);
+    copy.fullName = fullName;
+    copy.plot = plot;
+    copy.color = color;
+    copy.stops = new ArrayList<>(stops);
+    return copy;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
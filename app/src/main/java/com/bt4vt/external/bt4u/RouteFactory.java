@@ -18,18 +18,21 @@ package com.bt4vt.external.bt4u;
 
 import android.graphics.Color;
 
+import com.bt4vt.map.RoutePlotCache;
+import com.google.gson.stream.JsonReader;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Creates {@link Route} objects.
+ * <p/>
+ * Plots are decoded while parsing, through the {@link RoutePlotCache} so that a plot already seen
+ * is not decoded again, and routes never hold on to the encoded string. Routes and their stops are
+ * resolved through the {@link EntityRegistry}.
  *
  * @author Ben Sechrist
  */
@@ -37,39 +40,83 @@ import java.util.List;
 public class RouteFactory {
 
   @Inject
-  private StopFactory stopFactory;
+  StopFactory stopFactory;
+
+  @Inject
+  RoutePlotCache routePlotCache;
+
+  @Inject
+  EntityRegistry entityRegistry;
 
-  public List<Route> routes(JSONArray jsonArray) throws JSONException {
+  /**
+   * Streams {@link Route} objects straight out of <code>reader</code> without building an
+   * intermediate JSON tree.
+   *
+   * @param reader reader positioned at the start of the routes array
+   * @return the routes
+   * @throws IOException if the JSON could not be read
+   */
+  public List<Route> routes(JsonReader reader) throws IOException {
     List<Route> routes = new ArrayList<>();
-    for (int i = 0; i < jsonArray.length(); i++) {
-      JSONObject jsonRoute = jsonArray.getJSONObject(i);
-      Route route = route(jsonRoute);
-      routes.add(route);
+    reader.beginArray();
+    while (reader.hasNext()) {
+      routes.add(route(reader));
     }
+    reader.endArray();
     return routes;
   }
 
-  public Route route(JSONObject jsonRoute) throws JSONException {
-    Route route = new Route(jsonRoute.getString("shortName"));
-    if (jsonRoute.has("fullName")) {
-      route.setFullName(jsonRoute.getString("fullName"));
-    }
-    if (jsonRoute.has("plot")) {
-      route.setPlot(jsonRoute.getString("plot"));
-    }
-    if (jsonRoute.has("plotColor")) {
-      route.setColor(Color.parseColor(String.format("#%s", jsonRoute.getString("plotColor"))));
+  /**
+   * Streams a single {@link Route}, including its stops, out of <code>reader</code>.
+   *
+   * @param reader reader positioned at the start of the route object
+   * @return the route
+   * @throws IOException if the JSON could not be read
+   */
+  public Route route(JsonReader reader) throws IOException {
+    Route route = new Route(null);
+    String plot = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "shortName":
+          route.setShortName(reader.nextString());
+          break;
+        case "fullName":
+          route.setFullName(JsonUtils.nextStringOrNull(reader));
+          break;
+        case "plot":
+          plot = JsonUtils.nextStringOrNull(reader);
+          break;
+        case "plotColor":
+          String plotColor = JsonUtils.nextStringOrNull(reader);
+          if (plotColor != null) {
+            route.setColor(parseColor(plotColor));
+          }
+          break;
+        case "stops":
+          route.setStops(stopFactory.stops(reader));
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
     }
-    if (jsonRoute.has("stops")) {
-      List<Stop> stops = new ArrayList<>();
-      JSONArray jsonStops = jsonRoute.getJSONArray("stops");
-      for (int j = 0; j < jsonStops.length(); j++) {
-        JSONObject jsonStop = jsonStops.getJSONObject(j);
-        Stop stop = stopFactory.stop(jsonStop);
-        stops.add(stop);
+    reader.endObject();
+    JsonUtils.requireField(route.getShortName(), "Route", "shortName");
+    if (plot != null) {
+      // Decoded once the short name, which keys the cache, is known
+      try {
+        route.setPlot(routePlotCache.get(route.getShortName(), plot));
+      } catch (IllegalArgumentException e) {
+        throw new IOException(String.format("Route %s has an invalid plot",
+            route.getShortName()), e);
       }
-      route.setStops(stops);
     }
-    return route;
+    return entityRegistry.intern(route);
+  }
+
+  private int parseColor(String plotColor) {
+    return Color.parseColor(String.format("#%s", plotColor));
   }
 }
@@ -16,21 +16,28 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.android.volley.Request;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonArrayRequest;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.bt4vt.service.FavoriteStopService;
+import com.bt4vt.service.OfflineStoreService;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Service to get current route information.
+ * <p/>
+ * Parsed routes are kept in a {@link ParsedObjectCache} and served from it until they expire,
+ * unless the caller asks to ignore the cache, which always goes to the network and refreshes the
+ * cached copy.
+ * <p/>
+ * Past that, routes stored by the {@link OfflineStoreService} are served, and cached like fetched
+ * ones, so the route list and map render on a cold start or without a network connection. The
+ * {@link CatalogSyncService} brings them up to date in the background and evicts whatever it
+ * changes from the cache. Only the first fetch ever waits on the network.
  *
  * @author Ben Sechrist
  */
@@ -44,20 +51,104 @@ public class RouteService {
   private RequestFactory requestFactory;
 
   @Inject
-  private RouteFactory routeFactory;
+  private ParsedObjectCache parsedObjectCache;
+
+  @Inject
+  private FavoriteStopService favoriteStopService;
+
+  @Inject
+  private OfflineStoreService offlineStoreService;
+
+  @Inject
+  private CatalogSyncService catalogSyncService;
 
   public void getAll(boolean ignoreCache, final Response.Listener<List<Route>> listener,
                      final Response.ExceptionListener exceptionListener) {
+    if (ignoreCache) {
+      fetchAll(false, listener, exceptionListener);
+      return;
+    }
+    List<Route> cached = parsedObjectCache.get(ParsedObjectCache.ROUTES_KEY);
+    if (cached != null) {
+      listener.onResult(new ArrayList<>(cached));
+      return;
+    }
+    offlineStoreService.getRoutes(new Response.Listener<List<Route>>() {
+      @Override
+      public void onResult(List<Route> stored) {
+        if (stored.isEmpty()) {
+          fetchAll(true, listener, exceptionListener);
+          return;
+        }
+        parsedObjectCache.put(ParsedObjectCache.ROUTES_KEY, new ArrayList<>(stored), stored.size(),
+            RequestFactory.ROUTES_CACHE_TTL_MS);
+        listener.onResult(stored);
+        catalogSyncService.sync();
+      }
+    });
+  }
+
+  public void get(String shortName, boolean ignoreCache, final Response.Listener<Route> listener,
+                  final Response.ExceptionListener exceptionListener) {
+    get(shortName, ignoreCache, null, listener, exceptionListener);
+  }
+
+  /**
+   * Queries BT4U for the route with <code>shortName</code>. Results are dropped once
+   * <code>token</code> is canceled.
+   */
+  public void get(final String shortName, boolean ignoreCache, final RequestToken token,
+                  final Response.Listener<Route> listener,
+                  final Response.ExceptionListener exceptionListener) {
+    if (ignoreCache) {
+      fetch(shortName, false, token, listener, exceptionListener);
+      return;
+    }
+    Route cached = parsedObjectCache.get(ParsedObjectCache.routeKey(shortName));
+    if (cached != null) {
+      // Favorites may have changed since the route was cached, its stops are shared so they are
+      // copied rather than changed
+      Route route = cached.copy();
+      List<Stop> stops = route.getStops();
+      for (int i = 0; i < stops.size(); i++) {
+        Stop stop = stops.get(i);
+        stops.set(i, stop.withFavorited(favoriteStopService.isFavorited(stop.getCode())));
+      }
+      listener.onResult(route);
+      return;
+    }
+    offlineStoreService.getRoute(shortName, new Response.Listener<Route>() {
+      @Override
+      public void onResult(Route stored) {
+        if (RequestToken.isCanceled(token)) {
+          return;
+        }
+        if (stored == null) {
+          fetch(shortName, true, token, listener, exceptionListener);
+          return;
+        }
+        parsedObjectCache.put(ParsedObjectCache.routeKey(shortName), stored,
+            1 + stored.getStops().size(), RequestFactory.ROUTE_CACHE_TTL_MS);
+        listener.onResult(stored);
+        catalogSyncService.syncRoute(shortName);
+      }
+    });
+  }
+
+  /**
+   * Fetches every route from BT4U, caching and storing the result.
+   */
+  private void fetchAll(boolean shouldCache, final Response.Listener<List<Route>> listener,
+                        final Response.ExceptionListener exceptionListener) {
     try {
-      JsonArrayRequest request = requestFactory.routes(
-          new com.android.volley.Response.Listener<JSONArray>() {
+      Request<List<Route>> request = requestFactory.routes(
+          new com.android.volley.Response.Listener<List<Route>>() {
             @Override
-            public void onResponse(JSONArray response) {
-              try {
-                listener.onResult(routeFactory.routes(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
-              }
+            public void onResponse(List<Route> response) {
+              parsedObjectCache.put(ParsedObjectCache.ROUTES_KEY, new ArrayList<>(response),
+                  response.size(), RequestFactory.ROUTES_CACHE_TTL_MS);
+              offlineStoreService.saveRoutes(response);
+              listener.onResult(response);
             }
           }, new com.android.volley.Response.ErrorListener() {
             @Override
@@ -65,34 +156,42 @@ public class RouteService {
               exceptionListener.onException(error);
             }
           });
-      request.setShouldCache(!ignoreCache);
+      request.setShouldCache(shouldCache);
       requestService.addToRequestQueue(request);
     } catch (URISyntaxException e) {
       exceptionListener.onException(e);
     }
   }
 
-  public void get(String shortName, boolean ignoreCache, final Response.Listener<Route> listener,
-                  final Response.ExceptionListener exceptionListener) {
+  /**
+   * Fetches the route with <code>shortName</code> from BT4U, caching and storing the result.
+   */
+  private void fetch(String shortName, boolean shouldCache, final RequestToken token,
+                     final Response.Listener<Route> listener,
+                     final Response.ExceptionListener exceptionListener) {
+    final String cacheKey = ParsedObjectCache.routeKey(shortName);
     try {
-      JsonObjectRequest request = requestFactory.route(shortName,
-          new com.android.volley.Response.Listener<JSONObject>() {
+      Request<Route> request = requestFactory.route(shortName,
+          new com.android.volley.Response.Listener<Route>() {
             @Override
-            public void onResponse(JSONObject response) {
-              try {
-                listener.onResult(routeFactory.route(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
+            public void onResponse(Route response) {
+              parsedObjectCache.put(cacheKey, response, 1 + response.getStops().size(),
+                  RequestFactory.ROUTE_CACHE_TTL_MS);
+              offlineStoreService.saveRoute(response);
+              if (!RequestToken.isCanceled(token)) {
+                listener.onResult(response);
               }
             }
           }, new com.android.volley.Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-              exceptionListener.onException(error);
+              if (!RequestToken.isCanceled(token)) {
+                exceptionListener.onException(error);
+              }
             }
           });
-      request.setShouldCache(!ignoreCache);
-      requestService.addToRequestQueue(request);
+      request.setShouldCache(shouldCache);
+      requestService.addToRequestQueue(request, token);
     } catch (URISyntaxException e) {
       exceptionListener.onException(e);
     }
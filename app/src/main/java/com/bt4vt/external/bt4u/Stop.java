@@ -69,6 +69,21 @@ public class Stop {
     isFavorited = favorited;
   }
 
+  /**
+   * Returns this stop if its favorite flag already is <code>favorited</code>, otherwise a copy
+   * with the flag set, leaving this stop as it is.
+   */
+  Stop withFavorited(boolean favorited) {
+    if (favorited == isFavorited) {
+      return this;
+    }
+    Stop copy = new Stop(code);
+    copy.name = name;
+    copy.latLng = latLng;
+    copy.isFavorited = favorited;
+    return copy;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
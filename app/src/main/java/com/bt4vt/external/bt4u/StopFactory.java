@@ -16,47 +16,92 @@
 
 package com.bt4vt.external.bt4u;
 
-import com.activeandroid.query.Select;
-import com.bt4vt.model.FavoriteStop;
+import com.bt4vt.service.FavoriteStopService;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.gson.stream.JsonReader;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Creates {@link Stop} objects.
+ * <p/>
+ * Stops are resolved through the {@link EntityRegistry}, so a stop listed by several routes is
+ * the same instance in each of them.
  *
  * @author Ben Sechrist
  */
 @Singleton
 class StopFactory {
 
-  public List<Stop> stops(JSONArray jsonStops) throws JSONException {
+  @Inject
+  FavoriteStopService favoriteStopService;
+
+  @Inject
+  EntityRegistry entityRegistry;
+
+  /**
+   * Streams {@link Stop} objects straight out of <code>reader</code> without building an
+   * intermediate JSON tree.
+   *
+   * @param reader reader positioned at the start of the stops array
+   * @return the stops
+   * @throws IOException if the JSON could not be read
+   */
+  public List<Stop> stops(JsonReader reader) throws IOException {
     List<Stop> stops = new ArrayList<>();
-    for (int i = 0; i < jsonStops.length(); i++) {
-      JSONObject jsonStop = jsonStops.getJSONObject(i);
-      Stop stop = stop(jsonStop);
-      stops.add(stop);
+    reader.beginArray();
+    while (reader.hasNext()) {
+      stops.add(stop(reader));
     }
+    reader.endArray();
     return stops;
   }
 
-  public Stop stop(JSONObject jsonStop) throws JSONException {
-    Stop stop = new Stop(jsonStop.getString("code"));
-    stop.setName(jsonStop.getString("name"));
-    stop.setLatLng(new LatLng(jsonStop.getDouble("latitude"), jsonStop.getDouble("longitude")));
-    FavoriteStop favoriteStop = new Select()
-        .from(FavoriteStop.class)
-        .where("code = ?", stop.getCode())
-        .executeSingle();
-    if (favoriteStop != null) {
-      stop.setFavorited(favoriteStop.isFavorited());
+  /**
+   * Streams a single {@link Stop} out of <code>reader</code>.
+   *
+   * @param reader reader positioned at the start of the stop object
+   * @return the stop
+   * @throws IOException if the JSON could not be read
+   */
+  public Stop stop(JsonReader reader) throws IOException {
+    Stop stop = new Stop(null);
+    boolean hasLatitude = false;
+    boolean hasLongitude = false;
+    double latitude = 0;
+    double longitude = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "code":
+          stop.setCode(reader.nextString());
+          break;
+        case "name":
+          stop.setName(reader.nextString());
+          break;
+        case "latitude":
+          latitude = reader.nextDouble();
+          hasLatitude = true;
+          break;
+        case "longitude":
+          longitude = reader.nextDouble();
+          hasLongitude = true;
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
     }
-    return stop;
+    reader.endObject();
+    JsonUtils.requireField(stop.getCode(), "Stop", "code");
+    JsonUtils.requireField(hasLatitude, "Stop", "latitude");
+    JsonUtils.requireField(hasLongitude, "Stop", "longitude");
+    stop.setLatLng(new LatLng(latitude, longitude));
+    stop.setFavorited(favoriteStopService.isFavorited(stop.getCode()));
+    return entityRegistry.intern(stop);
   }
 }
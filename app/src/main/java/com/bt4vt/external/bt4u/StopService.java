@@ -17,18 +17,25 @@
 package com.bt4vt.external.bt4u;
 
 import com.android.volley.VolleyError;
+import com.bt4vt.service.FavoriteStopService;
+import com.bt4vt.service.OfflineStoreService;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Service to get current stop information.
+ * <p/>
+ * The parsed list of all stops is kept in a {@link ParsedObjectCache} and served from it until
+ * it expires. Past that, stops stored by the {@link OfflineStoreService} are served, and cached
+ * like fetched ones, and brought up to date in the background by the {@link CatalogSyncService}.
  *
  * @author Ben Sechrist
  */
@@ -42,51 +49,171 @@ public class StopService {
   private RequestFactory requestFactory;
 
   @Inject
-  private StopFactory stopFactory;
+  private ParsedObjectCache parsedObjectCache;
+
+  @Inject
+  private FavoriteStopService favoriteStopService;
+
+  @Inject
+  private OfflineStoreService offlineStoreService;
+
+  @Inject
+  private CatalogSyncService catalogSyncService;
 
   public void getAll(final Response.Listener<List<Stop>> listener,
                      final Response.ExceptionListener exceptionListener) {
+    getAll(null, listener, exceptionListener);
+  }
+
+  /**
+   * Queries BT4U for all stops. Results are dropped once <code>token</code> is canceled.
+   */
+  public void getAll(final RequestToken token, final Response.Listener<List<Stop>> listener,
+                     final Response.ExceptionListener exceptionListener) {
+    List<Stop> cached = parsedObjectCache.get(ParsedObjectCache.STOPS_KEY);
+    if (cached != null) {
+      // Favorites may have changed since the stops were cached, they are shared so they are copied
+      // rather than changed
+      List<Stop> stops = new ArrayList<>(cached.size());
+      for (Stop stop : cached) {
+        stops.add(stop.withFavorited(favoriteStopService.isFavorited(stop.getCode())));
+      }
+      listener.onResult(stops);
+      return;
+    }
+    offlineStoreService.getStops(new Response.Listener<List<Stop>>() {
+      @Override
+      public void onResult(List<Stop> stored) {
+        if (RequestToken.isCanceled(token)) {
+          return;
+        }
+        if (stored.isEmpty()) {
+          fetchAll(token, listener, exceptionListener);
+          return;
+        }
+        parsedObjectCache.put(ParsedObjectCache.STOPS_KEY, new ArrayList<>(stored), stored.size(),
+            RequestFactory.STOPS_CACHE_TTL_MS);
+        listener.onResult(stored);
+        catalogSyncService.sync();
+      }
+    });
+  }
+
+  public void get(String stopCode, final Response.Listener<Stop> listener,
+                  final Response.ExceptionListener exceptionListener) {
+    get(stopCode, null, listener, exceptionListener);
+  }
+
+  /**
+   * Queries BT4U for the stop with <code>stopCode</code>, unless it has been stored. Results are
+   * dropped once <code>token</code> is canceled.
+   */
+  public void get(final String stopCode, final RequestToken token,
+                  final Response.Listener<Stop> listener,
+                  final Response.ExceptionListener exceptionListener) {
+    offlineStoreService.getStop(stopCode, new Response.Listener<Stop>() {
+      @Override
+      public void onResult(Stop stored) {
+        if (RequestToken.isCanceled(token)) {
+          return;
+        }
+        if (stored != null) {
+          listener.onResult(stored);
+          return;
+        }
+        fetch(stopCode, token, listener, exceptionListener);
+      }
+    });
+  }
+
+  /**
+   * Fetches the stop with <code>stopCode</code> from BT4U.
+   */
+  private void fetch(String stopCode, final RequestToken token,
+                     final Response.Listener<Stop> listener,
+                     final Response.ExceptionListener exceptionListener) {
     try {
-      requestService.addToRequestQueue(requestFactory.stops(
-          new com.android.volley.Response.Listener<JSONArray>() {
+      requestService.addToRequestQueue(requestFactory.stop(stopCode,
+          new com.android.volley.Response.Listener<Stop>() {
             @Override
-            public void onResponse(JSONArray response) {
-              try {
-                listener.onResult(stopFactory.stops(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
+            public void onResponse(Stop response) {
+              if (!RequestToken.isCanceled(token)) {
+                listener.onResult(response);
               }
             }
           }, new com.android.volley.Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-              exceptionListener.onException(error);
+              if (!RequestToken.isCanceled(token)) {
+                exceptionListener.onException(error);
+              }
             }
-          }));
+          }), token);
     } catch (URISyntaxException e) {
       exceptionListener.onException(e);
     }
   }
 
-  public void get(String stopCode, final Response.Listener<Stop> listener,
-                  final Response.ExceptionListener exceptionListener) {
+  /**
+   * Resolves the stops for all of the given <code>codes</code> from a single fetch of every stop,
+   * rather than one request per code.
+   * <p/>
+   * Stops are returned in the order of <code>codes</code>. Codes that BT4U doesn't know about
+   * are left out.
+   *
+   * @param codes the stop codes
+   */
+  public void getMany(Collection<String> codes, final Response.Listener<List<Stop>> listener,
+                      final Response.ExceptionListener exceptionListener) {
+    if (codes.isEmpty()) {
+      listener.onResult(Collections.<Stop>emptyList());
+      return;
+    }
+    final Collection<String> wanted = new ArrayList<>(codes);
+    getAll(new Response.Listener<List<Stop>>() {
+      @Override
+      public void onResult(List<Stop> stops) {
+        Map<String, Stop> stopsByCode = new HashMap<>(stops.size());
+        for (Stop stop : stops) {
+          stopsByCode.put(stop.getCode(), stop);
+        }
+        List<Stop> result = new ArrayList<>(wanted.size());
+        for (String code : wanted) {
+          Stop stop = stopsByCode.get(code);
+          if (stop != null) {
+            result.add(stop);
+          }
+        }
+        listener.onResult(result);
+      }
+    }, exceptionListener);
+  }
+
+  /**
+   * Fetches every stop from BT4U, caching and storing the result.
+   */
+  private void fetchAll(final RequestToken token, final Response.Listener<List<Stop>> listener,
+                        final Response.ExceptionListener exceptionListener) {
     try {
-      requestService.addToRequestQueue(requestFactory.stop(stopCode,
-          new com.android.volley.Response.Listener<JSONObject>() {
+      requestService.addToRequestQueue(requestFactory.stops(
+          new com.android.volley.Response.Listener<List<Stop>>() {
             @Override
-            public void onResponse(JSONObject response) {
-              try {
-                listener.onResult(stopFactory.stop(response));
-              } catch (JSONException e) {
-                exceptionListener.onException(e);
+            public void onResponse(List<Stop> response) {
+              parsedObjectCache.put(ParsedObjectCache.STOPS_KEY, new ArrayList<>(response),
+                  response.size(), RequestFactory.STOPS_CACHE_TTL_MS);
+              offlineStoreService.saveStops(response);
+              if (!RequestToken.isCanceled(token)) {
+                listener.onResult(response);
               }
             }
           }, new com.android.volley.Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-              exceptionListener.onException(error);
+              if (!RequestToken.isCanceled(token)) {
+                exceptionListener.onException(error);
+              }
             }
-          }));
+          }), token);
     } catch (URISyntaxException e) {
       exceptionListener.onException(e);
     }
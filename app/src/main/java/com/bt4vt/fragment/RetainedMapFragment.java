@@ -17,62 +17,134 @@
 package com.bt4vt.fragment;
 
 import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
+import android.view.Choreographer;
 import android.view.View;
 
 import com.bt4vt.R;
 import com.bt4vt.external.bt4u.Bus;
+import com.bt4vt.external.bt4u.Fleet;
 import com.bt4vt.external.bt4u.Route;
 import com.bt4vt.external.bt4u.Stop;
+import com.bt4vt.map.BusMotionPredictor;
+import com.bt4vt.map.MarkerIconCache;
+import com.bt4vt.map.RoutePlot;
+import com.bt4vt.map.StopClusterItem;
+import com.bt4vt.map.StopClusterRenderer;
+import com.bt4vt.map.StopGridIndex;
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
-import com.google.maps.android.PolyUtil;
+import com.google.inject.Inject;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterManager;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import roboguice.RoboGuice;
 import roboguice.inject.InjectResource;
 
 /**
  * Handles all google map related actions.
+ * <p/>
+ * The polyline and stop markers of a route make up a {@link MapOverlay}. Leaving a route hides
+ * its overlay and keeps it in a small LRU instead of removing it, so switching back to a recently
+ * shown route only toggles visibility rather than rebuilding the map. Hidden overlays are removed
+ * once they fall out of the LRU or the system runs low on memory.
+ * <p/>
+ * Between polls, bus markers are moved along where the {@link BusMotionPredictor} expects their
+ * buses to be, a slice of them per frame, and snap to the real position once the next poll comes
+ * in.
  *
  * @author Ben Sechrist
  */
 public class RetainedMapFragment extends SupportMapFragment implements OnMapReadyCallback,
-    GoogleMap.OnInfoWindowClickListener, View.OnClickListener {
+    GoogleMap.OnInfoWindowClickListener, GoogleMap.OnCameraIdleListener, View.OnClickListener {
 
   public static final int REQUEST_LOCATION_PERMISSION = 1;
 
   private static final double BBURG_LAT = 37.2304516;
   private static final double BBURG_LNG = -80.4294548;
   private static final float BBURG_ZOOM = 13;
+  private static final int STOP_ICON_SAMPLE_SIZE = 6;
+  private static final double STOP_VIEWPORT_MARGIN = 0.5;
+
+  private static final int STOP_BOUNDS_PADDING = 100; // offset from edges of the map in pixels
+
+  // Leaves most of a 60 fps frame to the map itself
+  private static final long BUS_ANIMATION_BUDGET_NS = TimeUnit.MILLISECONDS.toNanos(4);
+
+  // About half a pixel at street zoom, smaller steps don't show
+  private static final double BUS_MARKER_MIN_STEP_DEGREES = 4e-6;
+
+  @Inject
+  private MarkerIconCache markerIconCache;
 
   @InjectResource(R.string.stop_marker_snippet)
   private String stopMarkerSnippet;
 
   private GoogleMap mMap; // Might be null if Google Play services APK is not available.
 
-  private final Map<Marker, Stop> currentStopMarkers = new HashMap<>();
+  /**
+   * The overlay currently on the map, if any.
+   */
+  private MapOverlay overlay;
+
+  /**
+   * Hidden route overlays by route short name. The shown {@link #overlay} is never in here.
+   */
+  private LruCache<String, MapOverlay> hiddenOverlays;
+
+  private final Fleet fleet = new Fleet();
+
+  private final Map<String, BusMarker> currentBusMarkers = new HashMap<>();
+
+  /**
+   * The values of {@link #currentBusMarkers}, in a list so animation can resume where the last
+   * frame left off.
+   */
+  private final List<BusMarker> animatedBusMarkers = new ArrayList<>();
 
-  private final Map<Bus, Marker> currentBusMarkers = new HashMap<>();
+  private final BusMotionPredictor busMotionPredictor = new BusMotionPredictor();
+
+  private final double[] predictedPosition = new double[2];
+
+  private final Choreographer.FrameCallback busAnimation = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      busAnimationScheduled = false;
+      animateBuses();
+    }
+  };
+
+  private boolean busAnimationScheduled;
+
+  private int busAnimationCursor;
+
+  private int busPoll = 0;
 
   private TalkToActivity activity;
 
@@ -82,6 +154,50 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
 
     super.onCreate(savedInstanceState);
     setRetainInstance(true);
+    hiddenOverlays = new LruCache<String, MapOverlay>(
+        getResources().getInteger(R.integer.route_overlay_cache_size)) {
+      @Override
+      protected void entryRemoved(boolean evicted, String key, MapOverlay oldValue,
+                                  MapOverlay newValue) {
+        // Taking an overlay out to show it again keeps it on the map
+        if (evicted) {
+          oldValue.remove();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    scheduleBusAnimation();
+  }
+
+  @Override
+  public void onPause() {
+    super.onPause();
+    if (busAnimationScheduled) {
+      Choreographer.getInstance().removeFrameCallback(busAnimation);
+      busAnimationScheduled = false;
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    hiddenOverlays.evictAll();
+  }
+
+  /**
+   * Removes the hidden route overlays from the map once memory runs low or the app is no longer
+   * visible. The activity forwards this from {@link ComponentCallbacks2#onTrimMemory(int)}.
+   *
+   * @param level the trim memory level
+   */
+  public void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      hiddenOverlays.evictAll();
+    }
   }
 
   @Override
@@ -99,6 +215,7 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
   @Override
   public void onMapReady(GoogleMap googleMap) {
     this.mMap = googleMap;
+    mMap.setOnCameraIdleListener(this);
     if (checkLocationPermission())
       setUpMap();
   }
@@ -133,6 +250,11 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
 
   /**
    * This adds markers for the given <code>stops</code>.
+   * <p/>
+   * Only stops inside the visible region, plus a margin, are put on the map; the rest are kept in
+   * a {@link StopGridIndex} and added or removed as the camera moves. Once there are at least
+   * <code>R.integer.stop_cluster_threshold</code> stops the visible ones are clustered by zoom
+   * level instead of getting a marker each.
    *
    * @param stops the stops
    */
@@ -169,75 +291,302 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
       return;
     }
 
+    if (overlay == null) {
+      overlay = new MapOverlay(null);
+    }
     LatLngBounds.Builder builder = new LatLngBounds.Builder();
     for (Stop stop : stops) {
-      Marker marker = mMap.addMarker(getStopMarker(stop));
-      currentStopMarkers.put(marker, stop);
-      builder.include(marker.getPosition());
+      builder.include(stop.getLatLng());
     }
-    LatLngBounds bounds = builder.build();
-    int padding = 100; // offset from edges of the map in pixels
-    CameraUpdate cu = CameraUpdateFactory.newLatLngBounds(bounds, padding);
-    mMap.animateCamera(cu);
+    if (stops.size() >= getResources().getInteger(R.integer.stop_cluster_threshold)) {
+      showStopClusters();
+    }
+    overlay.stopIndex = new StopGridIndex(stops);
+    overlay.bounds = builder.build();
+    mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(overlay.bounds, STOP_BOUNDS_PADDING));
+    // Show the stops at the destination now, the camera idle listener refines them on arrival
+    cullStops(overlay.bounds);
 
     if (isAdded()) {
       activity.hideLoadingIcon();
     }
   }
 
+  /**
+   * Sets up a new {@link ClusterManager} that visible stops are handed to, which draws them as
+   * clusters once the camera settles.
+   */
+  private void showStopClusters() {
+    final ClusterManager<StopClusterItem> stopClusterManager =
+        new ClusterManager<>(getContext(), mMap);
+    StopClusterRenderer renderer = new StopClusterRenderer(getContext(), mMap, stopClusterManager,
+        markerIconCache.get(R.drawable.bus_stop_icon, STOP_ICON_SAMPLE_SIZE), stopMarkerSnippet);
+    stopClusterManager.setRenderer(renderer);
+    stopClusterManager.setOnClusterItemInfoWindowClickListener(
+        new ClusterManager.OnClusterItemInfoWindowClickListener<StopClusterItem>() {
+          @Override
+          public void onClusterItemInfoWindowClick(StopClusterItem item) {
+            if (isAdded()) {
+              activity.showDeparturesDialog(item.getStop(), activity.getCurrentRoute());
+            }
+          }
+        });
+    stopClusterManager.setOnClusterClickListener(
+        new ClusterManager.OnClusterClickListener<StopClusterItem>() {
+          @Override
+          public boolean onClusterClick(Cluster<StopClusterItem> cluster) {
+            LatLngBounds.Builder builder = new LatLngBounds.Builder();
+            for (StopClusterItem item : cluster.getItems()) {
+              builder.include(item.getPosition());
+            }
+            mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(builder.build(),
+                STOP_BOUNDS_PADDING));
+            return true;
+          }
+        });
+    mMap.setOnMarkerClickListener(stopClusterManager);
+    overlay.stopClusterManager = stopClusterManager;
+    // Clustering waits for the camera to settle on the new bounds
+    overlay.stopClusterZoom = -1;
+  }
+
+  @Override
+  public void onCameraIdle() {
+    if (overlay == null) {
+      return;
+    }
+    if (overlay.polyline != null) {
+      RoutePlot level = overlay.plot.forZoom(mMap.getCameraPosition().zoom);
+      if (level != overlay.plotLevel) {
+        overlay.plotLevel = level;
+        overlay.polyline.setPoints(level.toLatLngs());
+      }
+    }
+    if (overlay.stopIndex == null) {
+      return;
+    }
+    boolean changed = cullStops(mMap.getProjection().getVisibleRegion().latLngBounds);
+    if (overlay.stopClusterManager != null) {
+      float zoom = mMap.getCameraPosition().zoom;
+      if (changed || zoom != overlay.stopClusterZoom) {
+        overlay.stopClusterZoom = zoom;
+        overlay.stopClusterManager.cluster();
+      }
+    }
+  }
+
+  /**
+   * Puts the stops within <code>bounds</code> on the map and takes off the ones that are no longer
+   * near it, either as markers or as cluster items.
+   *
+   * @param bounds the area that should show its stops
+   * @return true if any stop was added or removed
+   */
+  private boolean cullStops(LatLngBounds bounds) {
+    List<Stop> stops = overlay.stopIndex.query(bounds, STOP_VIEWPORT_MARGIN);
+    Map<String, ShownStop> nextVisibleStops = new HashMap<>(stops.size());
+    boolean changed = false;
+    for (Stop stop : stops) {
+      if (nextVisibleStops.containsKey(stop.getCode())) {
+        continue;
+      }
+      ShownStop shown = overlay.visibleStops.remove(stop.getCode());
+      if (shown == null) {
+        shown = addStop(stop);
+        changed = true;
+      }
+      nextVisibleStops.put(stop.getCode(), shown);
+    }
+    for (ShownStop shown : overlay.visibleStops.values()) {
+      removeStop(shown);
+      changed = true;
+    }
+    overlay.visibleStops = nextVisibleStops;
+    return changed;
+  }
+
+  /**
+   * Adds a marker or a cluster item for the given <code>stop</code>.
+   *
+   * @param stop the stop
+   * @return the added marker or cluster item
+   */
+  private ShownStop addStop(Stop stop) {
+    if (overlay.stopClusterManager != null) {
+      StopClusterItem item = new StopClusterItem(stop);
+      overlay.stopClusterManager.addItem(item);
+      return new ShownStop(null, item);
+    }
+    Marker marker = mMap.addMarker(getStopMarker(stop));
+    overlay.stopMarkers.put(marker, stop);
+    return new ShownStop(marker, null);
+  }
+
+  /**
+   * Removes a marker or cluster item previously returned by {@link #addStop(Stop)}.
+   *
+   * @param shown the marker or cluster item
+   */
+  private void removeStop(ShownStop shown) {
+    if (shown.clusterItem != null) {
+      overlay.stopClusterManager.removeItem(shown.clusterItem);
+    } else {
+      overlay.stopMarkers.remove(shown.marker);
+      shown.marker.remove();
+    }
+  }
+
   @Override
   public void onInfoWindowClick(Marker marker) {
-    if (currentStopMarkers.containsKey(marker)) {
-      Stop stop = currentStopMarkers.get(marker);
+    if (overlay == null) {
+      return;
+    }
+    if (overlay.stopMarkers.containsKey(marker)) {
+      Stop stop = overlay.stopMarkers.get(marker);
       activity.showDeparturesDialog(stop, activity.getCurrentRoute());
+    } else if (overlay.stopClusterManager != null) {
+      overlay.stopClusterManager.onInfoWindowClick(marker);
     }
   }
 
   /**
-   * This shows all buses.
+   * Returns the fleet that bus polls for the current route should update.
+   */
+  public Fleet getFleet() {
+    return fleet;
+  }
+
+  /**
+   * This shows the buses of the {@link #getFleet() fleet}.
+   * <p/>
+   * Markers are kept by bus id: new buses get a marker, buses that are gone have theirs removed
+   * and existing markers only have the fields the poll changed updated, so map work is
+   * proportional to what changed rather than to the fleet size.
+   * <p/>
+   * Markers of buses with a new fix snap to it, ending whatever position was predicted for them
+   * since the last poll.
    *
-   * @param buses the buses
+   * @return the number of buses that appeared, moved or went away
    */
-  public void showBuses(List<Bus> buses) {
-    if (mMap == null || buses.isEmpty() || !isAdded()) {
-      return;
+  public int showBuses() {
+    if (mMap == null || !isAdded()) {
+      return 0;
     }
 
-    if (!buses.get(0).getRoute().equals(activity.getCurrentRoute())) {
-      return;
+    List<Bus> buses = fleet.getBuses();
+    if (!buses.isEmpty() && !buses.get(0).getRoute().equals(activity.getCurrentRoute())) {
+      return 0;
     }
 
-    if (currentBusMarkers.size() != buses.size()) {
-      for (Bus bus : buses) {
-        Marker marker = mMap.addMarker(getBusMarker(bus));
-        currentBusMarkers.put(bus, marker);
+    busPoll++;
+    int changes = 0;
+    long now = SystemClock.uptimeMillis();
+    for (int i = 0; i < buses.size(); i++) {
+      Bus bus = buses.get(i);
+      boolean newFix = busMotionPredictor.onFix(bus, now);
+      BusMarker busMarker = currentBusMarkers.get(bus.getId());
+      if (busMarker == null) {
+        busMarker = new BusMarker(bus, mMap.addMarker(getBusMarker(bus)));
+        currentBusMarkers.put(bus.getId(), busMarker);
+        animatedBusMarkers.add(busMarker);
+        changes++;
+      } else if (updateBusMarker(busMarker, bus, newFix)) {
+        changes++;
       }
-    } else {
-      for (Bus bus : buses) {
-        Marker marker = currentBusMarkers.get(bus);
-        if (marker == null) {
-          marker = mMap.addMarker(getBusMarker(bus));
-          currentBusMarkers.put(bus, marker);
-        } else {
-          marker.setPosition(bus.getLatLng());
-          marker.setTitle(getString(R.string.bus_marker_title_format, bus.getRoute().getFullName(),
-              bus.getId()));
-          marker.setSnippet(getString(R.string.bus_marker_snippet_format, bus.getPassengers(),
-              SimpleDateFormat.getTimeInstance().format(bus.getTimestamp())));
-          marker.setRotation(bus.getDirection());
+      busMarker.poll = busPoll;
+    }
+
+    // Only look for departed buses when some marker was not matched this poll
+    if (buses.size() < currentBusMarkers.size()) {
+      Iterator<BusMarker> iterator = currentBusMarkers.values().iterator();
+      while (iterator.hasNext()) {
+        BusMarker busMarker = iterator.next();
+        if (busMarker.poll != busPoll) {
+          busMarker.marker.remove();
+          iterator.remove();
+          animatedBusMarkers.remove(busMarker);
+          busMotionPredictor.remove(busMarker.busId);
+          changes++;
         }
       }
     }
+    scheduleBusAnimation();
+    return changes;
   }
 
+  /**
+   * Takes the buses and the current overlay off the map. A route overlay is only hidden, so that
+   * {@link #showCachedRoute(String)} can bring it back.
+   */
   public void clearMap() {
     if (mMap != null) {
-      clearStops();
       clearBuses();
-      mMap.clear();
+      if (overlay != null) {
+        if (overlay.shortName != null) {
+          overlay.setVisible(false);
+          hiddenOverlays.put(overlay.shortName, overlay);
+        } else {
+          overlay.remove();
+        }
+        overlay = null;
+        mMap.setOnMarkerClickListener(null);
+      }
     }
   }
 
+  /**
+   * Shows the overlay of the route with <code>shortName</code> again if it is still around, and
+   * moves the camera to its stops.
+   *
+   * @param shortName the route short name
+   * @return true if the route is shown, false if it has to be drawn with
+   * {@link #showRoute(Route)}
+   */
+  public boolean showCachedRoute(String shortName) {
+    if (mMap == null || !isAdded()) {
+      return false;
+    }
+    MapOverlay cached = hiddenOverlays.remove(shortName);
+    if (cached == null && overlay != null && shortName.equals(overlay.shortName)) {
+      cached = overlay;
+      overlay = null;
+    }
+    if (cached == null) {
+      return false;
+    }
+    clearMap();
+    overlay = cached;
+    overlay.setVisible(true);
+    if (overlay.stopClusterManager != null) {
+      mMap.setOnMarkerClickListener(overlay.stopClusterManager);
+      overlay.stopClusterZoom = -1;
+    }
+    if (overlay.bounds != null) {
+      mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(overlay.bounds, STOP_BOUNDS_PADDING));
+    }
+    activity.hideLoadingIcon();
+    return true;
+  }
+
+  /**
+   * Draws the plot and stops of the given <code>route</code> as a new overlay, replacing any
+   * overlay previously drawn for it.
+   *
+   * @param route the route
+   */
+  public void showRoute(Route route) {
+    if (mMap != null) {
+      clearMap();
+      MapOverlay stale = hiddenOverlays.remove(route.getShortName());
+      if (stale != null) {
+        stale.remove();
+      }
+      overlay = new MapOverlay(route.getShortName());
+      showRoutePlot(route.getPlot(), route.getColor());
+    }
+    showStops(route.getStops());
+  }
+
   /**
    * Displays location permission rationale to the user.
    */
@@ -252,23 +601,31 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
 
   /**
    * This draws the pattern from the given route on the map.
+   * <p/>
+   * The plot is drawn at the level of detail for the current zoom, which is updated whenever the
+   * camera settles.
    *
    * @param plot  the route plot
    * @param color the color of the plot
    */
-  public void showRoutePlot(String plot, Integer color) {
+  public void showRoutePlot(RoutePlot plot, Integer color) {
     if (mMap == null || plot == null) {
       return;
     }
 
+    if (overlay == null) {
+      overlay = new MapOverlay(null);
+    }
+    overlay.plot = plot;
+    overlay.plotLevel = plot.forZoom(mMap.getCameraPosition().zoom);
     PolylineOptions polylineOptions = new PolylineOptions();
-    polylineOptions.addAll(PolyUtil.decode(plot));
+    polylineOptions.addAll(overlay.plotLevel.toLatLngs());
     polylineOptions.width(8);
     if (color != null)
       polylineOptions.color(color);
     else
       polylineOptions.color(ContextCompat.getColor(getContext(), R.color.AccentColor));
-    mMap.addPolyline(polylineOptions);
+    overlay.polyline = mMap.addPolyline(polylineOptions);
   }
 
   /**
@@ -324,17 +681,95 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
   }
 
   /**
-   * Removes all stop markers from the map.
+   * Removes all bus markers from the map.
    */
-  private void clearStops() {
-    currentStopMarkers.clear();
+  private void clearBuses() {
+    for (BusMarker busMarker : currentBusMarkers.values()) {
+      busMarker.marker.remove();
+    }
+    currentBusMarkers.clear();
+    animatedBusMarkers.clear();
+    busMotionPredictor.clear();
+    fleet.clear();
   }
 
   /**
-   * Removes all bus markers from the map.
+   * Asks for {@link #animateBuses()} to run on the next frame, unless it already will.
    */
-  private void clearBuses() {
-    currentBusMarkers.clear();
+  private void scheduleBusAnimation() {
+    if (!busAnimationScheduled && isResumed() && !animatedBusMarkers.isEmpty()) {
+      busAnimationScheduled = true;
+      Choreographer.getInstance().postFrameCallback(busAnimation);
+    }
+  }
+
+  /**
+   * Moves bus markers to their predicted positions, for as long as the frame budget allows. The
+   * markers left over are moved first on the next frame. Markers are only moved once the step
+   * would show, each move allocating a new position. Animation stops once no bus is expected to
+   * move until the next poll.
+   */
+  private void animateBuses() {
+    int count = animatedBusMarkers.size();
+    if (mMap == null || count == 0) {
+      return;
+    }
+
+    long now = SystemClock.uptimeMillis();
+    long deadline = System.nanoTime() + BUS_ANIMATION_BUDGET_NS;
+    boolean moving = false;
+    for (int i = 0; i < count; i++) {
+      BusMarker busMarker = animatedBusMarkers.get((busAnimationCursor + i) % count);
+      if (busMotionPredictor.predict(busMarker.busId, now, predictedPosition)) {
+        if (Math.abs(predictedPosition[0] - busMarker.latitude) >= BUS_MARKER_MIN_STEP_DEGREES
+            || Math.abs(predictedPosition[1] - busMarker.longitude)
+            >= BUS_MARKER_MIN_STEP_DEGREES) {
+          busMarker.setPosition(predictedPosition[0], predictedPosition[1]);
+        }
+        moving = true;
+      }
+      if (System.nanoTime() > deadline) {
+        busAnimationCursor = (busAnimationCursor + i + 1) % count;
+        moving = true;
+        break;
+      }
+    }
+    if (moving) {
+      scheduleBusAnimation();
+    }
+  }
+
+  /**
+   * Applies only the fields of <code>bus</code> that changed in the last poll to its marker.
+   *
+   * @param busMarker the existing marker for the bus
+   * @param bus       the bus, updated by the last poll
+   * @param newFix    whether the poll brought a new fix, to which the marker snaps back even if
+   *                  the bus did not move
+   * @return true if the bus moved or turned
+   */
+  private boolean updateBusMarker(BusMarker busMarker, Bus bus, boolean newFix) {
+    Marker marker = busMarker.marker;
+    int changes = bus.getChanges();
+    if ((changes & Bus.ADDED) != 0) {
+      // A record reused for this bus, nothing on the marker can be trusted
+      changes = Bus.MOVED | Bus.ROUTE_CHANGED | Bus.DETAILS_CHANGED;
+    }
+    if ((changes & Bus.MOVED) != 0) {
+      busMarker.setPosition(bus.getLatitude(), bus.getLongitude());
+      marker.setRotation(bus.getDirection());
+    } else if (newFix) {
+      busMarker.setPosition(bus.getLatitude(), bus.getLongitude());
+    }
+    if ((changes & Bus.ROUTE_CHANGED) != 0) {
+      marker.setTitle(getString(R.string.bus_marker_title_format, bus.getRoute().getFullName(),
+          bus.getId()));
+    }
+    if ((changes & Bus.DETAILS_CHANGED) != 0) {
+      marker.setSnippet(getString(R.string.bus_marker_snippet_format, bus.getPassengers(),
+          SimpleDateFormat.getTimeInstance().format(new Date(bus.getTimestamp()))));
+    }
+    return (changes & Bus.MOVED) != 0;
   }
 
   /**
@@ -344,15 +779,12 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
    * @return the marker options
    */
   private MarkerOptions getStopMarker(Stop stop) {
-    BitmapFactory.Options opts = new BitmapFactory.Options();
-    opts.inSampleSize = 6;
     return new MarkerOptions()
         .position(stop.getLatLng())
         // DO NOT CHANGE TITLE: Title being used on click to retrieve scheduled departures
         .title(stop.toString())
         .snippet(stopMarkerSnippet)
-        .icon(BitmapDescriptorFactory.fromBitmap(BitmapFactory.decodeResource(getResources(),
-            R.drawable.bus_stop_icon, opts)));
+        .icon(markerIconCache.get(R.drawable.bus_stop_icon, STOP_ICON_SAMPLE_SIZE));
   }
 
   /**
@@ -369,9 +801,130 @@ public class RetainedMapFragment extends SupportMapFragment implements OnMapRead
         .zIndex(10)
         .title(getString(R.string.bus_marker_title_format, bus.getRoute().getFullName(), bus.getId()))
         .snippet(getString(R.string.bus_marker_snippet_format, bus.getPassengers(),
-            SimpleDateFormat.getTimeInstance().format(bus.getTimestamp())))
-        .icon(BitmapDescriptorFactory.fromBitmap(BitmapFactory.decodeResource(getResources(),
-            R.drawable.bus_arrow)));
+            SimpleDateFormat.getTimeInstance().format(new Date(bus.getTimestamp()))))
+        .icon(markerIconCache.get(R.drawable.bus_arrow));
+  }
+
+  /**
+   * The route plot and stops drawn for a route, or for stops shown on their own.
+   */
+  private static class MapOverlay {
+
+    /**
+     * Short name of the route, null for stops shown without a route.
+     */
+    private final String shortName;
+
+    private RoutePlot plot;
+
+    private Polyline polyline;
+
+    /**
+     * Level of detail of {@link #plot} currently drawn by {@link #polyline}.
+     */
+    private RoutePlot plotLevel;
+
+    private LatLngBounds bounds;
+
+    private StopGridIndex stopIndex;
+
+    private Map<String, ShownStop> visibleStops = new HashMap<>();
+
+    private final Map<Marker, Stop> stopMarkers = new HashMap<>();
+
+    private ClusterManager<StopClusterItem> stopClusterManager;
+
+    private float stopClusterZoom;
+
+    MapOverlay(String shortName) {
+      this.shortName = shortName;
+    }
+
+    /**
+     * Shows or hides everything this overlay put on the map.
+     */
+    void setVisible(boolean visible) {
+      if (polyline != null) {
+        polyline.setVisible(visible);
+      }
+      for (Marker marker : stopMarkers.keySet()) {
+        marker.setVisible(visible);
+      }
+      if (stopClusterManager != null) {
+        for (Marker marker : stopClusterManager.getMarkerCollection().getMarkers()) {
+          marker.setVisible(visible);
+        }
+        for (Marker marker : stopClusterManager.getClusterMarkerCollection().getMarkers()) {
+          marker.setVisible(visible);
+        }
+      }
+    }
+
+    /**
+     * Removes everything this overlay put on the map.
+     */
+    void remove() {
+      if (polyline != null) {
+        polyline.remove();
+      }
+      for (Marker marker : stopMarkers.keySet()) {
+        marker.remove();
+      }
+      stopMarkers.clear();
+      visibleStops.clear();
+      if (stopClusterManager != null) {
+        stopClusterManager.clearItems();
+        stopClusterManager.getMarkerCollection().clear();
+        stopClusterManager.getClusterMarkerCollection().clear();
+      }
+    }
+  }
+
+  /**
+   * A stop shown on the map, either as a marker or as a cluster item.
+   */
+  private static class ShownStop {
+
+    private final Marker marker;
+
+    private final StopClusterItem clusterItem;
+
+    ShownStop(Marker marker, StopClusterItem clusterItem) {
+      this.marker = marker;
+      this.clusterItem = clusterItem;
+    }
+  }
+
+  /**
+   * A bus marker along with the last poll that reported its bus.
+   */
+  private static class BusMarker {
+
+    private final String busId;
+
+    private final Marker marker;
+
+    private int poll;
+
+    /**
+     * Where the marker was last put.
+     */
+    private double latitude;
+
+    private double longitude;
+
+    BusMarker(Bus bus, Marker marker) {
+      this.busId = bus.getId();
+      this.marker = marker;
+      this.latitude = bus.getLatitude();
+      this.longitude = bus.getLongitude();
+    }
+
+    void setPosition(double latitude, double longitude) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      marker.setPosition(new LatLng(latitude, longitude));
+    }
   }
 
   /**
@@ -16,6 +16,7 @@
 
 package com.bt4vt.fragment;
 
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.support.v4.content.ContextCompat;
@@ -38,6 +39,7 @@ import com.bt4vt.geofence.BusStopGeofenceService;
 import com.bt4vt.service.FavoriteStopService;
 import com.google.inject.Inject;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import roboguice.fragment.RoboDialogFragment;
@@ -45,6 +47,9 @@ import roboguice.inject.InjectView;
 
 /**
  * Shows the scheduled departures for the given stop in a dialog.
+ * <p/>
+ * The minutes left until each departure are counted down every minute while the dialog is open.
+ * Departures shown from the cache are replaced in place once fresh ones come in.
  *
  * @author Ben Sechrist
  */
@@ -53,6 +58,8 @@ public class ScheduledDeparturesDialogFragment extends RoboDialogFragment
 
   private static final String STOP_FORMAT = "Stop: %s";
 
+  private static final long MINUTE_MS = 60000;
+
   @Inject
   private DepartureService departureService;
 
@@ -79,6 +86,17 @@ public class ScheduledDeparturesDialogFragment extends RoboDialogFragment
   private Stop stop;
   private Route route;
 
+  private final Runnable countdownTick = new Runnable() {
+    @Override
+    public void run() {
+      DepartureArrayAdapter adapter = (DepartureArrayAdapter) listView.getAdapter();
+      if (isAdded() && adapter != null) {
+        adapter.notifyDataSetChanged();
+        scheduleCountdownTick();
+      }
+    }
+  };
+
   public static ScheduledDeparturesDialogFragment newInstance(Stop stop, Route route, BusStopGeofenceService busStopGeofenceService) {
     if (stop == null) {
       throw new NullPointerException("Stop was null");
@@ -119,16 +137,42 @@ public class ScheduledDeparturesDialogFragment extends RoboDialogFragment
 
     emptyDeparturesView.findViewById(R.id.refresh_departures_button).setOnClickListener(this);
 
-    departureService.getAll((route == null ? "" : route.getFullName()), stop.getCode(), this,
-        this);
+    departureService.getAll(route, stop, this, this);
+  }
+
+  @Override
+  public void onDestroyView() {
+    if (listView != null) {
+      listView.removeCallbacks(countdownTick);
+    }
+    super.onDestroyView();
+  }
+
+  @Override
+  public void onDismiss(DialogInterface dialog) {
+    super.onDismiss(dialog);
+    // The dialog is also dismissed when it is recreated on rotation
+    if (getActivity() instanceof TalkToActivity && !getActivity().isChangingConfigurations()) {
+      ((TalkToActivity) getActivity()).onDeparturesDialogDismissed();
+    }
   }
 
   @Override
   public void onResult(List<Departure> departures) {
     if (isAdded()) {
-      listView.setAdapter(new DepartureArrayAdapter(getActivity(), departures));
+      DepartureArrayAdapter adapter = (DepartureArrayAdapter) listView.getAdapter();
+      if (adapter == null) {
+        listView.setAdapter(new DepartureArrayAdapter(getActivity(),
+            new ArrayList<>(departures)));
+      } else {
+        adapter.setNotifyOnChange(false);
+        adapter.clear();
+        adapter.addAll(departures);
+        adapter.notifyDataSetChanged();
+      }
       listView.setEmptyView(emptyDeparturesView);
       loadingView.setVisibility(View.INVISIBLE);
+      scheduleCountdownTick();
     }
   }
 
@@ -157,13 +201,20 @@ public class ScheduledDeparturesDialogFragment extends RoboDialogFragment
         listView.setEmptyView(null);
         loadingView.setVisibility(View.VISIBLE);
         if (departureService != null && stop != null) {
-          departureService.getAll((route == null ? null : route.getFullName()), stop.getCode(),
-              this, this);
+          departureService.getAll(route, stop, true, this, this);
         }
         break;
     }
   }
 
+  /**
+   * Redraws the departures at the start of the next minute, when their countdowns go down.
+   */
+  private void scheduleCountdownTick() {
+    listView.removeCallbacks(countdownTick);
+    listView.postDelayed(countdownTick, MINUTE_MS - System.currentTimeMillis() % MINUTE_MS);
+  }
+
   private void onFavClick() {
     if (stop != null) {
       stop.setFavorited(!stop.isFavorited());
@@ -183,4 +234,17 @@ public class ScheduledDeparturesDialogFragment extends RoboDialogFragment
       busStopGeofenceService.unregisterGeofence(stop);
     }
   }
+
+  /**
+   * Used to communicate with the main activity from the dialog.
+   *
+   * @author Ben Sechrist
+   */
+  public interface TalkToActivity {
+
+    /**
+     * Called when the user closes the dialog.
+     */
+    void onDeparturesDialogDismissed();
+  }
 }
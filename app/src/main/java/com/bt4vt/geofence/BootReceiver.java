@@ -30,11 +30,12 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.inject.Inject;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import roboguice.receiver.RoboBroadcastReceiver;
 
-public class BootReceiver extends RoboBroadcastReceiver implements Response.Listener<Stop>,
+public class BootReceiver extends RoboBroadcastReceiver implements Response.Listener<List<Stop>>,
     Response.ExceptionListener {
 
   private static final String TAG = "BootReceiver";
@@ -55,18 +56,30 @@ public class BootReceiver extends RoboBroadcastReceiver implements Response.List
         .isGooglePlayServicesAvailable(context) != ConnectionResult.SUCCESS) {
       Log.e(TAG, context.getString(R.string.no_play_services));
     } else {
-      List<FavoriteStop> favoriteStops = favoriteStopService.getFavoriteStops();
-      Log.d(TAG, "Adding geofences for favorited stops");
-      Log.d(TAG, favoriteStops.toString());
-      for (FavoriteStop favoriteStop : favoriteStops) {
-        stopService.get(favoriteStop.getCode(), this, this);
-      }
+      restoreGeofences();
     }
   }
 
+  /**
+   * Resolves every favorited stop with a single request and registers all of their geofences at
+   * once.
+   */
+  void restoreGeofences() {
+    List<FavoriteStop> favoriteStops = favoriteStopService.getFavoriteStops();
+    Log.d(TAG, "Adding geofences for favorited stops");
+    Log.d(TAG, favoriteStops.toString());
+    List<String> codes = new ArrayList<>(favoriteStops.size());
+    for (FavoriteStop favoriteStop : favoriteStops) {
+      codes.add(favoriteStop.getCode());
+    }
+    stopService.getMany(codes, this, this);
+  }
+
   @Override
-  public void onResult(Stop result) {
-    busStopGeofenceService.registerGeofence(result);
+  public void onResult(List<Stop> result) {
+    if (!result.isEmpty()) {
+      busStopGeofenceService.registerGeofences(result);
+    }
   }
 
   @Override
@@ -108,16 +108,16 @@ public class GeofenceTransitionsIntentService extends RoboIntentService implemen
 
   @Override
   public void onResult(final Stop stop) {
-    departureService.getAll(null, stop.getCode(), new Response.Listener<List<Departure>>() {
+    // A cached answer could be followed by a fresh one, posting the notification twice
+    departureService.getAll(null, stop.getCode(), true, new Response.Listener<List<Departure>>() {
       @Override
       public void onResult(List<Departure> departures) {
         final int MAX_DEPARTURES = getResources().getInteger(R.integer.max_departures_shown);
+        List<Departure> limited = new ArrayList<>(departures.size());
         for (Departure departure : departures) {
-          if (departure.getDepartures().size() > MAX_DEPARTURES) {
-            departure.setDepartures(departure.getDepartures().subList(0, MAX_DEPARTURES));
-          }
+          limited.add(departure.limit(MAX_DEPARTURES));
         }
-        sendNotfication(stop, departures);
+        sendNotfication(stop, limited);
       }
     }, this);
   }
@@ -130,12 +130,8 @@ public class GeofenceTransitionsIntentService extends RoboIntentService implemen
   private void sendNotfication(Stop stop, List<Departure> departures) {
     List<String> departureStrings = new ArrayList<>();
     for (Departure departure : departures) {
-      String departuresString = "";
-      for (String departureText : departure.getDepartures()) {
-        departuresString += departureText + '\n';
-      }
       departureStrings.add(getString(R.string.notification_departures_format,
-          departure.getRouteName(), departuresString));
+          departure.getRouteName(), departure.getText()));
     }
     Intent intent = new Intent(this, MainActivity.class);
     intent.putExtra(MainActivity.EXTRA_STOP_CODE, stop.getCode());
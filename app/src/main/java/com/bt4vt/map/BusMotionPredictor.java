@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Bus;
+import com.bt4vt.external.bt4u.Route;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dead reckoning of bus positions between polls.
+ * <p/>
+ * Each bus's speed is estimated from the distance between its last two fixes and the time BT4U
+ * says passed between them. From there the bus is assumed to keep that speed, starting from its
+ * latest fix at the moment that fix was received, for at most {@link #MAX_EXTRAPOLATION_MS}. A
+ * bus on the plot of its route is moved along the route's {@link RouteLine}, so it follows the
+ * streets, keeping the offset its fix had from the line so it starts out exactly at the fix. Any
+ * other bus is moved along its reported direction, but no further than
+ * {@link #MAX_STRAIGHT_LINE_METERS} since it may turn at any corner. Fix timestamps are only
+ * compared with each other, never with the device clock, which may not agree with BT4U's.
+ * <p/>
+ * Predictions are dropped as soon as the next fix comes in, so a bus that stopped or turned snaps
+ * back to where it really is.
+ *
+ * @author Ben Sechrist
+ */
+public class BusMotionPredictor {
+
+  /**
+   * How long past a fix a bus keeps moving, a little over a poll interval so markers don't stall
+   * while the next poll is in flight.
+   */
+  static final long MAX_EXTRAPOLATION_MS = 20000;
+
+  /**
+   * Fixes further apart than this don't say much about current speed.
+   */
+  static final long MAX_FIX_INTERVAL_MS = 60000;
+
+  /**
+   * Furthest a bus is moved in a straight line, about what it covers in a poll interval in town.
+   */
+  static final double MAX_STRAIGHT_LINE_METERS = 50;
+
+  /**
+   * Faster than any bus in town, speeds above it come from GPS noise.
+   */
+  static final double MAX_SPEED_MPS = 25;
+
+  private static final double METERS_PER_DEGREE = 111320;
+
+  private final Map<String, Track> tracks = new HashMap<>();
+
+  /**
+   * Records the latest fix of <code>bus</code>. A poll repeating a fix already seen changes
+   * nothing, the bus keeps moving from when that fix was first received.
+   *
+   * @param bus   the polled bus
+   * @param nowMs the current time, in {@link android.os.SystemClock#uptimeMillis()}
+   * @return true if this is a new fix, which the bus marker should snap to
+   */
+  public boolean onFix(Bus bus, long nowMs) {
+    Track track = tracks.get(bus.getId());
+    double speed = 0;
+    if (track == null) {
+      track = new Track();
+      tracks.put(bus.getId(), track);
+    } else if (track.timestamp == bus.getTimestamp()) {
+      return false;
+    } else {
+      long interval = bus.getTimestamp() - track.timestamp;
+      if (interval > 0 && interval <= MAX_FIX_INTERVAL_MS) {
+        speed = Math.min(MAX_SPEED_MPS,
+            distance(track.latitude, track.longitude, bus.getLatitude(), bus.getLongitude())
+                / interval * 1000);
+      }
+    }
+    double heading = Math.toRadians(bus.getDirection());
+    track.latitude = bus.getLatitude();
+    track.longitude = bus.getLongitude();
+    track.timestamp = bus.getTimestamp();
+    track.receivedAtMs = nowMs;
+    track.metersPerMs = speed / 1000;
+    track.latitudePerMeter = Math.cos(heading) / METERS_PER_DEGREE;
+    track.longitudePerMeter = Math.sin(heading)
+        / (METERS_PER_DEGREE * Math.cos(Math.toRadians(bus.getLatitude())));
+    Route route = bus.getRoute();
+    RouteLine line = route == null || route.getPlot() == null ? null : route.getPlot().getLine();
+    // Near the previous fix, so a bus doubling back along a street stays on its leg
+    track.distance = line == null ? RouteLine.OFF_ROUTE
+        : line.project(bus.getLatitude(), bus.getLongitude(),
+            line == track.line ? track.distance : RouteLine.OFF_ROUTE);
+    track.line = line;
+    if (track.distance != RouteLine.OFF_ROUTE) {
+      line.locate(track.distance, track.offset);
+      track.offset[0] = bus.getLatitude() - track.offset[0];
+      track.offset[1] = bus.getLongitude() - track.offset[1];
+    }
+    return true;
+  }
+
+  /**
+   * Writes where the bus with <code>busId</code> should be at <code>nowMs</code> into
+   * <code>position</code>, as latitude then longitude.
+   *
+   * @param busId    the bus id
+   * @param nowMs    the current time, in {@link android.os.SystemClock#uptimeMillis()}
+   * @param position receives the predicted latitude and longitude
+   * @return true if the bus is still moving, false if it stays put and its marker need not be
+   * updated
+   */
+  public boolean predict(String busId, long nowMs, double[] position) {
+    Track track = tracks.get(busId);
+    if (track == null) {
+      return false;
+    }
+    long elapsed = Math.max(0, Math.min(nowMs - track.receivedAtMs, MAX_EXTRAPOLATION_MS));
+    double meters = track.metersPerMs * elapsed;
+    if (track.distance != RouteLine.OFF_ROUTE) {
+      track.line.locate(track.distance + meters, position);
+      position[0] += track.offset[0];
+      position[1] += track.offset[1];
+    } else {
+      meters = Math.min(meters, MAX_STRAIGHT_LINE_METERS);
+      position[0] = track.latitude + track.latitudePerMeter * meters;
+      position[1] = track.longitude + track.longitudePerMeter * meters;
+    }
+    return track.metersPerMs != 0 && nowMs - track.receivedAtMs < MAX_EXTRAPOLATION_MS;
+  }
+
+  /**
+   * Forgets the bus with <code>busId</code>.
+   */
+  public void remove(String busId) {
+    tracks.remove(busId);
+  }
+
+  /**
+   * Forgets every bus.
+   */
+  public void clear() {
+    tracks.clear();
+  }
+
+  /**
+   * Returns the distance in meters between two nearby points.
+   */
+  private static double distance(double fromLatitude, double fromLongitude, double toLatitude,
+                                 double toLongitude) {
+    double north = (toLatitude - fromLatitude) * METERS_PER_DEGREE;
+    double east = (toLongitude - fromLongitude) * METERS_PER_DEGREE
+        * Math.cos(Math.toRadians((fromLatitude + toLatitude) / 2));
+    return Math.sqrt(north * north + east * east);
+  }
+
+  /**
+   * The latest fix of a bus, its speed and where it heads.
+   */
+  private static class Track {
+
+    private double latitude;
+
+    private double longitude;
+
+    private long timestamp;
+
+    private long receivedAtMs;
+
+    private double metersPerMs;
+
+    /**
+     * Heading, in degrees per meter.
+     */
+    private double latitudePerMeter;
+
+    private double longitudePerMeter;
+
+    private RouteLine line;
+
+    /**
+     * Distance of the fix along {@link #line}, or {@link RouteLine#OFF_ROUTE}.
+     */
+    private double distance = RouteLine.OFF_ROUTE;
+
+    /**
+     * Latitude and longitude from the point at {@link #distance} on {@link #line} to the fix.
+     */
+    private final double[] offset = new double[2];
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.BitmapFactory;
+import android.support.annotation.DrawableRes;
+import android.util.LongSparseArray;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * App wide cache of marker icons.
+ * <p/>
+ * Each drawable is decoded once per sample size and the resulting {@link BitmapDescriptor} is
+ * shared by every marker that uses it, across route switches and fragment recreation. The cache
+ * is dropped when the system asks the app to trim memory and rebuilt lazily on the next use.
+ * <p/>
+ * Descriptors can only be created once the map has been initialized, and the cache is meant to be
+ * used from the main thread only.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+public class MarkerIconCache implements ComponentCallbacks2 {
+
+  private final Context context;
+
+  private final LongSparseArray<BitmapDescriptor> icons = new LongSparseArray<>();
+
+  private int densityDpi;
+
+  @Inject
+  public MarkerIconCache(Context context) {
+    this.context = context.getApplicationContext();
+    this.densityDpi = this.context.getResources().getConfiguration().densityDpi;
+    this.context.registerComponentCallbacks(this);
+  }
+
+  /**
+   * Returns the icon for the given drawable at full size.
+   *
+   * @param resId the drawable resource id
+   * @return the shared icon
+   */
+  public BitmapDescriptor get(@DrawableRes int resId) {
+    return get(resId, 1);
+  }
+
+  /**
+   * Returns the icon for the given drawable decoded with <code>inSampleSize</code>, decoding it
+   * only if it is not cached yet.
+   *
+   * @param resId        the drawable resource id
+   * @param inSampleSize the {@link BitmapFactory.Options#inSampleSize} to decode with
+   * @return the shared icon
+   */
+  public BitmapDescriptor get(@DrawableRes int resId, int inSampleSize) {
+    long key = ((long) resId << 32) | inSampleSize;
+    BitmapDescriptor icon = icons.get(key);
+    if (icon == null) {
+      BitmapFactory.Options opts = new BitmapFactory.Options();
+      opts.inSampleSize = inSampleSize;
+      icon = BitmapDescriptorFactory.fromBitmap(BitmapFactory.decodeResource(
+          context.getResources(), resId, opts));
+      icons.put(key, icon);
+    }
+    return icon;
+  }
+
+  /**
+   * Releases every cached icon. Markers already on the map keep theirs.
+   */
+  public void clear() {
+    icons.clear();
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      clear();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    clear();
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+    // Rotation keeps the icons, only a new density needs them decoded again
+    if (newConfig.densityDpi != densityDpi) {
+      densityDpi = newConfig.densityDpi;
+      clear();
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Stop;
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Linear referencing over a {@link RoutePlot}: positions are snapped onto the plot and measured
+ * as a distance along it, in meters from its first point.
+ * <p/>
+ * Points are projected onto a plane tangent at the plot's first point, which is accurate to well
+ * under a meter across a town. Each segment is filed under every {@link #CELL_SIZE_METERS} grid
+ * cell its bounding box overlaps, so snapping a position only looks at the segments in the cells
+ * around it. Positions further than {@link #MAX_OFFSET_METERS} from the plot are off the route.
+ * <p/>
+ * A plot ending where it started is a loop, along which distances wrap around from the end back
+ * to the start.
+ * <p/>
+ * A route may run along the same street more than once, out and back or past a stop twice. A
+ * position on such a street lies on several legs of the route, which its distance along the route
+ * can only tell apart given where the bus was before, see {@link #project(double, double,
+ * double)}.
+ *
+ * @author Ben Sechrist
+ */
+public class RouteLine {
+
+  /**
+   * Returned for positions that are not on the route.
+   */
+  public static final double OFF_ROUTE = -1;
+
+  /**
+   * Must be at least {@link #MAX_OFFSET_METERS} for the cells around a position to hold every
+   * segment close enough to it.
+   */
+  static final double CELL_SIZE_METERS = 200;
+
+  /**
+   * Furthest a position can be from the plot and still be on the route, allowing for GPS error
+   * and stops set back from the road.
+   */
+  static final double MAX_OFFSET_METERS = 100;
+
+  /**
+   * Legs of the route closer than this to each other, like the two sides of a street, cannot be
+   * told apart by position alone.
+   */
+  static final double LEG_SEPARATION_METERS = 30;
+
+  /**
+   * How far back along the route a bus may seem to go, from GPS error, and still be taken to be
+   * where it was rather than on an earlier leg.
+   */
+  static final double MAX_BACKTRACK_METERS = 50;
+
+  private static final double METERS_PER_DEGREE = 111320;
+
+  private static final int[] NO_SEGMENTS = new int[0];
+
+  private final double originLatitude;
+
+  private final double originLongitude;
+
+  private final double metersPerLongitude;
+
+  private final double[] xs;
+
+  private final double[] ys;
+
+  /**
+   * Distance along the plot of each point.
+   */
+  private final double[] distances;
+
+  private final boolean loop;
+
+  private final Map<Long, int[]> cells = new HashMap<>();
+
+  public RouteLine(RoutePlot plot) {
+    int size = plot.size();
+    originLatitude = size == 0 ? 0 : plot.getLatitude(0);
+    originLongitude = size == 0 ? 0 : plot.getLongitude(0);
+    metersPerLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLatitude));
+    xs = new double[size];
+    ys = new double[size];
+    distances = new double[size];
+    for (int i = 0; i < size; i++) {
+      xs[i] = x(plot.getLongitude(i));
+      ys[i] = y(plot.getLatitude(i));
+      if (i > 0) {
+        distances[i] = distances[i - 1] + Math.hypot(xs[i] - xs[i - 1], ys[i] - ys[i - 1]);
+      }
+    }
+    loop = size > 2
+        && Math.hypot(xs[size - 1] - xs[0], ys[size - 1] - ys[0]) <= MAX_OFFSET_METERS;
+
+    Map<Long, List<Integer>> segmentsByCell = new HashMap<>();
+    for (int i = 0; i + 1 < size; i++) {
+      int minColumn = cell(Math.min(xs[i], xs[i + 1]));
+      int maxColumn = cell(Math.max(xs[i], xs[i + 1]));
+      int minRow = cell(Math.min(ys[i], ys[i + 1]));
+      int maxRow = cell(Math.max(ys[i], ys[i + 1]));
+      for (int row = minRow; row <= maxRow; row++) {
+        for (int column = minColumn; column <= maxColumn; column++) {
+          long key = key(row, column);
+          List<Integer> segments = segmentsByCell.get(key);
+          if (segments == null) {
+            segments = new ArrayList<>();
+            segmentsByCell.put(key, segments);
+          }
+          segments.add(i);
+        }
+      }
+    }
+    for (Map.Entry<Long, List<Integer>> entry : segmentsByCell.entrySet()) {
+      List<Integer> segments = entry.getValue();
+      int[] packed = new int[segments.size()];
+      for (int i = 0; i < packed.length; i++) {
+        packed[i] = segments.get(i);
+      }
+      cells.put(entry.getKey(), packed);
+    }
+  }
+
+  /**
+   * Returns the length of the route in meters.
+   */
+  public double getLength() {
+    return distances.length == 0 ? 0 : distances[distances.length - 1];
+  }
+
+  public boolean isLoop() {
+    return loop;
+  }
+
+  /**
+   * Snaps a position onto the route. Where legs of the route run together, the earliest one is
+   * taken.
+   *
+   * @param latitude  the latitude
+   * @param longitude the longitude
+   * @return the distance along the route of the closest point to the position, or
+   * {@link #OFF_ROUTE} if the position is too far from the route
+   */
+  public double project(double latitude, double longitude) {
+    return project(latitude, longitude, OFF_ROUTE);
+  }
+
+  /**
+   * Snaps a position onto the route, near <code>near</code>. Where legs of the route run
+   * together, the one next reached going along the route from <code>near</code> is taken, so a
+   * bus followed from fix to fix stays on the leg it is on.
+   *
+   * @param latitude  the latitude
+   * @param longitude the longitude
+   * @param near      a distance along the route, typically of the previous position, or
+   *                  {@link #OFF_ROUTE} to take the earliest leg
+   * @return the distance along the route of the position, or {@link #OFF_ROUTE} if the position
+   * is too far from the route
+   */
+  public double project(double latitude, double longitude, double near) {
+    double x = x(longitude);
+    double y = y(latitude);
+    // At most two rows and columns of cells hold segments close enough
+    int minRow = cell(y - MAX_OFFSET_METERS);
+    int maxRow = cell(y + MAX_OFFSET_METERS);
+    int minColumn = cell(x - MAX_OFFSET_METERS);
+    int maxColumn = cell(x + MAX_OFFSET_METERS);
+    double closest = MAX_OFFSET_METERS * MAX_OFFSET_METERS;
+    boolean onRoute = false;
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int column = minColumn; column <= maxColumn; column++) {
+        int[] segments = cells.get(key(row, column));
+        for (int segment : segments == null ? NO_SEGMENTS : segments) {
+          double offset = offset(segment, fraction(segment, x, y), x, y);
+          if (offset <= closest) {
+            closest = offset;
+            onRoute = true;
+          }
+        }
+      }
+    }
+    if (!onRoute) {
+      return OFF_ROUTE;
+    }
+
+    // Then among the legs about as close, the earliest or the next one from near
+    double limit = closest;
+    if (near != OFF_ROUTE) {
+      limit = Math.sqrt(closest) + LEG_SEPARATION_METERS;
+      limit *= limit;
+    }
+    double best = OFF_ROUTE;
+    double bestRank = Double.MAX_VALUE;
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int column = minColumn; column <= maxColumn; column++) {
+        int[] segments = cells.get(key(row, column));
+        for (int segment : segments == null ? NO_SEGMENTS : segments) {
+          double t = fraction(segment, x, y);
+          if (offset(segment, t, x, y) > limit) {
+            continue;
+          }
+          double distance = distances[segment] + t * (distances[segment + 1] - distances[segment]);
+          double rank = near == OFF_ROUTE ? distance : ahead(near, distance);
+          if (rank < bestRank) {
+            bestRank = rank;
+            best = distance;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the distance along the route from <code>from</code> to <code>to</code>, both
+   * distances along the route. On a loop, going past the end continues from the start.
+   *
+   * @param from the distance along the route to start from
+   * @param to   the distance along the route to get to
+   * @return the distance in meters, or {@link #OFF_ROUTE} if either is off the route or
+   * <code>to</code> is behind <code>from</code> on a route that is not a loop
+   */
+  public double between(double from, double to) {
+    if (from == OFF_ROUTE || to == OFF_ROUTE) {
+      return OFF_ROUTE;
+    }
+    double distance = to - from;
+    if (distance >= 0) {
+      return distance;
+    }
+    return loop ? distance + getLength() : OFF_ROUTE;
+  }
+
+  /**
+   * Returns the distance along the route from a position, typically a bus, to
+   * <code>stop</code>.
+   *
+   * @param latitude  the latitude
+   * @param longitude the longitude
+   * @param stop      a stop on the route
+   * @return the distance in meters, or {@link #OFF_ROUTE} if the position or the stop is off the
+   * route or the stop was already passed on a route that is not a loop
+   */
+  public double distanceTo(double latitude, double longitude, Stop stop) {
+    return distanceTo(project(latitude, longitude), stop);
+  }
+
+  /**
+   * Returns the distance along the route from <code>from</code>, typically a bus's distance
+   * along the route, to where the route next reaches <code>stop</code>.
+   *
+   * @param from the distance along the route to start from
+   * @param stop a stop on the route
+   * @return the distance in meters, or {@link #OFF_ROUTE} if <code>from</code> or the stop is off
+   * the route or the stop was already passed on a route that is not a loop
+   */
+  public double distanceTo(double from, Stop stop) {
+    if (from == OFF_ROUTE) {
+      return OFF_ROUTE;
+    }
+    LatLng latLng = stop.getLatLng();
+    return between(from, project(latLng.latitude, latLng.longitude, from));
+  }
+
+  /**
+   * Writes the point at <code>distance</code> along the route into <code>position</code>, as
+   * latitude then longitude. Distances are clamped to the route, or wrap around on a loop.
+   *
+   * @param distance the distance along the route
+   * @param position receives the latitude and longitude
+   */
+  public void locate(double distance, double[] position) {
+    int size = distances.length;
+    if (size == 0) {
+      position[0] = originLatitude;
+      position[1] = originLongitude;
+      return;
+    }
+    double length = getLength();
+    if (loop && length > 0) {
+      distance %= length;
+      if (distance < 0) {
+        distance += length;
+      }
+    }
+    distance = Math.max(0, Math.min(length, distance));
+    int index = Arrays.binarySearch(distances, distance);
+    double x;
+    double y;
+    if (index >= 0) {
+      x = xs[index];
+      y = ys[index];
+    } else {
+      // Between the point before the insertion point and the one at it
+      int next = -index - 1;
+      int previous = next - 1;
+      double t = (distance - distances[previous]) / (distances[next] - distances[previous]);
+      x = xs[previous] + t * (xs[next] - xs[previous]);
+      y = ys[previous] + t * (ys[next] - ys[previous]);
+    }
+    position[0] = originLatitude + y / METERS_PER_DEGREE;
+    position[1] = originLongitude + x / metersPerLongitude;
+  }
+
+  /**
+   * Returns where along <code>segment</code> the point closest to a position lies, from 0 at its
+   * start to 1 at its end.
+   */
+  private double fraction(int segment, double x, double y) {
+    double dx = xs[segment + 1] - xs[segment];
+    double dy = ys[segment + 1] - ys[segment];
+    double lengthSquared = dx * dx + dy * dy;
+    double t = lengthSquared == 0 ? 0
+        : ((x - xs[segment]) * dx + (y - ys[segment]) * dy) / lengthSquared;
+    return Math.max(0, Math.min(1, t));
+  }
+
+  /**
+   * Returns the squared distance between a position and the point at <code>t</code> along
+   * <code>segment</code>.
+   */
+  private double offset(int segment, double t, double x, double y) {
+    double offsetX = xs[segment] + t * (xs[segment + 1] - xs[segment]) - x;
+    double offsetY = ys[segment] + t * (ys[segment + 1] - ys[segment]) - y;
+    return offsetX * offsetX + offsetY * offsetY;
+  }
+
+  /**
+   * Ranks <code>distance</code> by how soon it is reached going along the route from
+   * <code>near</code>, allowing for {@link #MAX_BACKTRACK_METERS} of going back.
+   */
+  private double ahead(double near, double distance) {
+    double ahead = distance - near;
+    if (ahead >= -MAX_BACKTRACK_METERS) {
+      return Math.abs(ahead);
+    }
+    // Behind on a loop is reached after going around, otherwise never
+    return loop ? ahead + getLength() : getLength() - ahead;
+  }
+
+  private double x(double longitude) {
+    return (longitude - originLongitude) * metersPerLongitude;
+  }
+
+  private double y(double latitude) {
+    return (latitude - originLatitude) * METERS_PER_DEGREE;
+  }
+
+  private static int cell(double meters) {
+    return (int) Math.floor(meters / CELL_SIZE_METERS);
+  }
+
+  private static long key(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+}
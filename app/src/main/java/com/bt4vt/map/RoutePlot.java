@@ -0,0 +1,352 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoded route plot, packed into a single <code>int</code> array of alternating latitudes and
+ * longitudes in 1e-5 degrees, the precision of the encoded polylines BT4U sends.
+ * <p/>
+ * Converting back and forth with the encoded form is lossless, so a plot can always be encoded
+ * again for storage instead of keeping the original string around. {@link LatLng} objects are
+ * only created when the plot is drawn.
+ * <p/>
+ * Zoomed out, a plot is drawn from one of a few levels of detail simplified with Douglas-Peucker,
+ * see {@link #forZoom(float)}. Each level is within half a pixel of the full plot at the highest
+ * zoom it is drawn at, so switching levels is invisible.
+ *
+ * @author Ben Sechrist
+ */
+public class RoutePlot {
+
+  private static final double SCALE = 1e5;
+
+  /**
+   * Highest zoom each level of detail is drawn at, from the coarsest level. Past the last one the
+   * full plot is drawn.
+   */
+  static final float[] LEVEL_MAX_ZOOMS = {11, 13, 15};
+
+  /**
+   * Simplification tolerance in pixels, at a level's highest zoom.
+   */
+  private static final double LEVEL_TOLERANCE_PX = 0.5;
+
+  private static final RoutePlot[] NO_LEVELS = new RoutePlot[0];
+
+  private final int[] coordinates;
+
+  private RoutePlot[] levels;
+
+  private RouteLine line;
+
+  private RoutePlot(int[] coordinates) {
+    this(coordinates, null);
+  }
+
+  private RoutePlot(int[] coordinates, RoutePlot[] levels) {
+    this.coordinates = coordinates;
+    this.levels = levels;
+  }
+
+  /**
+   * Decodes a plot in the encoded polyline format.
+   *
+   * @param encoded the encoded polyline
+   * @return the decoded plot
+   * @throws IllegalArgumentException if <code>encoded</code> is truncated
+   */
+  public static RoutePlot decode(String encoded) {
+    int[] coordinates = new int[encoded.length()];
+    int count = 0;
+    int index = 0;
+    int latitude = 0;
+    int longitude = 0;
+    int length = encoded.length();
+    try {
+      while (index < length) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+          b = encoded.charAt(index++) - 63;
+          result |= (b & 0x1f) << shift;
+          shift += 5;
+        } while (b >= 0x20);
+        latitude += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
+
+        result = 0;
+        shift = 0;
+        do {
+          b = encoded.charAt(index++) - 63;
+          result |= (b & 0x1f) << shift;
+          shift += 5;
+        } while (b >= 0x20);
+        longitude += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
+
+        coordinates[count++] = latitude;
+        coordinates[count++] = longitude;
+      }
+    } catch (StringIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated polyline", e);
+    }
+    // Every point takes at least two characters, so this only ever shrinks
+    return new RoutePlot(Arrays.copyOf(coordinates, count));
+  }
+
+  /**
+   * Reads a plot written by {@link #writeTo(DataOutputStream)}.
+   *
+   * @param in the stream to read from
+   * @return the plot
+   * @throws IOException if the plot could not be read
+   */
+  public static RoutePlot readFrom(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count % 2 != 0) {
+      throw new IOException(String.format("Invalid coordinate count %d", count));
+    }
+    int[] coordinates = new int[count];
+    for (int i = 0; i < count; i++) {
+      coordinates[i] = in.readInt();
+    }
+    return new RoutePlot(coordinates);
+  }
+
+  /**
+   * Writes this plot as its coordinate count followed by the packed coordinates.
+   *
+   * @param out the stream to write to
+   * @throws IOException if the plot could not be written
+   */
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(coordinates.length);
+    for (int coordinate : coordinates) {
+      out.writeInt(coordinate);
+    }
+  }
+
+  /**
+   * Encodes this plot back into the encoded polyline format.
+   *
+   * @return the encoded polyline
+   */
+  public String encode() {
+    StringBuilder encoded = new StringBuilder(coordinates.length * 4);
+    int previousLatitude = 0;
+    int previousLongitude = 0;
+    for (int i = 0; i < coordinates.length; i += 2) {
+      encodeValue(coordinates[i] - previousLatitude, encoded);
+      encodeValue(coordinates[i + 1] - previousLongitude, encoded);
+      previousLatitude = coordinates[i];
+      previousLongitude = coordinates[i + 1];
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Returns the number of points in this plot.
+   */
+  public int size() {
+    return coordinates.length / 2;
+  }
+
+  public double getLatitude(int index) {
+    return coordinates[2 * index] / SCALE;
+  }
+
+  public double getLongitude(int index) {
+    return coordinates[2 * index + 1] / SCALE;
+  }
+
+  /**
+   * Returns the points of this plot as new {@link LatLng} objects, for drawing.
+   */
+  public List<LatLng> toLatLngs() {
+    List<LatLng> latLngs = new ArrayList<>(size());
+    for (int i = 0; i < coordinates.length; i += 2) {
+      latLngs.add(new LatLng(coordinates[i] / SCALE, coordinates[i + 1] / SCALE));
+    }
+    return latLngs;
+  }
+
+  /**
+   * Returns the level of detail of this plot to draw at <code>zoom</code>, this plot itself once
+   * zoomed in far enough.
+   *
+   * @param zoom the map zoom level
+   * @return the plot to draw
+   */
+  public RoutePlot forZoom(float zoom) {
+    RoutePlot[] levels = getLevels();
+    for (int i = 0; i < levels.length; i++) {
+      if (zoom <= LEVEL_MAX_ZOOMS[i]) {
+        return levels[i];
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Computes the levels of detail now rather than the first time the plot is drawn, so it can be
+   * done off the main thread.
+   */
+  public void prepareLevels() {
+    getLevels();
+  }
+
+  /**
+   * Returns the {@link RouteLine} over this plot, built the first time it is asked for.
+   */
+  public synchronized RouteLine getLine() {
+    if (line == null) {
+      line = new RouteLine(this);
+    }
+    return line;
+  }
+
+  private synchronized RoutePlot[] getLevels() {
+    if (levels == null) {
+      levels = new RoutePlot[LEVEL_MAX_ZOOMS.length];
+      for (int i = 0; i < levels.length; i++) {
+        levels[i] = simplify(tolerance(LEVEL_MAX_ZOOMS[i]));
+      }
+    }
+    return levels;
+  }
+
+  /**
+   * Returns the width of {@link #LEVEL_TOLERANCE_PX} at <code>zoom</code>, in 1e-5 degrees of
+   * longitude on the equator. The map is 256 pixels wide at zoom 0.
+   */
+  private static double tolerance(float zoom) {
+    return LEVEL_TOLERANCE_PX * 360 * SCALE / (256 * Math.pow(2, zoom));
+  }
+
+  /**
+   * Simplifies this plot with Douglas-Peucker, keeping every point further than
+   * <code>tolerance</code> from the simplified line. Longitudes are scaled to the plot's latitude
+   * so the tolerance holds in both directions on screen.
+   *
+   * @param tolerance the tolerance in 1e-5 degrees
+   * @return the simplified plot, without levels of its own
+   */
+  RoutePlot simplify(double tolerance) {
+    int size = size();
+    if (size < 3) {
+      return new RoutePlot(coordinates, NO_LEVELS);
+    }
+    double lngScale = Math.cos(Math.toRadians(coordinates[0] / SCALE));
+    double toleranceSq = tolerance * tolerance;
+    boolean[] keep = new boolean[size];
+    keep[0] = true;
+    keep[size - 1] = true;
+    int kept = 2;
+    // Pending ranges of points, there are never more of them than points
+    int[] stack = new int[2 * size];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = size - 1;
+    while (top > 0) {
+      int last = stack[--top];
+      int first = stack[--top];
+      double maxDistanceSq = toleranceSq;
+      int farthest = -1;
+      for (int i = first + 1; i < last; i++) {
+        double distanceSq = segmentDistanceSq(i, first, last, lngScale);
+        if (distanceSq > maxDistanceSq) {
+          maxDistanceSq = distanceSq;
+          farthest = i;
+        }
+      }
+      if (farthest != -1) {
+        keep[farthest] = true;
+        kept++;
+        stack[top++] = first;
+        stack[top++] = farthest;
+        stack[top++] = farthest;
+        stack[top++] = last;
+      }
+    }
+    int[] simplified = new int[2 * kept];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (keep[i]) {
+        simplified[count++] = coordinates[2 * i];
+        simplified[count++] = coordinates[2 * i + 1];
+      }
+    }
+    return new RoutePlot(simplified, NO_LEVELS);
+  }
+
+  /**
+   * Returns the squared distance of point <code>p</code> from the segment between points
+   * <code>a</code> and <code>b</code>.
+   */
+  private double segmentDistanceSq(int p, int a, int b, double lngScale) {
+    double ax = coordinates[2 * a + 1] * lngScale;
+    double ay = coordinates[2 * a];
+    double dx = coordinates[2 * b + 1] * lngScale - ax;
+    double dy = coordinates[2 * b] - ay;
+    double px = coordinates[2 * p + 1] * lngScale - ax;
+    double py = coordinates[2 * p] - ay;
+    double lengthSq = dx * dx + dy * dy;
+    if (lengthSq > 0) {
+      double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSq));
+      px -= t * dx;
+      py -= t * dy;
+    }
+    return px * px + py * py;
+  }
+
+  private static void encodeValue(int value, StringBuilder encoded) {
+    value = value < 0 ? ~(value << 1) : (value << 1);
+    while (value >= 0x20) {
+      encoded.append((char) ((0x20 | (value & 0x1f)) + 63));
+      value >>>= 5;
+    }
+    encoded.append((char) (value + 63));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    RoutePlot routePlot = (RoutePlot) o;
+
+    return Arrays.equals(coordinates, routePlot.coordinates);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(coordinates);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RoutePlot{%d points}", size());
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App wide cache of decoded {@link RoutePlot}s, so a plot is decoded once and not on every route
+ * selection or cold start.
+ * <p/>
+ * Plots are keyed by route and a hash of their encoded form, and kept both in memory, bounded by
+ * their total number of points, and as small binary files in the app's cache directory. A plot
+ * that changes for a route replaces its old file. Files that can't be read are decoded again from
+ * the encoded plot.
+ * <p/>
+ * Safe to call from any thread but the main one, which must never wait on files or on plots
+ * being simplified. Plots are decoded while parsing on Volley's network threads, and stored routes
+ * are read on the offline store's thread. A route's plot is loaded by one thread at a time, others
+ * asking for it wait, but loading a route's plot never holds up another route.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+public class RoutePlotCache {
+
+  private static final String TAG = "RoutePlotCache";
+
+  static final int MAX_POINTS = 100000;
+
+  static final String DIRECTORY = "route_plots";
+
+  private static final int FILE_VERSION = 1;
+
+  private final File directory;
+
+  private final LruCache<String, RoutePlot> plots = new LruCache<String, RoutePlot>(MAX_POINTS) {
+    @Override
+    protected int sizeOf(String key, RoutePlot plot) {
+      return Math.max(1, plot.size());
+    }
+  };
+
+  private final ConcurrentHashMap<String, Object> routeLocks = new ConcurrentHashMap<>();
+
+  private final AtomicInteger decodeCount = new AtomicInteger();
+
+  @Inject
+  public RoutePlotCache(Context context) {
+    this.directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+  }
+
+  /**
+   * Returns the decoded plot of route <code>shortName</code>, decoding <code>encoded</code> only
+   * if it isn't cached in memory or on disk yet.
+   *
+   * @param shortName the route short name
+   * @param encoded   the encoded plot
+   * @return the decoded plot
+   * @throws IllegalArgumentException if <code>encoded</code> is not a valid polyline
+   */
+  public RoutePlot get(String shortName, String encoded) {
+    String prefix = filePrefix(shortName);
+    String key = prefix + Integer.toHexString(encoded.hashCode()) + "_" + encoded.length();
+    // LruCache synchronizes itself
+    RoutePlot plot = plots.get(key);
+    if (plot != null) {
+      return plot;
+    }
+    // The route's files are only touched under its lock, a changed plot deletes the old ones
+    routeLocks.putIfAbsent(prefix, new Object());
+    synchronized (routeLocks.get(prefix)) {
+      plot = plots.get(key);
+      if (plot != null) {
+        // Loaded while waiting
+        return plot;
+      }
+      File file = new File(directory, key);
+      plot = read(file);
+      if (plot == null) {
+        plot = RoutePlot.decode(encoded);
+        decodeCount.incrementAndGet();
+        write(file, prefix, plot);
+      }
+      // Simplifying here keeps it off the main thread
+      plot.prepareLevels();
+      plots.put(key, plot);
+      return plot;
+    }
+  }
+
+  /**
+   * Returns the number of plots that had to be decoded.
+   */
+  public int getDecodeCount() {
+    return decodeCount.get();
+  }
+
+  private RoutePlot read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != FILE_VERSION) {
+        return null;
+      }
+      return RoutePlot.readFrom(in);
+    } catch (IOException e) {
+      Log.w(TAG, String.format("Could not read %s", file), e);
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private void write(File file, String prefix, RoutePlot plot) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      return;
+    }
+    File[] oldFiles = directory.listFiles();
+    if (oldFiles != null) {
+      for (File oldFile : oldFiles) {
+        if (oldFile.getName().startsWith(prefix)) {
+          oldFile.delete();
+        }
+      }
+    }
+    // Written aside and renamed, so a crash never leaves a partial file behind
+    File tmp = new File(directory, file.getName() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(FILE_VERSION);
+      plot.writeTo(out);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, String.format("Could not write %s", file), e);
+      tmp.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private static String filePrefix(String shortName) {
+    return shortName.replaceAll("[^A-Za-z0-9]", "_") + "-";
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Nothing left to do
+      }
+    }
+  }
+}
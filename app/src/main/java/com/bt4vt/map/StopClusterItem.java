@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Stop;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * Adapts a {@link Stop} to the clustering utilities.
+ *
+ * @author Ben Sechrist
+ */
+public class StopClusterItem implements ClusterItem {
+
+  private final Stop stop;
+
+  public StopClusterItem(Stop stop) {
+    this.stop = stop;
+  }
+
+  public Stop getStop() {
+    return stop;
+  }
+
+  @Override
+  public LatLng getPosition() {
+    return stop.getLatLng();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import android.content.Context;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.maps.android.clustering.ClusterManager;
+import com.google.maps.android.clustering.view.DefaultClusterRenderer;
+
+/**
+ * Renders single stops with the same marker used outside of clustering, so tapping one still
+ * opens its departures.
+ *
+ * @author Ben Sechrist
+ */
+public class StopClusterRenderer extends DefaultClusterRenderer<StopClusterItem> {
+
+  private final BitmapDescriptor icon;
+
+  private final String snippet;
+
+  public StopClusterRenderer(Context context, GoogleMap map,
+                             ClusterManager<StopClusterItem> clusterManager,
+                             BitmapDescriptor icon, String snippet) {
+    super(context, map, clusterManager);
+    this.icon = icon;
+    this.snippet = snippet;
+  }
+
+  @Override
+  protected void onBeforeClusterItemRendered(StopClusterItem item, MarkerOptions markerOptions) {
+    markerOptions
+        // DO NOT CHANGE TITLE: Title being used on click to retrieve scheduled departures
+        .title(item.getStop().toString())
+        .snippet(snippet)
+        .icon(icon);
+  }
+}
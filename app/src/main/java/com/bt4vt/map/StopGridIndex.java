@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Stop;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over stop locations used to find the stops inside a viewport without walking
+ * every stop.
+ * <p/>
+ * Cells are {@link #CELL_SIZE_DEGREES} on a side, which is a few city blocks around Blacksburg.
+ * Queries return every stop in the cells overlapping the requested area, so results can include
+ * stops slightly outside of it. Bounds crossing the antimeridian are not supported.
+ *
+ * @author Ben Sechrist
+ */
+public class StopGridIndex {
+
+  static final double CELL_SIZE_DEGREES = 0.005;
+
+  private final Map<Long, List<Stop>> cells = new HashMap<>();
+
+  private int size = 0;
+
+  public StopGridIndex(Collection<Stop> stops) {
+    for (Stop stop : stops) {
+      LatLng latLng = stop.getLatLng();
+      long key = key(cell(latLng.latitude), cell(latLng.longitude));
+      List<Stop> cell = cells.get(key);
+      if (cell == null) {
+        cell = new ArrayList<>();
+        cells.put(key, cell);
+      }
+      cell.add(stop);
+      size++;
+    }
+  }
+
+  /**
+   * Returns the stops within <code>bounds</code> grown by <code>margin</code> of its size on
+   * every side.
+   *
+   * @param bounds the visible bounds
+   * @param margin the fraction of the bounds' height and width to add on each side
+   * @return the stops in or near the bounds
+   */
+  public List<Stop> query(LatLngBounds bounds, double margin) {
+    double latMargin = (bounds.northeast.latitude - bounds.southwest.latitude) * margin;
+    double lngMargin = (bounds.northeast.longitude - bounds.southwest.longitude) * margin;
+    return query(bounds.southwest.latitude - latMargin, bounds.southwest.longitude - lngMargin,
+        bounds.northeast.latitude + latMargin, bounds.northeast.longitude + lngMargin);
+  }
+
+  /**
+   * Returns the stops in the cells overlapping the given area.
+   *
+   * @param south the southern latitude
+   * @param west  the western longitude
+   * @param north the northern latitude
+   * @param east  the eastern longitude
+   * @return the stops in or near the area
+   */
+  public List<Stop> query(double south, double west, double north, double east) {
+    int minRow = cell(south);
+    int maxRow = cell(north);
+    int minColumn = cell(west);
+    int maxColumn = cell(east);
+    List<Stop> stops = new ArrayList<>();
+    // Zoomed far out the area covers more cells than there are stops
+    if ((long) (maxRow - minRow + 1) * (maxColumn - minColumn + 1) > cells.size()) {
+      for (Map.Entry<Long, List<Stop>> entry : cells.entrySet()) {
+        int row = (int) (entry.getKey() >> 32);
+        int column = (int) (long) entry.getKey();
+        if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+          stops.addAll(entry.getValue());
+        }
+      }
+      return stops;
+    }
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int column = minColumn; column <= maxColumn; column++) {
+        List<Stop> cell = cells.get(key(row, column));
+        if (cell != null) {
+          stops.addAll(cell);
+        }
+      }
+    }
+    return stops;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static int cell(double degrees) {
+    return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+  }
+
+  private static long key(int row, int column) {
+    return ((long) row << 32) | (column & 0xffffffffL);
+  }
+}
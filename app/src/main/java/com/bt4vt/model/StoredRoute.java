@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.model;
+
+import com.activeandroid.Model;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.annotation.Table;
+
+/**
+ * Active Android model of a route as last received from BT4U, kept so routes can be shown
+ * without a network connection.
+ * <p/>
+ * <code>stopCodes</code> is the comma separated, ordered list of the route's stop codes, or null
+ * if the route's stops have not been stored yet. <code>hash</code> is the content hash the catalog
+ * manifest listed for the route when it was stored, if any.
+ *
+ * @author Ben Sechrist
+ */
+@Table(name = "StoredRoutes")
+public class StoredRoute extends Model {
+
+  @Column(notNull = true, unique = true)
+  private String shortName;
+
+  @Column
+  private String fullName;
+
+  @Column
+  private String plot;
+
+  @Column
+  private Integer color;
+
+  @Column
+  private String stopCodes;
+
+  @Column
+  private String hash;
+
+  public String getShortName() {
+    return shortName;
+  }
+
+  public void setShortName(String shortName) {
+    this.shortName = shortName;
+  }
+
+  public String getFullName() {
+    return fullName;
+  }
+
+  public void setFullName(String fullName) {
+    this.fullName = fullName;
+  }
+
+  public String getPlot() {
+    return plot;
+  }
+
+  public void setPlot(String plot) {
+    this.plot = plot;
+  }
+
+  public Integer getColor() {
+    return color;
+  }
+
+  public void setColor(Integer color) {
+    this.color = color;
+  }
+
+  public String getStopCodes() {
+    return stopCodes;
+  }
+
+  public void setStopCodes(String stopCodes) {
+    this.stopCodes = stopCodes;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  public void setHash(String hash) {
+    this.hash = hash;
+  }
+
+  @Override
+  public String toString() {
+    return "StoredRoute{" +
+        "shortName='" + shortName + '\'' +
+        ", fullName='" + fullName + '\'' +
+        '}';
+  }
+}
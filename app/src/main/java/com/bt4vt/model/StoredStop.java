@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.model;
+
+import com.activeandroid.Model;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.annotation.Table;
+
+/**
+ * Active Android model of a stop as last received from BT4U, kept so stops can be shown without
+ * a network connection. <code>hash</code> is the content hash the catalog manifest listed for the
+ * stop when it was stored, if any.
+ *
+ * @author Ben Sechrist
+ */
+@Table(name = "StoredStops")
+public class StoredStop extends Model {
+
+  @Column(notNull = true, unique = true)
+  private String code;
+
+  @Column
+  private String name;
+
+  @Column
+  private Double latitude;
+
+  @Column
+  private Double longitude;
+
+  @Column
+  private String hash;
+
+  public String getCode() {
+    return code;
+  }
+
+  public void setCode(String code) {
+    this.code = code;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public Double getLatitude() {
+    return latitude;
+  }
+
+  public void setLatitude(Double latitude) {
+    this.latitude = latitude;
+  }
+
+  public Double getLongitude() {
+    return longitude;
+  }
+
+  public void setLongitude(Double longitude) {
+    this.longitude = longitude;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  public void setHash(String hash) {
+    this.hash = hash;
+  }
+
+  @Override
+  public String toString() {
+    return "StoredStop{" +
+        "code='" + code + '\'' +
+        ", name='" + name + '\'' +
+        '}';
+  }
+}
@@ -21,15 +21,28 @@ import com.bt4vt.external.bt4u.Stop;
 import com.bt4vt.model.FavoriteStop;
 import com.google.inject.Singleton;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service to handle favoriting {@link Stop} objects.
+ * <p/>
+ * The codes of favorited stops are loaded from the database once and then kept in memory,
+ * written through on every {@link #upsert(Stop)}, so {@link #isFavorited(String)} never touches
+ * SQLite. It is safe to call from the Volley network threads that build stops.
  *
  * @author Ben Sechrist
  */
 @Singleton
 public class FavoriteStopService {
+
+  private final Set<String> favoritedCodes =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private volatile boolean loaded = false;
+
   public void upsert(Stop stop) {
     FavoriteStop existing = new Select()
         .from(FavoriteStop.class)
@@ -44,6 +57,23 @@ public class FavoriteStopService {
       existing.setFavorited(stop.isFavorited());
       existing.save();
     }
+    loadFavoritedCodes();
+    if (stop.isFavorited()) {
+      favoritedCodes.add(stop.getCode());
+    } else {
+      favoritedCodes.remove(stop.getCode());
+    }
+  }
+
+  /**
+   * Returns whether the stop with the given <code>code</code> is favorited.
+   *
+   * @param code the stop code
+   * @return true if the stop is favorited
+   */
+  public boolean isFavorited(String code) {
+    loadFavoritedCodes();
+    return favoritedCodes.contains(code);
   }
 
   public List<FavoriteStop> getFavoriteStops() {
@@ -52,4 +82,18 @@ public class FavoriteStopService {
         .where("isFavorited = ?", true)
         .execute();
   }
+
+  private void loadFavoritedCodes() {
+    if (loaded) {
+      return;
+    }
+    synchronized (favoritedCodes) {
+      if (!loaded) {
+        for (FavoriteStop favoriteStop : getFavoriteStops()) {
+          favoritedCodes.add(favoriteStop.getCode());
+        }
+        loaded = true;
+      }
+    }
+  }
 }
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.service;
+
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+import com.bt4vt.external.bt4u.EntityRegistry;
+import com.bt4vt.external.bt4u.Response;
+import com.bt4vt.external.bt4u.Route;
+import com.bt4vt.external.bt4u.Stop;
+import com.bt4vt.map.RoutePlotCache;
+import com.bt4vt.model.StoredRoute;
+import com.bt4vt.model.StoredStop;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service keeping the last routes and stops received from BT4U in the database, so they can be
+ * shown on a cold start or without a network connection.
+ * <p/>
+ * Writes happen in a single transaction on {@link AsyncTask#SERIAL_EXECUTOR} so saving a few
+ * hundred stops never blocks the UI thread. Reads run there too, so they see every write queued
+ * before them, and deliver their result to a listener on the main thread. Favorites are not
+ * stored here, they are reapplied from {@link FavoriteStopService} on every read. What is read
+ * goes through the {@link EntityRegistry}, so it shares instances with what was parsed. Stored
+ * routes and stops remember the catalog manifest hash they were fetched for, so that syncs only
+ * fetch what changed since.
+ *
+ * @author Ben Sechrist
+ */
+@Singleton
+public class OfflineStoreService {
+
+  private static final String TAG = "OfflineStoreService";
+
+  @Inject
+  private FavoriteStopService favoriteStopService;
+
+  @Inject
+  private RoutePlotCache routePlotCache;
+
+  @Inject
+  private EntityRegistry entityRegistry;
+
+  /**
+   * Reads every stored route, without their stops.
+   *
+   * @param listener receives the routes, empty if none have been stored
+   */
+  public void getRoutes(Response.Listener<List<Route>> listener) {
+    read(new Query<List<Route>>() {
+      @Override
+      public List<Route> run() {
+        return queryRoutes();
+      }
+    }, listener);
+  }
+
+  /**
+   * Reads the stored route with <code>shortName</code> along with its stops.
+   *
+   * @param listener receives the route, or null if the route or any of its stops, with its
+   *                 position, has not been stored
+   */
+  public void getRoute(final String shortName, Response.Listener<Route> listener) {
+    read(new Query<Route>() {
+      @Override
+      public Route run() {
+        return queryRoute(shortName);
+      }
+    }, listener);
+  }
+
+  /**
+   * Reads every stored stop. Stops stored without a position are left out.
+   *
+   * @param listener receives the stops, empty if none have been stored
+   */
+  public void getStops(Response.Listener<List<Stop>> listener) {
+    read(new Query<List<Stop>>() {
+      @Override
+      public List<Stop> run() {
+        return queryStops();
+      }
+    }, listener);
+  }
+
+  /**
+   * Reads the stored stop with <code>code</code>.
+   *
+   * @param listener receives the stop, or null if it has not been stored with its position
+   */
+  public void getStop(final String code, Response.Listener<Stop> listener) {
+    read(new Query<Stop>() {
+      @Override
+      public Stop run() {
+        StoredStop storedStop = new Select()
+            .from(StoredStop.class)
+            .where("code = ?", code)
+            .executeSingle();
+        return storedStop == null || !hasPosition(storedStop) ? null : toStop(storedStop);
+      }
+    }, listener);
+  }
+
+  /**
+   * Reads the catalog manifest hash of every stored route by short name. Routes stored without a
+   * hash map to null.
+   */
+  public void getRouteHashes(Response.Listener<Map<String, String>> listener) {
+    read(new Query<Map<String, String>>() {
+      @Override
+      public Map<String, String> run() {
+        List<StoredRoute> storedRoutes = new Select()
+            .from(StoredRoute.class)
+            .execute();
+        Map<String, String> hashes = new HashMap<>();
+        if (storedRoutes != null) {
+          for (StoredRoute storedRoute : storedRoutes) {
+            hashes.put(storedRoute.getShortName(), storedRoute.getHash());
+          }
+        }
+        return hashes;
+      }
+    }, listener);
+  }
+
+  /**
+   * Reads the catalog manifest hash of every stored stop by code. Stops stored without a hash map
+   * to null.
+   */
+  public void getStopHashes(Response.Listener<Map<String, String>> listener) {
+    read(new Query<Map<String, String>>() {
+      @Override
+      public Map<String, String> run() {
+        List<StoredStop> storedStops = new Select()
+            .from(StoredStop.class)
+            .execute();
+        Map<String, String> hashes = new HashMap<>();
+        if (storedStops != null) {
+          for (StoredStop storedStop : storedStops) {
+            hashes.put(storedStop.getCode(), storedStop.getHash());
+          }
+        }
+        return hashes;
+      }
+    }, listener);
+  }
+
+  /**
+   * Stores <code>routes</code>. Stops already stored for a route are kept.
+   */
+  public void saveRoutes(List<Route> routes) {
+    final List<Route> toSave = new ArrayList<>(routes);
+    AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        ActiveAndroid.beginTransaction();
+        try {
+          for (Route route : toSave) {
+            upsertRoute(route, false, null);
+          }
+          ActiveAndroid.setTransactionSuccessful();
+        } finally {
+          ActiveAndroid.endTransaction();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stores <code>route</code> along with its stops.
+   */
+  public void saveRoute(Route route) {
+    saveRoute(route, null);
+  }
+
+  /**
+   * Stores <code>route</code> along with its stops and the catalog manifest <code>hash</code> it
+   * was fetched for. A null hash keeps the stored one, which at worst makes the next sync fetch
+   * the route again.
+   */
+  public void saveRoute(Route route, final String hash) {
+    final Route toSave = route;
+    final List<Stop> stops = new ArrayList<>(route.getStops());
+    AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        ActiveAndroid.beginTransaction();
+        try {
+          upsertStops(stops, null);
+          upsertRoute(toSave, true, hash);
+          ActiveAndroid.setTransactionSuccessful();
+        } finally {
+          ActiveAndroid.endTransaction();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stores <code>stops</code>.
+   */
+  public void saveStops(List<Stop> stops) {
+    saveStops(stops, null);
+  }
+
+  /**
+   * Stores <code>stops</code> along with the catalog manifest <code>hashes</code> they were
+   * fetched for, by stop code. Stops without a hash keep the stored one.
+   */
+  public void saveStops(List<Stop> stops, Map<String, String> hashes) {
+    final List<Stop> toSave = new ArrayList<>(stops);
+    final Map<String, String> toSaveHashes = hashes == null ? null : new HashMap<>(hashes);
+    AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        ActiveAndroid.beginTransaction();
+        try {
+          upsertStops(toSave, toSaveHashes);
+          ActiveAndroid.setTransactionSuccessful();
+        } finally {
+          ActiveAndroid.endTransaction();
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes the routes with <code>shortNames</code> and the stops with <code>codes</code>, which
+   * BT4U no longer lists.
+   */
+  public void delete(Collection<String> shortNames, Collection<String> codes) {
+    final List<String> routesToDelete = new ArrayList<>(shortNames);
+    final List<String> stopsToDelete = new ArrayList<>(codes);
+    AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        ActiveAndroid.beginTransaction();
+        try {
+          for (String shortName : routesToDelete) {
+            new Delete().from(StoredRoute.class).where("shortName = ?", shortName).execute();
+          }
+          for (String code : stopsToDelete) {
+            new Delete().from(StoredStop.class).where("code = ?", code).execute();
+          }
+          ActiveAndroid.setTransactionSuccessful();
+        } finally {
+          ActiveAndroid.endTransaction();
+        }
+      }
+    });
+  }
+
+  private List<Route> queryRoutes() {
+    List<StoredRoute> storedRoutes = new Select()
+        .from(StoredRoute.class)
+        .execute();
+    if (storedRoutes == null) {
+      return Collections.emptyList();
+    }
+    List<Route> routes = new ArrayList<>(storedRoutes.size());
+    for (StoredRoute storedRoute : storedRoutes) {
+      routes.add(entityRegistry.intern(toRoute(storedRoute)));
+    }
+    return routes;
+  }
+
+  private Route queryRoute(String shortName) {
+    StoredRoute storedRoute = new Select()
+        .from(StoredRoute.class)
+        .where("shortName = ?", shortName)
+        .executeSingle();
+    if (storedRoute == null || storedRoute.getStopCodes() == null) {
+      return null;
+    }
+    Route route = toRoute(storedRoute);
+    if (storedRoute.getStopCodes().isEmpty()) {
+      return entityRegistry.intern(route);
+    }
+    String[] codes = TextUtils.split(storedRoute.getStopCodes(), ",");
+    String[] placeholders = new String[codes.length];
+    Arrays.fill(placeholders, "?");
+    List<StoredStop> storedStops = new Select()
+        .from(StoredStop.class)
+        .where("code IN (" + TextUtils.join(",", placeholders) + ")", (Object[]) codes)
+        .execute();
+    Map<String, StoredStop> storedStopsByCode = new HashMap<>();
+    if (storedStops != null) {
+      for (StoredStop storedStop : storedStops) {
+        storedStopsByCode.put(storedStop.getCode(), storedStop);
+      }
+    }
+    List<Stop> stops = new ArrayList<>(codes.length);
+    for (String code : codes) {
+      StoredStop storedStop = storedStopsByCode.get(code);
+      if (storedStop == null || !hasPosition(storedStop)) {
+        // A stop went missing, better to fetch the whole route again
+        return null;
+      }
+      stops.add(toStop(storedStop));
+    }
+    route.setStops(stops);
+    return entityRegistry.intern(route);
+  }
+
+  private List<Stop> queryStops() {
+    List<StoredStop> storedStops = new Select()
+        .from(StoredStop.class)
+        .execute();
+    if (storedStops == null) {
+      return Collections.emptyList();
+    }
+    List<Stop> stops = new ArrayList<>(storedStops.size());
+    for (StoredStop storedStop : storedStops) {
+      if (hasPosition(storedStop)) {
+        stops.add(toStop(storedStop));
+      }
+    }
+    return stops;
+  }
+
+  /**
+   * Runs <code>query</code> on {@link AsyncTask#SERIAL_EXECUTOR}, after any write queued before
+   * it, and delivers its result to <code>listener</code> on the main thread.
+   */
+  private <T> void read(final Query<T> query, final Response.Listener<T> listener) {
+    new AsyncTask<Void, Void, T>() {
+      @Override
+      protected T doInBackground(Void... params) {
+        return query.run();
+      }
+
+      @Override
+      protected void onPostExecute(T result) {
+        listener.onResult(result);
+      }
+    }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+  }
+
+  private void upsertRoute(Route route, boolean withStops, String hash) {
+    StoredRoute storedRoute = new Select()
+        .from(StoredRoute.class)
+        .where("shortName = ?", route.getShortName())
+        .executeSingle();
+    if (storedRoute == null) {
+      storedRoute = new StoredRoute();
+      storedRoute.setShortName(route.getShortName());
+    }
+    storedRoute.setFullName(route.getFullName());
+    // Encoding is lossless and far more compact than the decoded points
+    storedRoute.setPlot(route.getPlot() == null ? null : route.getPlot().encode());
+    storedRoute.setColor(route.getColor());
+    if (withStops) {
+      List<String> codes = new ArrayList<>(route.getStops().size());
+      for (Stop stop : route.getStops()) {
+        codes.add(stop.getCode());
+      }
+      storedRoute.setStopCodes(TextUtils.join(",", codes));
+    }
+    if (hash != null) {
+      storedRoute.setHash(hash);
+    }
+    storedRoute.save();
+  }
+
+  private void upsertStops(List<Stop> stops, Map<String, String> hashes) {
+    Map<String, StoredStop> existing = new HashMap<>();
+    List<StoredStop> storedStops = new Select()
+        .from(StoredStop.class)
+        .execute();
+    if (storedStops != null) {
+      for (StoredStop storedStop : storedStops) {
+        existing.put(storedStop.getCode(), storedStop);
+      }
+    }
+    for (Stop stop : stops) {
+      StoredStop storedStop = existing.get(stop.getCode());
+      if (storedStop == null) {
+        storedStop = new StoredStop();
+        storedStop.setCode(stop.getCode());
+      }
+      storedStop.setName(stop.getName());
+      LatLng latLng = stop.getLatLng();
+      storedStop.setLatitude(latLng == null ? null : latLng.latitude);
+      storedStop.setLongitude(latLng == null ? null : latLng.longitude);
+      String hash = hashes == null ? null : hashes.get(stop.getCode());
+      if (hash != null) {
+        storedStop.setHash(hash);
+      }
+      storedStop.save();
+    }
+  }
+
+  private Route toRoute(StoredRoute storedRoute) {
+    Route route = new Route(storedRoute.getShortName());
+    route.setFullName(storedRoute.getFullName());
+    if (storedRoute.getPlot() != null) {
+      try {
+        route.setPlot(routePlotCache.get(storedRoute.getShortName(), storedRoute.getPlot()));
+      } catch (IllegalArgumentException e) {
+        Log.w(TAG, String.format("Invalid stored plot for %s", storedRoute), e);
+      }
+    }
+    route.setColor(storedRoute.getColor());
+    return route;
+  }
+
+  private Stop toStop(StoredStop storedStop) {
+    Stop stop = new Stop(storedStop.getCode());
+    stop.setName(storedStop.getName());
+    stop.setLatLng(new LatLng(storedStop.getLatitude(), storedStop.getLongitude()));
+    stop.setFavorited(favoriteStopService.isFavorited(storedStop.getCode()));
+    return entityRegistry.intern(stop);
+  }
+
+  private static boolean hasPosition(StoredStop storedStop) {
+    return storedStop.getLatitude() != null && storedStop.getLongitude() != null;
+  }
+
+  /**
+   * Read of the database, run off the main thread.
+   */
+  private interface Query<T> {
+    T run();
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt;
+
+/**
+ * JUnit category of tests that measure time or memory and report it, rather than check
+ * behavior. They are left out of the unit tests unless the build is run with
+ * <code>-Pbenchmarks</code>.
+ *
+ * @author Ben Sechrist
+ */
+public interface Benchmark {
+}
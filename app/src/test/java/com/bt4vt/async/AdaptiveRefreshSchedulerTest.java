@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.async;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests the {@link AdaptiveRefreshScheduler}.
+ *
+ * @author Ben Sechrist
+ */
+public class AdaptiveRefreshSchedulerTest {
+
+  private static final long INTERVAL = 5000;
+
+  private FakeClock clock;
+
+  private RecordingTask task;
+
+  private AdaptiveRefreshScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock();
+    task = new RecordingTask();
+    // No jitter unless a test asks for it
+    scheduler = new AdaptiveRefreshScheduler(clock, INTERVAL, new FixedRandom(0.5));
+  }
+
+  @Test
+  public void testRefreshesImmediatelyThenEveryIntervalWhileChanging() {
+    scheduler.start(task);
+    clock.advance(0);
+    assertEquals(1, task.polls.size());
+
+    task.complete(true);
+    clock.advance(INTERVAL - 1);
+    assertEquals(1, task.polls.size());
+    clock.advance(1);
+    assertEquals(2, task.polls.size());
+  }
+
+  @Test
+  public void testNoRefreshWhileOneIsInFlight() {
+    scheduler.start(task);
+    clock.advance(10 * INTERVAL);
+    assertEquals(1, task.polls.size());
+  }
+
+  @Test
+  public void testSlowsDownWhenNothingChanges() {
+    scheduler.start(task);
+    clock.advance(0);
+
+    task.complete(false);
+    assertEquals(2 * INTERVAL, clock.advanceToNext());
+    task.complete(false);
+    assertEquals(4 * INTERVAL, clock.advanceToNext());
+    task.complete(false);
+    assertEquals(4 * INTERVAL, clock.advanceToNext());
+
+    task.complete(true);
+    assertEquals(INTERVAL, clock.advanceToNext());
+  }
+
+  @Test
+  public void testBacksOffExponentiallyOnFailure() {
+    scheduler.start(task);
+    clock.advance(0);
+
+    long expected = INTERVAL;
+    for (int i = 0; i < 6; i++) {
+      task.fail();
+      expected = Math.min(expected * 2, AdaptiveRefreshScheduler.MAX_INTERVAL_MS);
+      assertEquals(expected, clock.advanceToNext());
+    }
+
+    task.complete(true);
+    assertEquals(INTERVAL, clock.advanceToNext());
+  }
+
+  @Test
+  public void testPauseHoldsRefreshesUntilResumed() {
+    scheduler.start(task);
+    clock.advance(0);
+    task.complete(true);
+
+    scheduler.pause();
+    clock.advance(10 * INTERVAL);
+    assertEquals(1, task.polls.size());
+
+    scheduler.resume();
+    clock.advance(0);
+    assertEquals(2, task.polls.size());
+  }
+
+  @Test
+  public void testResumeWaitsForRemainingDelay() {
+    scheduler.start(task);
+    clock.advance(0);
+    task.complete(true);
+
+    clock.advance(1000);
+    scheduler.pause();
+    scheduler.resume();
+    clock.advance(INTERVAL - 1001);
+    assertEquals(1, task.polls.size());
+    clock.advance(1);
+    assertEquals(2, task.polls.size());
+  }
+
+  @Test
+  public void testIgnoresPollsFromStoppedTask() {
+    scheduler.start(task);
+    clock.advance(0);
+    AdaptiveRefreshScheduler.Poll stale = task.polls.get(0);
+
+    RecordingTask next = new RecordingTask();
+    scheduler.start(next);
+    clock.advance(0);
+    assertEquals(1, next.polls.size());
+
+    stale.failed();
+    next.complete(true);
+    assertEquals(INTERVAL, clock.advanceToNext());
+    assertEquals(2, next.polls.size());
+  }
+
+  @Test
+  public void testJitterStaysWithinBounds() {
+    scheduler = new AdaptiveRefreshScheduler(clock, INTERVAL, new FixedRandom(1));
+    scheduler.start(task);
+    clock.advance(0);
+    task.complete(true);
+    assertEquals(Math.round(INTERVAL * (1 + AdaptiveRefreshScheduler.JITTER)),
+        clock.advanceToNext());
+
+    scheduler = new AdaptiveRefreshScheduler(clock, INTERVAL, new FixedRandom(0));
+    scheduler.start(task);
+    clock.advance(0);
+    task.complete(true);
+    assertEquals(Math.round(INTERVAL * (1 - AdaptiveRefreshScheduler.JITTER)),
+        clock.advanceToNext());
+  }
+
+  @Test
+  public void testCountsSavedRefreshes() {
+    scheduler.start(task);
+    clock.advance(0);
+    // Nothing changes for a minute: refreshes at 0, 10s, 30s and 50s
+    for (int i = 0; i < 3; i++) {
+      task.complete(false);
+      clock.advanceToNext();
+    }
+    task.complete(false);
+    clock.advance(10000);
+    scheduler.stop();
+
+    assertEquals(4, scheduler.getRefreshCount());
+    // A fixed schedule would have refreshed at 0, 5s, ..., 55s and 60s
+    assertEquals(13 - 4, scheduler.getSavedRefreshCount());
+    assertFalse(scheduler.isRunning());
+  }
+
+  /**
+   * Task that records every poll it is given.
+   */
+  private static class RecordingTask implements AdaptiveRefreshScheduler.Task {
+
+    private final List<AdaptiveRefreshScheduler.Poll> polls = new ArrayList<>();
+
+    @Override
+    public void refresh(AdaptiveRefreshScheduler.Poll poll) {
+      polls.add(poll);
+    }
+
+    void complete(boolean changed) {
+      polls.get(polls.size() - 1).done(changed);
+    }
+
+    void fail() {
+      polls.get(polls.size() - 1).failed();
+    }
+  }
+
+  /**
+   * Clock that only moves when told to.
+   */
+  private static class FakeClock implements AdaptiveRefreshScheduler.Clock {
+
+    private final List<Scheduled> scheduled = new ArrayList<>();
+
+    private long now = 0;
+
+    @Override
+    public long uptimeMillis() {
+      return now;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+      scheduled.add(new Scheduled(runnable, now + delayMs));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      Iterator<Scheduled> iterator = scheduled.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().runnable == runnable) {
+          iterator.remove();
+        }
+      }
+    }
+
+    /**
+     * Moves time forward, running everything that comes due.
+     */
+    void advance(long millis) {
+      long until = now + millis;
+      Scheduled next = next();
+      while (next != null && next.at <= until) {
+        scheduled.remove(next);
+        now = next.at;
+        next.runnable.run();
+        next = next();
+      }
+      now = until;
+    }
+
+    /**
+     * Moves time to the next scheduled runnable and runs it.
+     *
+     * @return how far time moved
+     */
+    long advanceToNext() {
+      Scheduled next = next();
+      long delay = next.at - now;
+      advance(delay);
+      return delay;
+    }
+
+    private Scheduled next() {
+      Scheduled next = null;
+      for (Scheduled candidate : scheduled) {
+        if (next == null || candidate.at < next.at) {
+          next = candidate;
+        }
+      }
+      return next;
+    }
+  }
+
+  private static class Scheduled {
+
+    private final Runnable runnable;
+
+    private final long at;
+
+    Scheduled(Runnable runnable, long at) {
+      this.runnable = runnable;
+      this.at = at;
+    }
+  }
+
+  /**
+   * Random that always returns the same double.
+   */
+  private static class FixedRandom extends Random {
+
+    private final double value;
+
+    FixedRandom(double value) {
+      this.value = value;
+    }
+
+    @Override
+    public double nextDouble() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.Benchmark;
+
+import org.json.JSONArray;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link BusFactory}.
+ *
+ * @author Ben Sechrist
+ */
+public class BusFactoryTest {
+
+  private static final int FLEET_SIZE = 30;
+
+  private final BusFactory busFactory = new BusFactory();
+
+  private final Fleet fleet = new Fleet();
+
+  @Before
+  public void injectRegistry() {
+    busFactory.entityRegistry = new EntityRegistry();
+  }
+
+  @Test
+  public void testUpdateMatchesJsonTree() throws Exception {
+    List<Bus> expected = JsonTrees.buses(busFactory, new JSONArray(Fixtures.load("buses.json")));
+    update(Fixtures.load("buses.json").getBytes("UTF-8"));
+    List<Bus> actual = fleet.getBuses();
+
+    assertEquals(3, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertBusEquals(expected.get(i), actual.get(i));
+      assertEquals(Bus.ADDED, actual.get(i).getChanges() & Bus.ADDED);
+    }
+  }
+
+  @Test
+  public void testUpdateLeavesOptionalFieldsUnset() throws Exception {
+    update(Fixtures.load("buses.json").getBytes("UTF-8"));
+    Bus bus = fleet.getBuses().get(1);
+
+    assertNull(bus.getLastStopCode());
+    assertNull(bus.getLastStopName());
+  }
+
+  @Test
+  public void testPollsShareRoutes() throws Exception {
+    update(Fixtures.load("buses.json").getBytes("UTF-8"));
+    List<Bus> tree = JsonTrees.buses(busFactory, new JSONArray(Fixtures.load("buses.json")));
+
+    for (int i = 0; i < tree.size(); i++) {
+      assertSame(fleet.getBuses().get(i).getRoute(), tree.get(i).getRoute());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testUpdateRequiresId() throws Exception {
+    update(Fixtures.load("stops.json").getBytes("UTF-8"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUpdateRequiresPosition() throws Exception {
+    update(("[{\"id\":\"6015\",\"route\":{\"shortName\":\"HWD\"},"
+        + "\"longitude\":-80.4218128}]").getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testMalformedPollLeavesFleetUntouched() throws Exception {
+    update(body(new String[]{"6015", "6027"}, 0));
+    Bus first = fleet.getBuses().get(0);
+
+    try {
+      // The second bus is cut short, after the first was read
+      update(("[" + bus("6015", 0, 1) + ",{\"id\":\"6027\",\"latitude\":").getBytes("UTF-8"));
+      fail("Read a truncated poll");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertEquals(2, fleet.getBuses().size());
+    assertSame(first, fleet.getBuses().get(0));
+    assertEquals(37.2296566, first.getLatitude(), 1e-9);
+  }
+
+  @Test
+  public void testParseDecodesCharset() throws Exception {
+    BusPoll poll = busFactory.parse(("[{\"id\":\"6015\",\"route\":{\"shortName\":\"HWD\"},"
+        + "\"lastStopName\":\"Caf\u00e9\",\"latitude\":37.2,\"longitude\":-80.4}]")
+        .getBytes("ISO-8859-1"), "ISO-8859-1");
+    busFactory.update(fleet, poll);
+
+    assertEquals("Caf\u00e9", fleet.getBuses().get(0).getLastStopName());
+  }
+
+  @Test(expected = IOException.class)
+  public void testParseRejectsInvalidUnicodeEscape() throws Exception {
+    busFactory.parse(("[{\"id\":\"6015\",\"route\":{\"shortName\":\"HWD\"},"
+        + "\"lastStopName\":\"Caf\\u00zz\",\"latitude\":37.2,\"longitude\":-80.4}]")
+        .getBytes("UTF-8"), "UTF-8");
+  }
+
+  @Test
+  public void testUpdatesBusesInPlace() throws Exception {
+    update(body(new String[]{"6015", "6027", "6031"}, 0));
+    Bus moving = fleet.getBuses().get(0);
+    Bus leaving = fleet.getBuses().get(1);
+    Bus parked = fleet.getBuses().get(2);
+
+    // 6015 moves, 6027 leaves, 6031 stays put and 7001 joins
+    update(("[" + bus("6031", 2, 0) + "," + bus("6015", 0, 1) + ","
+        + bus("7001", 1, 0) + "]").getBytes("UTF-8"));
+
+    assertEquals(3, fleet.getBuses().size());
+    assertSame(parked, fleet.getBuses().get(0));
+    assertEquals(0, parked.getChanges());
+    assertSame(moving, fleet.getBuses().get(1));
+    assertEquals(Bus.MOVED | Bus.DETAILS_CHANGED, moving.getChanges());
+    assertEquals("7001", fleet.getBuses().get(2).getId());
+    assertEquals(Bus.ADDED, fleet.getBuses().get(2).getChanges() & Bus.ADDED);
+    assertEquals(3, fleet.getChangeCount());
+
+    // The record of the bus that left is reused for the next one to join
+    update(("[" + bus("6031", 2, 0) + "," + bus("6015", 0, 1) + ","
+        + bus("7001", 1, 0) + "," + bus("7002", 1, 0) + "]").getBytes("UTF-8"));
+    assertSame(leaving, fleet.getBuses().get(3));
+    assertEquals("7002", leaving.getId());
+    assertEquals(Bus.ADDED, leaving.getChanges() & Bus.ADDED);
+    assertEquals(1, fleet.getChangeCount());
+  }
+
+  @Test
+  public void testUnchangedPollReportsNoChanges() throws Exception {
+    byte[] body = Fixtures.load("buses.json").getBytes("UTF-8");
+    update(body);
+    update(body);
+
+    for (Bus bus : fleet.getBuses()) {
+      assertEquals(0, bus.getChanges());
+    }
+    assertEquals(0, fleet.getChangeCount());
+  }
+
+  @Test
+  public void testUpdateDecodesEscapedStrings() throws Exception {
+    update(("[{\"id\":\"6015\",\"route\":{\"shortName\":\"HWD\","
+        + "\"fullName\":\"Harding \\\"Ave\\\"\"},\"lastStopName\":\"Caf\\u00e9 \\/ Caf\u00e9\","
+        + "\"latitude\":3.72e1,\"longitude\":-80.4218128,\"lastStopCode\":null,"
+        + "\"extra\":[{\"a\":[1,\"]\"]}],\"timestamp\":1497628800000}]").getBytes("UTF-8"));
+    Bus bus = fleet.getBuses().get(0);
+
+    assertEquals("Harding \"Ave\"", bus.getRoute().getFullName());
+    assertEquals("Caf\u00e9 / Caf\u00e9", bus.getLastStopName());
+    assertEquals(37.2, bus.getLatitude(), 0);
+    assertEquals(-80.4218128, bus.getLongitude(), 0);
+    assertEquals(1497628800000L, bus.getTimestamp());
+  }
+
+  /**
+   * Polls a steady fleet of {@link #FLEET_SIZE} buses moving around and checks that updating it
+   * allocates next to nothing.
+   */
+  @Test
+  public void testSteadyStatePollAllocations() throws Exception {
+    AllocationCounter counter = AllocationCounter.create();
+    Assume.assumeTrue(counter != null);
+
+    long perPoll = steadyStateBytesPerPoll(counter, bodies());
+
+    assertEquals(FLEET_SIZE, fleet.getBuses().size());
+    assertTrue("Allocated " + perPoll + " bytes per poll", perPoll < 256);
+  }
+
+  /**
+   * Reports the bytes allocated per poll in place, compared with building a fresh list from a
+   * JSON tree.
+   */
+  @Test
+  @Category(Benchmark.class)
+  public void testPollAllocationsAgainstJsonTree() throws Exception {
+    AllocationCounter counter = AllocationCounter.create();
+    Assume.assumeTrue(counter != null);
+    byte[][] bodies = bodies();
+
+    long perPoll = steadyStateBytesPerPoll(counter, bodies);
+    long before = counter.allocatedBytes();
+    for (int i = 0; i < 100; i++) {
+      JsonTrees.buses(busFactory, new JSONArray(new String(bodies[i % bodies.length], "UTF-8")));
+    }
+    long perTreePoll = (counter.allocatedBytes() - before - counter.overhead()) / 100;
+
+    System.out.println(String.format(Locale.US,
+        "Bytes allocated per poll of %d buses: %d in place, %d from a JSON tree",
+        FLEET_SIZE, perPoll, perTreePoll));
+  }
+
+  /**
+   * Applies <code>bodies</code> over and over, until the fleet is complete and the parsing code
+   * is compiled, then returns the bytes allocated per poll.
+   */
+  private long steadyStateBytesPerPoll(AllocationCounter counter, byte[][] bodies)
+      throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      update(bodies[i % bodies.length]);
+    }
+    int polls = 1000;
+    long before = counter.allocatedBytes();
+    for (int i = 0; i < polls; i++) {
+      update(bodies[i % bodies.length]);
+    }
+    return (counter.allocatedBytes() - before - counter.overhead()) / polls;
+  }
+
+  /**
+   * Returns ten successive polls of a fleet of {@link #FLEET_SIZE} buses.
+   */
+  private static byte[][] bodies() throws IOException {
+    String[] ids = new String[FLEET_SIZE];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = String.valueOf(6000 + i);
+    }
+    byte[][] bodies = new byte[10][];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = body(ids, i);
+    }
+    return bodies;
+  }
+
+  /**
+   * Reads <code>json</code> and applies it to the fleet, as a bus request and its listener do.
+   */
+  private void update(byte[] json) throws IOException {
+    BusPoll poll = busFactory.parse(json, "UTF-8");
+    busFactory.update(fleet, poll);
+    busFactory.recycle(poll);
+  }
+
+  /**
+   * Returns a poll of the buses with <code>ids</code>, at positions and times depending on
+   * <code>tick</code>.
+   */
+  private static byte[] body(String[] ids, int tick) throws IOException {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < ids.length; i++) {
+      json.append(i == 0 ? "" : ",").append(bus(ids[i], i, tick));
+    }
+    return json.append(']').toString().getBytes("UTF-8");
+  }
+
+  private static String bus(String id, int index, int tick) {
+    int route = index % 3;
+    return String.format(Locale.US, "{\"id\":\"%s\",\"route\":{\"shortName\":\"R%d\","
+            + "\"fullName\":\"Route %d\"},\"latitude\":%.7f,\"longitude\":%.7f,\"direction\":%d,"
+            + "\"isTripper\":false,\"passengers\":%d,\"lastStopCode\":\"%d\","
+            + "\"lastStopName\":\"Stop %d\",\"timestamp\":%d}",
+        id, route, route, 37.2296566 + tick * 1e-4, -80.4218128 - index * 1e-4, 90,
+        10 + tick, 1000 + route, 1000 + route, 1497628800000L + tick * 5000L);
+  }
+
+  private static void assertBusEquals(Bus expected, Bus actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getRoute().getShortName(), actual.getRoute().getShortName());
+    assertEquals(expected.getRoute().getFullName(), actual.getRoute().getFullName());
+    assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+    assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+    assertEquals(expected.getDirection(), actual.getDirection());
+    assertEquals(expected.isTripper(), actual.isTripper());
+    assertEquals(expected.getPassengers(), actual.getPassengers());
+    assertEquals(expected.getLastStopCode(), actual.getLastStopCode());
+    assertEquals(expected.getLastStopName(), actual.getLastStopName());
+    assertEquals(expected.getTimestamp(), actual.getTimestamp());
+  }
+
+  /**
+   * Reads the bytes allocated by the current thread from the JVM's thread MX bean. It is looked
+   * up reflectively since <code>java.lang.management</code> is not part of the Android API the
+   * tests compile against.
+   */
+  private static final class AllocationCounter {
+
+    private final Object threadMXBean;
+
+    private final Method getThreadAllocatedBytes;
+
+    private final long threadId = Thread.currentThread().getId();
+
+    private long overhead;
+
+    private AllocationCounter(Object threadMXBean, Method getThreadAllocatedBytes) {
+      this.threadMXBean = threadMXBean;
+      this.getThreadAllocatedBytes = getThreadAllocatedBytes;
+    }
+
+    /**
+     * Returns a counter, or null if the JVM can't count allocations.
+     */
+    static AllocationCounter create() {
+      try {
+        Object threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+            .getMethod("getThreadMXBean").invoke(null);
+        Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+            .getMethod("getThreadAllocatedBytes", long.class);
+        AllocationCounter counter = new AllocationCounter(threadMXBean, getThreadAllocatedBytes);
+        if (counter.allocatedBytes() < 0) {
+          return null;
+        }
+        // What reading the counter allocates itself
+        long first = counter.allocatedBytes();
+        counter.overhead = counter.allocatedBytes() - first;
+        return counter;
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    long allocatedBytes() throws Exception {
+      return (Long) getThreadAllocatedBytes.invoke(threadMXBean, threadId);
+    }
+
+    long overhead() {
+      return overhead;
+    }
+  }
+}
@@ -16,19 +16,28 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.android.volley.ParseError;
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonArrayRequest;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -46,13 +55,16 @@ public class BusServiceTest {
   private RequestService requestService;
 
   @Mock
+  private RequestFactory requestFactory;
+
+  @Spy
   private BusFactory busFactory;
 
   @Mock
-  private RequestFactory requestFactory;
+  private EtaPredictor etaPredictor;
 
   @Mock
-  private JsonArrayRequest jsonArrayRequest;
+  private Request request;
 
   @Mock
   private com.bt4vt.external.bt4u.Response.Listener listener;
@@ -63,20 +75,71 @@ public class BusServiceTest {
   @InjectMocks
   private BusService busService;
 
+  private final Fleet fleet = new Fleet();
+
   @Before
   public void injectBaseUrl() {
     requestFactory.BT4U_BASE_URL = BASE_URL;
+    busFactory.entityRegistry = new EntityRegistry();
   }
 
   @Test
   public void testGetAll() throws Exception {
-    doReturn(jsonArrayRequest).when(requestFactory).buses((String) eq(null),
+    doReturn(request).when(requestFactory).buses((String) eq(null),
         any(Response.Listener.class), any(Response.ErrorListener.class));
 
-    busService.getAll(listener, exceptionListener);
+    busService.getAll(fleet, listener, exceptionListener);
 
     verify(requestFactory, times(1)).buses((String) eq(null), any(Response.Listener.class),
         any(Response.ErrorListener.class));
-    verify(requestService, times(1)).addToRequestQueue(jsonArrayRequest);
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+  }
+
+  @Test
+  public void testGetDropsResultsForCanceledToken() throws Exception {
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).buses(eq("HWD"), responseListener.capture(),
+        any(Response.ErrorListener.class));
+    RequestToken token = new RequestToken("map");
+
+    busService.get("HWD", token, fleet, listener, exceptionListener);
+    verify(requestService, times(1)).addToRequestQueue(request, token);
+
+    token.cancel();
+    responseListener.getValue().onResponse(busFactory.parse(
+        Fixtures.load("buses.json").getBytes("UTF-8"), "UTF-8"));
+    verify(listener, never()).onResult(any());
+    assertTrue(fleet.getBuses().isEmpty());
+  }
+
+  @Test
+  public void testGetUpdatesFleet() throws Exception {
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).buses(eq("HWD"), responseListener.capture(),
+        any(Response.ErrorListener.class));
+
+    busService.get("HWD", fleet, listener, exceptionListener);
+    responseListener.getValue().onResponse(busFactory.parse(
+        Fixtures.load("buses.json").getBytes("UTF-8"), "UTF-8"));
+
+    verify(listener, times(1)).onResult(fleet);
+    assertEquals(3, fleet.getBuses().size());
+    verify(etaPredictor, times(1)).record(eq(fleet.getBuses()), anyLong());
+  }
+
+  @Test
+  public void testGetReportsErrors() throws Exception {
+    ArgumentCaptor<Response.ErrorListener> errorListener =
+        ArgumentCaptor.forClass(Response.ErrorListener.class);
+    doReturn(request).when(requestFactory).buses(eq("HWD"), any(Response.Listener.class),
+        errorListener.capture());
+
+    busService.get("HWD", fleet, listener, exceptionListener);
+    errorListener.getValue().onErrorResponse(new ParseError(new IOException("Truncated")));
+
+    verify(exceptionListener, times(1)).onException(any(ParseError.class));
+    verify(listener, never()).onResult(any());
   }
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.bt4vt.service.FavoriteStopService;
+import com.bt4vt.service.OfflineStoreService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link CatalogSyncService} against a local stand-in for BT4U.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CatalogSyncServiceTest {
+
+  @Mock
+  private FavoriteStopService favoriteStopService;
+
+  @Spy
+  private StopFactory stopFactory;
+
+  @Spy
+  private RouteFactory routeFactory;
+
+  @Spy
+  private CatalogManifestFactory catalogManifestFactory;
+
+  @InjectMocks
+  private RequestFactory requestFactory;
+
+  @Mock
+  private RequestService requestService;
+
+  @Mock
+  private OfflineStoreService offlineStoreService;
+
+  @Mock
+  private ParsedObjectCache parsedObjectCache;
+
+  @InjectMocks
+  private CatalogSyncService catalogSyncService;
+
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  private StandInServer server;
+
+  @Before
+  public void startServer() throws Exception {
+    routeFactory.routePlotCache = Fixtures.routePlotCache(cacheDir.getRoot());
+    stopFactory.favoriteStopService = favoriteStopService;
+    routeFactory.stopFactory = stopFactory;
+    EntityRegistry entityRegistry = new EntityRegistry();
+    stopFactory.entityRegistry = entityRegistry;
+    routeFactory.entityRegistry = entityRegistry;
+    catalogSyncService.requestFactory = requestFactory;
+    server = new StandInServer();
+    server.serve("manifest", Fixtures.load("manifest.json"));
+    server.serve("routes/", Fixtures.load("routes.json"));
+    server.serve("stops/", Fixtures.load("stops.json"));
+    for (String shortName : Arrays.asList("HWD", "UCB", "MSN")) {
+      server.serve("routes/" + shortName,
+          Fixtures.load("route.json").replace("\"HWD\"", "\"" + shortName + "\""));
+    }
+    server.serve("stops/1114", "{\"code\": \"1114\", \"name\": \"Squires Student Center\", "
+        + "\"latitude\": 37.2297811, \"longitude\": -80.4172304}");
+    requestFactory.BT4U_BASE_URL = server.getBaseUrl();
+
+    // Run every request straight away, as if the network were instant
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        server.deliver((Request) invocation.getArgument(0));
+        return null;
+      }
+    }).when(requestService).addToRequestQueue(any(Request.class));
+  }
+
+  @After
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void testFirstSyncFetchesEveryStopAtOnce() throws Exception {
+    storedHashes(new HashMap<String, String>(), new HashMap<String, String>());
+    catalogSyncService.sync();
+
+    List<String> paths = server.takeRequestedPaths();
+    assertEquals("manifest", paths.get(0));
+    assertEquals(5, paths.size());
+    verify(offlineStoreService, times(3)).saveRoute(any(Route.class), any(String.class));
+    verify(offlineStoreService, times(1)).saveStops(any(List.class), eq(manifestStopHashes()));
+    verify(parsedObjectCache, times(1)).remove(ParsedObjectCache.routeKey("UCB"));
+    verify(parsedObjectCache, times(1)).remove(ParsedObjectCache.STOPS_KEY);
+    verify(parsedObjectCache, times(1)).removeAll(ParsedObjectCache.ROUTE_KEY_PREFIX);
+  }
+
+  @Test
+  public void testUnchangedCatalogOnlyFetchesManifest() throws Exception {
+    storedHashes(manifestRouteHashes(), manifestStopHashes());
+
+    catalogSyncService.sync();
+
+    assertEquals(Collections.singletonList("manifest"), server.takeRequestedPaths());
+    verify(parsedObjectCache, never()).remove(anyString());
+    verify(parsedObjectCache, never()).removeAll(anyString());
+  }
+
+  @Test
+  public void testOnlyChangedEntitiesAreFetched() throws Exception {
+    Map<String, String> routeHashes = manifestRouteHashes();
+    routeHashes.put("UCB", "r-ucb-0");
+    routeHashes.put("OLD", "r-old-0");
+    Map<String, String> stopHashes = manifestStopHashes();
+    stopHashes.put("1114", "s-1114-0");
+    storedHashes(routeHashes, stopHashes);
+
+    catalogSyncService.sync();
+
+    assertEquals(Arrays.asList("manifest", "routes/UCB", "stops/1114"),
+        server.takeRequestedPaths());
+    verify(offlineStoreService, times(1)).delete(Collections.singletonList("OLD"),
+        Collections.<String>emptyList());
+    ArgumentCaptor<Route> route = ArgumentCaptor.forClass(Route.class);
+    verify(offlineStoreService, times(1)).saveRoute(route.capture(), eq("r-ucb-1"));
+    assertEquals("UCB", route.getValue().getShortName());
+    verify(offlineStoreService, times(1)).saveStops(any(List.class),
+        eq(Collections.singletonMap("1114", "s-1114-1")));
+    verify(parsedObjectCache, times(1)).remove(ParsedObjectCache.routeKey("UCB"));
+    verify(parsedObjectCache, times(1)).remove(ParsedObjectCache.routeKey("OLD"));
+    verify(parsedObjectCache, never()).remove(ParsedObjectCache.routeKey("HWD"));
+  }
+
+  @Test
+  public void testFallsBackToFullFetchWithoutManifest() throws Exception {
+    server.remove("manifest");
+
+    catalogSyncService.sync();
+
+    assertEquals(Arrays.asList("manifest", "routes/", "stops/"), server.takeRequestedPaths());
+    verify(offlineStoreService, times(1)).saveRoutes(any(List.class));
+    verify(offlineStoreService, times(1)).saveStops(any(List.class), (Map) eq(null));
+
+    // Without a manifest a stored route is refreshed on its own
+    catalogSyncService.syncRoute("HWD");
+    assertEquals(Collections.singletonList("routes/HWD"), server.takeRequestedPaths());
+  }
+
+  @Test
+  public void testMissingManifestIsNotAskedForEverySync() throws Exception {
+    server.remove("manifest");
+    CatalogSyncService clocked = spy(catalogSyncService);
+    doReturn(0L).when(clocked).now();
+    clocked.sync();
+    server.takeRequestedPaths();
+
+    doReturn(CatalogSyncService.MIN_SYNC_INTERVAL_MS).when(clocked).now();
+    clocked.sync();
+    assertEquals(Arrays.asList("routes/", "stops/"), server.takeRequestedPaths());
+
+    // BT4U may have started serving one by now
+    doReturn(CatalogSyncService.MANIFEST_RETRY_INTERVAL_MS).when(clocked).now();
+    clocked.sync();
+    assertEquals(Arrays.asList("manifest", "routes/", "stops/"), server.takeRequestedPaths());
+  }
+
+  @Test
+  public void testFallbackKeepsUnchangedCopies() throws Exception {
+    Cache cache = new DiskBasedCache(cacheDir.newFolder("volley"));
+    cache.initialize();
+    server.setCache(cache);
+    server.remove("manifest");
+    server.serve("routes/HWD", Fixtures.load("route.json"), "\"v1\"");
+
+    catalogSyncService.syncRoute("HWD");
+    server.takeRequestedPaths();
+    catalogSyncService.syncRoute("HWD");
+
+    assertEquals(Collections.<String>emptyList(), server.takeRequestedPaths());
+    verify(offlineStoreService, times(1)).saveRoute(any(Route.class), (String) isNull());
+    verify(parsedObjectCache, times(1)).remove(ParsedObjectCache.routeKey("HWD"));
+  }
+
+  @Test
+  public void testSyncsAreThrottled() throws Exception {
+    storedHashes(new HashMap<String, String>(), new HashMap<String, String>());
+    catalogSyncService.sync();
+    server.takeRequestedPaths();
+
+    catalogSyncService.sync();
+    catalogSyncService.syncRoute("HWD");
+
+    assertEquals(Collections.<String>emptyList(), server.takeRequestedPaths());
+  }
+
+  /**
+   * Has the store deliver <code>routeHashes</code> and <code>stopHashes</code> as the hashes it
+   * holds.
+   */
+  private void storedHashes(final Map<String, String> routeHashes,
+                            final Map<String, String> stopHashes) {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<Response.Listener<Map<String, String>>>getArgument(0).onResult(routeHashes);
+        return null;
+      }
+    }).when(offlineStoreService).getRouteHashes(any(Response.Listener.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<Response.Listener<Map<String, String>>>getArgument(0).onResult(stopHashes);
+        return null;
+      }
+    }).when(offlineStoreService).getStopHashes(any(Response.Listener.class));
+  }
+
+  private Map<String, String> manifestRouteHashes() {
+    Map<String, String> hashes = new HashMap<>();
+    hashes.put("HWD", "r-hwd-1");
+    hashes.put("UCB", "r-ucb-1");
+    hashes.put("MSN", "r-msn-1");
+    return hashes;
+  }
+
+  private Map<String, String> manifestStopHashes() {
+    Map<String, String> hashes = new HashMap<>();
+    hashes.put("1101", "s-1101-1");
+    hashes.put("1114", "s-1114-1");
+    hashes.put("1340", "s-1340-1");
+    hashes.put("2010", "s-2010-1");
+    return hashes;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link DepartureCache}.
+ *
+ * @author Ben Sechrist
+ */
+public class DepartureCacheTest {
+
+  private final List<Departure> departures = Collections.singletonList(
+      new Departure("Harding Avenue", new int[]{1}, new String[]{"12:01 AM"}));
+
+  private long now;
+
+  private DepartureCache cache;
+
+  @Before
+  public void setUp() {
+    now = 1000;
+    cache = new DepartureCache() {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void testFreshThenStaleThenGone() {
+    cache.put("1114/", departures);
+
+    now += DepartureCache.FRESH_MS;
+    assertEquals(departures, cache.get("1114/"));
+    assertFalse(cache.isStale("1114/"));
+
+    now += 1;
+    assertEquals(departures, cache.get("1114/"));
+    assertTrue(cache.isStale("1114/"));
+
+    now += DepartureCache.MAX_STALE_MS;
+    assertNull(cache.get("1114/"));
+    assertTrue(cache.isStale("1114/"));
+  }
+
+  @Test
+  public void testServesCopies() {
+    cache.put("1114/", departures);
+
+    List<Departure> cached = cache.get("1114/");
+    assertNotSame(cached, cache.get("1114/"));
+    cached.clear();
+    assertEquals(departures, cache.get("1114/"));
+  }
+
+  @Test
+  public void testCountsLookups() {
+    assertEquals(0, cache.getHitRate(), 0);
+
+    cache.get("1114/");
+    cache.put("1114/", departures);
+    cache.get("1114/");
+    now += DepartureCache.FRESH_MS + 1;
+    cache.get("1114/");
+    cache.get("1115/");
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getStaleHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0.5f, cache.getHitRate(), 0);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.google.gson.stream.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the {@link DepartureFactory}.
+ *
+ * @author Ben Sechrist
+ */
+public class DepartureFactoryTest {
+
+  private final DepartureFactory departureFactory = new DepartureFactory();
+
+  @Test
+  public void testMatchesJsonTree() throws Exception {
+    JSONArray expected = new JSONArray(Fixtures.load("departures.json"));
+    List<Departure> actual = departureFactory.departures(Fixtures.reader("departures.json"));
+
+    assertEquals(3, expected.length());
+    assertEquals(expected.length(), actual.size());
+    for (int i = 0; i < expected.length(); i++) {
+      JSONObject departure = expected.getJSONObject(i);
+      assertEquals(departure.getString("routeName"), actual.get(i).getRouteName());
+      assertEquals(departure.getJSONArray("departures").length(), actual.get(i).size());
+    }
+    assertEquals(0, actual.get(2).size());
+  }
+
+  @Test
+  public void testParsesTimes() throws Exception {
+    Departure departure = departureFactory.departures(Fixtures.reader("departures.json")).get(0);
+
+    assertEquals("Harding Avenue", departure.getRouteName());
+    assertEquals(3, departure.size());
+    assertEquals(minute(2017, Calendar.JUNE, 16, 10, 35), departure.getTime(0));
+    assertEquals(minute(2017, Calendar.JUNE, 16, 11, 35), departure.getTime(2));
+    assertEquals("10:35 AM", departure.getLabel(0));
+    assertEquals("10:35 AM\n11:05 AM\n11:35 AM", departure.getText());
+  }
+
+  @Test
+  public void testParsesNoonAndMidnight() throws Exception {
+    Departure departure = departures("[{\"routeName\": \"HWD\","
+        + " \"departures\": [\"12/31/2017 12:05:00 AM\", \"12/31/2017 12:00:00 PM\","
+        + " \"12/31/2017 11:59:00 PM\"]}]").get(0);
+
+    assertEquals(minute(2017, Calendar.DECEMBER, 31, 0, 5), departure.getTime(0));
+    assertEquals(minute(2017, Calendar.DECEMBER, 31, 12, 0), departure.getTime(1));
+    assertEquals(minute(2017, Calendar.DECEMBER, 31, 23, 59), departure.getTime(2));
+    assertEquals("12:05 AM\n12:00 PM\n11:59 PM", departure.getText());
+  }
+
+  @Test
+  public void testOrdersRoutesByNextDeparture() throws Exception {
+    List<Departure> departures = departures("["
+        + "{\"routeName\": \"None\", \"departures\": []},"
+        + "{\"routeName\": \"Later\", \"departures\": [\"6/16/2017 1:00:00 PM\"]},"
+        + "{\"routeName\": \"Sooner\", \"departures\": [\"6/16/2017 9:00:00 AM\"]}]");
+
+    assertEquals("Sooner", departures.get(0).getRouteName());
+    assertEquals("Later", departures.get(1).getRouteName());
+    assertEquals("None", departures.get(2).getRouteName());
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsMalformedTime() throws Exception {
+    departures("[{\"routeName\": \"HWD\", \"departures\": [\"soon\"]}]");
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsOutOfRangeHour() throws Exception {
+    departures("[{\"routeName\": \"HWD\", \"departures\": [\"6/16/2017 13:35:00 AM\"]}]");
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsOutOfRangeMonth() throws Exception {
+    departures("[{\"routeName\": \"HWD\", \"departures\": [\"13/16/2017 10:35:00 AM\"]}]");
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectsOutOfRangeDay() throws Exception {
+    departures("[{\"routeName\": \"HWD\", \"departures\": [\"6/31/2017 10:35:00 AM\"]}]");
+  }
+
+  @Test
+  public void testParsesInBlacksburgTime() throws Exception {
+    TimeZone deviceZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+    try {
+      Departure departure = departures(
+          "[{\"routeName\": \"HWD\", \"departures\": [\"6/16/2017 10:35:00 AM\"]}]").get(0);
+
+      // 14:35 UTC, as EDT is four hours behind
+      assertEquals(1497623700000L / 60000, departure.getTime(0));
+      assertEquals("10:35 AM", departure.getLabel(0));
+    } finally {
+      TimeZone.setDefault(deviceZone);
+    }
+  }
+
+  @Test
+  public void testCountdownAndLimit() throws Exception {
+    Departure departure = departureFactory.departures(Fixtures.reader("departures.json")).get(0);
+    long now = minute(2017, Calendar.JUNE, 16, 10, 30) * 60000L + 15000;
+
+    assertEquals(5, departure.getMinutesUntil(0, now));
+    assertEquals(65, departure.getMinutesUntil(2, now));
+
+    Departure limited = departure.limit(2);
+    assertEquals(2, limited.size());
+    assertEquals("10:35 AM\n11:05 AM", limited.getText());
+    assertSame(departure, departure.limit(3));
+  }
+
+  private List<Departure> departures(String json) throws IOException {
+    return departureFactory.departures(new JsonReader(new StringReader(json)));
+  }
+
+  private static int minute(int year, int month, int day, int hour, int minute) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("America/New_York"));
+    calendar.clear();
+    calendar.set(year, month, day, hour, minute);
+    return (int) (calendar.getTimeInMillis() / 60000);
+  }
+}
@@ -16,19 +16,28 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonArrayRequest;
+import com.android.volley.VolleyError;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -46,13 +55,16 @@ public class DepartureServiceTest {
   private RequestService requestService;
 
   @Mock
-  private DepartureFactory departureFactory;
+  private RequestFactory requestFactory;
 
   @Mock
-  private RequestFactory requestFactory;
+  private EtaPredictor etaPredictor;
+
+  @Spy
+  private DepartureCache departureCache;
 
   @Mock
-  private JsonArrayRequest jsonArrayRequest;
+  private Request request;
 
   @Mock
   private com.bt4vt.external.bt4u.Response.Listener listener;
@@ -72,13 +84,180 @@ public class DepartureServiceTest {
   public void testGetAll() throws Exception {
     String route = "route";
     String stopCode = "stop-code";
-    doReturn(jsonArrayRequest).when(requestFactory).departures(eq(route), eq(stopCode),
+    doReturn(request).when(requestFactory).departures(eq(route), eq(stopCode),
         any(Response.Listener.class), any(Response.ErrorListener.class));
 
     departureService.getAll(route, stopCode, listener, exceptionListener);
 
     verify(requestFactory, times(1)).departures(eq(route), eq(stopCode),
         any(Response.Listener.class), any(Response.ErrorListener.class));
-    verify(requestService, times(1)).addToRequestQueue(jsonArrayRequest);
+    verify(requestService, times(1)).addToRequestQueue(request);
+  }
+
+  @Test
+  public void testGetAllMergesEstimateWithCachedDepartures() throws Exception {
+    Route route = route();
+    Stop stop = new Stop("1114");
+    doReturn(estimate(1000)).when(etaPredictor).estimate(eq(route), eq(stop), anyLong());
+    departureCache.put("1114/Harding Avenue", Collections.singletonList(
+        departure(1002, 1020)));
+
+    departureService.getAll(route, stop, listener, exceptionListener);
+
+    ArgumentCaptor<List> result = ArgumentCaptor.forClass(List.class);
+    verify(listener, times(1)).onResult(result.capture());
+    assertTimes((Departure) result.getValue().get(0), 1000, 1020);
+    verify(requestService, never()).addToRequestQueue(any(Request.class));
+    assertEquals(1, departureService.getEstimatedCount());
+  }
+
+  @Test
+  public void testGetAllServesEstimateUntilDeparturesArrive() throws Exception {
+    Route route = route();
+    Stop stop = new Stop("1114");
+    Departure estimated = estimate(1000);
+    doReturn(estimated).when(etaPredictor).estimate(eq(route), eq(stop), anyLong());
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).departures(eq("Harding Avenue"), eq("1114"),
+        responseListener.capture(), any(Response.ErrorListener.class));
+
+    departureService.getAll(route, stop, listener, exceptionListener);
+    verify(listener, times(1)).onResult(Collections.singletonList(estimated));
+
+    responseListener.getValue().onResponse(Collections.singletonList(departure(1020)));
+    ArgumentCaptor<List> result = ArgumentCaptor.forClass(List.class);
+    verify(listener, times(2)).onResult(result.capture());
+    assertTimes((Departure) result.getValue().get(0), 1000, 1020);
+    // BT4U was asked anyway
+    assertEquals(0, departureService.getEstimatedCount());
+  }
+
+  @Test
+  public void testGetAllFallsBackToBT4U() throws Exception {
+    Route route = route();
+    Stop stop = new Stop("1114");
+    doReturn(request).when(requestFactory).departures(eq("Harding Avenue"), eq("1114"),
+        any(Response.Listener.class), any(Response.ErrorListener.class));
+
+    departureService.getAll(route, stop, listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request);
+    assertEquals(0, departureService.getEstimatedCount());
+  }
+
+  @Test
+  public void testGetAllWithoutRouteAsksBT4U() throws Exception {
+    doReturn(request).when(requestFactory).departures(eq("1114"),
+        any(Response.Listener.class), any(Response.ErrorListener.class));
+
+    departureService.getAll(null, new Stop("1114"), listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request);
+    verify(etaPredictor, never()).estimate(any(Route.class), any(Stop.class), anyLong());
+  }
+
+  @Test
+  public void testGetAllServesFreshDeparturesFromCache() throws Exception {
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).departures(eq("1114"), responseListener.capture(),
+        any(Response.ErrorListener.class));
+    List<Departure> departures = Collections.singletonList(
+        new Departure("Harding Avenue", new int[]{1}, new String[]{"12:01 AM"}));
+
+    departureService.getAll(null, "1114", listener, exceptionListener);
+    responseListener.getValue().onResponse(departures);
+    departureService.getAll(null, "1114", listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request);
+    verify(listener, times(2)).onResult(departures);
+    assertEquals(0.5f, departureService.getCacheHitRate(), 0);
+  }
+
+  @Test
+  public void testGetAllRevalidatesStaleDepartures() throws Exception {
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    ArgumentCaptor<Response.ErrorListener> errorListener =
+        ArgumentCaptor.forClass(Response.ErrorListener.class);
+    doReturn(request).when(requestFactory).departures(eq("1114"), responseListener.capture(),
+        errorListener.capture());
+    List<Departure> departures = Collections.singletonList(
+        new Departure("Harding Avenue", new int[]{1}, new String[]{"12:01 AM"}));
+    doReturn(0L).when(departureCache).now();
+
+    departureService.getAll(null, "1114", listener, exceptionListener);
+    responseListener.getValue().onResponse(departures);
+    doReturn(DepartureCache.FRESH_MS + 1).when(departureCache).now();
+    departureService.getAll(null, "1114", listener, exceptionListener);
+
+    // Served stale straight away and fetched again
+    verify(listener, times(2)).onResult(departures);
+    verify(requestService, times(2)).addToRequestQueue(request);
+    assertEquals(1, departureService.getStaleCacheHitCount());
+
+    // A failed refresh keeps the stale departures
+    errorListener.getValue().onErrorResponse(new VolleyError("boom"));
+    verify(exceptionListener, never()).onException(any(Exception.class));
+  }
+
+  @Test
+  public void testGetAllDropsDeparturesPastMaxStale() throws Exception {
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).departures(eq("1114"), responseListener.capture(),
+        any(Response.ErrorListener.class));
+    doReturn(0L).when(departureCache).now();
+
+    departureService.getAll(null, "1114", listener, exceptionListener);
+    responseListener.getValue().onResponse(Collections.emptyList());
+    doReturn(DepartureCache.MAX_STALE_MS + 1).when(departureCache).now();
+    departureService.getAll(null, "1114", listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(Collections.emptyList());
+    verify(requestService, times(2)).addToRequestQueue(request);
+    assertEquals(0, departureService.getCacheHitRate(), 0);
+  }
+
+  @Test
+  public void testGetAllIgnoringCache() throws Exception {
+    Route route = route();
+    Stop stop = new Stop("1114");
+    departureCache.put("1114/Harding Avenue", Collections.<Departure>emptyList());
+    doReturn(request).when(requestFactory).departures(eq("Harding Avenue"), eq("1114"),
+        any(Response.Listener.class), any(Response.ErrorListener.class));
+
+    departureService.getAll(route, stop, true, listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request);
+    verify(listener, never()).onResult(any());
+    verify(etaPredictor, never()).estimate(any(Route.class), any(Stop.class), anyLong());
+  }
+
+  private static Departure estimate(int time) {
+    return new Departure("Harding Avenue", new int[]{time},
+        new String[]{EtaPredictor.ESTIMATE_PREFIX + time});
+  }
+
+  private static Departure departure(int... times) {
+    String[] labels = new String[times.length];
+    for (int i = 0; i < times.length; i++) {
+      labels[i] = String.valueOf(times[i]);
+    }
+    return new Departure("Harding Avenue", times, labels);
+  }
+
+  private static void assertTimes(Departure departure, int... times) {
+    assertEquals(times.length, departure.size());
+    for (int i = 0; i < times.length; i++) {
+      assertEquals(times[i], departure.getTime(i));
+    }
+  }
+
+  private static Route route() {
+    Route route = new Route("HWD");
+    route.setFullName("Harding Avenue");
+    return route;
   }
 }
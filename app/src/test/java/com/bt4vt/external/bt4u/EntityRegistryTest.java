@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.Benchmark;
+import com.bt4vt.service.FavoriteStopService;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.gson.stream.JsonReader;
+
+import org.json.JSONArray;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.StringReader;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the {@link EntityRegistry}.
+ *
+ * @author Ben Sechrist
+ */
+public class EntityRegistryTest {
+
+  private static final int ROUTES = 20;
+
+  private static final int STOPS_PER_ROUTE = 40;
+
+  private static final int BUSES = 30;
+
+  private static final int POLLS = 120;
+
+  private EntityRegistry entityRegistry;
+
+  @Before
+  public void createRegistry() {
+    entityRegistry = new EntityRegistry();
+  }
+
+  @Test
+  public void testInternsEqualStops() throws Exception {
+    Stop first = entityRegistry.intern(stop("1114", "Squires Student Center"));
+    Stop second = entityRegistry.intern(stop("1114", "Squires Student Center"));
+
+    assertSame(first, second);
+    assertEquals(1, entityRegistry.stopCount());
+  }
+
+  @Test
+  public void testChangedStopReplacesCanonicalWithoutChangingIt() throws Exception {
+    Stop original = entityRegistry.intern(stop("1114", "Squires Student Center"));
+    Stop renamed = entityRegistry.intern(stop("1114", "Squires"));
+
+    assertNotSame(original, renamed);
+    assertEquals("Squires Student Center", original.getName());
+    assertSame(renamed, entityRegistry.intern(stop("1114", "Squires")));
+  }
+
+  @Test
+  public void testInternsRoutesWithTheSameStops() throws Exception {
+    Stop stop = entityRegistry.intern(stop("1114", "Squires Student Center"));
+    Route first = entityRegistry.intern(route("HWD", "Harding Avenue", stop));
+    Route second = entityRegistry.intern(route("HWD", "Harding Avenue", stop));
+    Route rerouted = entityRegistry.intern(route("HWD", "Harding Avenue",
+        entityRegistry.intern(stop("1101", "Burruss Hall"))));
+
+    assertSame(first, second);
+    assertNotSame(first, rerouted);
+    assertEquals("1114", first.getStops().get(0).getCode());
+  }
+
+  @Test
+  public void testBusRouteResolvesToCompleteRoute() throws Exception {
+    Route busRoute = entityRegistry.route("HWD", "Harding Avenue");
+    assertSame(busRoute, entityRegistry.route("HWD", "Harding Avenue"));
+
+    Route route = entityRegistry.intern(route("HWD", "Harding Avenue",
+        entityRegistry.intern(stop("1114", "Squires Student Center"))));
+    assertSame(route, entityRegistry.route("HWD", "Harding Avenue"));
+
+    // A bus reporting another name gets its own route, the complete one stays canonical
+    assertNotSame(route, entityRegistry.route("HWD", "Harding"));
+    assertSame(route, entityRegistry.route("HWD", "Harding Avenue"));
+  }
+
+  @Test
+  public void testReleasesUnreferencedEntities() throws Exception {
+    ReferenceQueue<Stop> collected = new ReferenceQueue<>();
+    WeakReference<Stop> dropped = new WeakReference<>(
+        entityRegistry.intern(stop("1101", "Burruss Hall")), collected);
+    Stop kept = entityRegistry.intern(stop("1114", "Squires Student Center"));
+
+    // Collection can only be requested, the test is skipped if the JVM never gets to it
+    boolean released = false;
+    for (int i = 0; i < 10 && !released; i++) {
+      System.gc();
+      released = collected.remove(100) == dropped;
+    }
+    Assume.assumeTrue(released);
+
+    // The registry's reference was cleared along with ours
+    Stop fetchedAgain = stop("1101", "Burruss Hall");
+    assertSame(fetchedAgain, entityRegistry.intern(fetchedAgain));
+    assertSame(kept, entityRegistry.intern(stop("1114", "Squires Student Center")));
+  }
+
+  /**
+   * Parses a system of {@link #ROUTES} routes sharing stops around campus, then a stretch of bus
+   * polls, once with a registry per response and once through one registry. A registry per
+   * response still allocates every stop once per route serving it, as the factories used to, but
+   * already shares bus routes within a poll.
+   */
+  @Test
+  public void testMultiRouteDatasetSharesInstances() throws Exception {
+    Counts perResponseCounts = count(parse(routeResponses(), busResponse(), null));
+    Counts internedCounts = count(parse(routeResponses(), busResponse(), new EntityRegistry()));
+
+    assertEquals(ROUTES * STOPS_PER_ROUTE, perResponseCounts.stops);
+    assertEquals(ROUTES + Math.min(BUSES, ROUTES) * POLLS, perResponseCounts.routes);
+    // Every bus route resolves to one of the parsed routes
+    assertEquals(ROUTES, internedCounts.routes);
+    assertTrue(internedCounts.stops * 2 < perResponseCounts.stops);
+  }
+
+  /**
+   * Reports the heap retained by the same dataset either way. The figures depend on the JVM and
+   * its collector, so nothing is asserted.
+   */
+  @Test
+  @Category(Benchmark.class)
+  public void testHeapWithMultiRouteDataset() throws Exception {
+    List<String> routeResponses = routeResponses();
+    String busResponse = busResponse();
+
+    long baseline = usedHeap();
+    List<Object> perResponse = parse(routeResponses, busResponse, null);
+    long perResponseBytes = usedHeap() - baseline;
+    Counts perResponseCounts = count(perResponse);
+    perResponse = null;
+
+    baseline = usedHeap();
+    List<Object> interned = parse(routeResponses, busResponse, new EntityRegistry());
+    long internedBytes = usedHeap() - baseline;
+    Counts internedCounts = count(interned);
+
+    System.out.println(String.format(Locale.US,
+        "Per response: %d routes, %d stops, %d bytes retained",
+        perResponseCounts.routes, perResponseCounts.stops, perResponseBytes));
+    System.out.println(String.format(Locale.US,
+        "Interned:     %d routes, %d stops, %d bytes retained",
+        internedCounts.routes, internedCounts.stops, internedBytes));
+  }
+
+  /**
+   * Parses every route response and every poll of <code>busResponse</code>, keeping the routes
+   * and the buses of each poll, through <code>shared</code> or a new registry per response when
+   * null.
+   */
+  private static List<Object> parse(List<String> routeResponses, String busResponse,
+                                    EntityRegistry shared) throws Exception {
+    StopFactory stopFactory = new StopFactory();
+    stopFactory.favoriteStopService = mock(FavoriteStopService.class);
+    RouteFactory routeFactory = new RouteFactory();
+    routeFactory.stopFactory = stopFactory;
+    BusFactory busFactory = new BusFactory();
+
+    List<Object> parsed = new ArrayList<>();
+    for (String response : routeResponses) {
+      EntityRegistry entityRegistry = shared == null ? new EntityRegistry() : shared;
+      stopFactory.entityRegistry = entityRegistry;
+      routeFactory.entityRegistry = entityRegistry;
+      parsed.add(routeFactory.route(new JsonReader(new StringReader(response))));
+    }
+    for (int i = 0; i < POLLS; i++) {
+      busFactory.entityRegistry = shared == null ? new EntityRegistry() : shared;
+      parsed.addAll(JsonTrees.buses(busFactory, new JSONArray(busResponse)));
+    }
+    return parsed;
+  }
+
+  /**
+   * Returns a response for each route, with stops drawn from a pool where a handful of campus
+   * stops are served by nearly every route.
+   */
+  private static List<String> routeResponses() {
+    Random random = new Random(1114);
+    List<String> responses = new ArrayList<>();
+    for (int r = 0; r < ROUTES; r++) {
+      StringBuilder json = new StringBuilder();
+      json.append(String.format(Locale.US,
+          "{\"shortName\":\"R%d\",\"fullName\":\"Route %d\",\"stops\":[", r, r));
+      List<Integer> codes = new ArrayList<>();
+      while (codes.size() < STOPS_PER_ROUTE) {
+        // A quarter of the stops come from 15 campus stops, the rest from 250 around town
+        int code = codes.size() < STOPS_PER_ROUTE / 4 ? 1000 + random.nextInt(15)
+            : 2000 + random.nextInt(250);
+        if (!codes.contains(code)) {
+          codes.add(code);
+        }
+      }
+      for (int i = 0; i < codes.size(); i++) {
+        int code = codes.get(i);
+        json.append(i == 0 ? "" : ",").append(String.format(Locale.US,
+            "{\"code\":\"%d\",\"name\":\"Stop %d\",\"latitude\":%.7f,\"longitude\":%.7f}",
+            code, code, 37.2 + code * 1e-5, -80.4 - code * 1e-5));
+      }
+      json.append("]}");
+      responses.add(json.toString());
+    }
+    return responses;
+  }
+
+  private static String busResponse() {
+    StringBuilder json = new StringBuilder("[");
+    for (int b = 0; b < BUSES; b++) {
+      int r = b % ROUTES;
+      json.append(b == 0 ? "" : ",").append(String.format(Locale.US,
+          "{\"id\":\"%d\",\"route\":{\"shortName\":\"R%d\",\"fullName\":\"Route %d\"},"
+              + "\"latitude\":37.23,\"longitude\":-80.42,\"direction\":90,\"isTripper\":false,"
+              + "\"passengers\":10,\"timestamp\":1497628800000}", 6000 + b, r, r));
+    }
+    return json.append(']').toString();
+  }
+
+  /**
+   * Counts the distinct route and stop instances reachable from <code>parsed</code>.
+   */
+  private static Counts count(List<Object> parsed) {
+    Map<Object, Boolean> routes = new IdentityHashMap<>();
+    Map<Object, Boolean> stops = new IdentityHashMap<>();
+    for (Object object : parsed) {
+      Route route = object instanceof Bus ? ((Bus) object).getRoute() : (Route) object;
+      routes.put(route, true);
+      for (Stop stop : route.getStops()) {
+        stops.put(stop, true);
+      }
+    }
+    Counts counts = new Counts();
+    counts.routes = routes.size();
+    counts.stops = stops.size();
+    return counts;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static Stop stop(String code, String name) {
+    Stop stop = new Stop(code);
+    stop.setName(name);
+    stop.setLatLng(new LatLng(37.2296566, -80.4218128));
+    return stop;
+  }
+
+  private static Route route(String shortName, String fullName, Stop stop) {
+    Route route = new Route(shortName);
+    route.setFullName(fullName);
+    route.setStops(new ArrayList<>(Collections.singletonList(stop)));
+    return route;
+  }
+
+  private static class Counts {
+
+    private int routes;
+
+    private int stops;
+  }
+}
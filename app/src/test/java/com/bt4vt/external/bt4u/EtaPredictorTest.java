@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.map.RoutePlot;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.PolyUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the {@link EtaPredictor}.
+ *
+ * @author Ben Sechrist
+ */
+public class EtaPredictorTest {
+
+  private static final double LAT = 37.22;
+  private static final double LNG = -80.42;
+
+  // Meters per degree of latitude
+  private static final double DEGREE = 111320;
+
+  // Received a little after each fix was taken, on another clock
+  private static final long RECEIVED_LATER_MS = 1000000;
+
+  private final EtaPredictor predictor = new EtaPredictor();
+
+  private Route route;
+
+  private Stop stop;
+
+  @Before
+  public void setUp() {
+    route = route("HWD", "Harding Avenue");
+    // 5 km due north
+    List<LatLng> points = new ArrayList<>();
+    for (int i = 0; i <= 50; i++) {
+      points.add(new LatLng(LAT + i * 100 / DEGREE, LNG));
+    }
+    route.setPlot(RoutePlot.decode(PolyUtil.encode(points)));
+    stop = new Stop("1114");
+    stop.setLatLng(new LatLng(LAT + 1000 / DEGREE, LNG));
+  }
+
+  @Test
+  public void testEstimatesArrival() throws Exception {
+    // 10 m/s from the start of the route, polled every 15 s
+    long received = 0;
+    for (long time = 0; time <= 45000; time += 15000) {
+      received = time + RECEIVED_LATER_MS;
+      poll(bus("1", route, time / 100, time), received);
+    }
+
+    Departure departure = predictor.estimate(route, stop, received + 5000);
+
+    assertEquals("Harding Avenue", departure.getRouteName());
+    // 550 m left at 10 m/s
+    assertEquals(1, departure.size());
+    assertEquals((received + 55000) / 60000, departure.getTime(0));
+    assertEquals(EtaPredictor.ESTIMATE_PREFIX + format(received + 55000), departure.getLabel(0));
+  }
+
+  @Test
+  public void testEstimatesEveryBusInOrder() throws Exception {
+    for (long time = 0; time <= 30000; time += 15000) {
+      poll(Arrays.asList(
+          bus("far", route, time / 100, time),
+          bus("near", route, 500 + time / 100, time)), time);
+    }
+
+    Departure departure = predictor.estimate(route, stop, 30000);
+
+    // 200 m and 700 m left at 10 m/s
+    assertEquals(2, departure.size());
+    assertEquals(EtaPredictor.ESTIMATE_PREFIX + format(30000 + 20000), departure.getLabel(0));
+    assertEquals(EtaPredictor.ESTIMATE_PREFIX + format(30000 + 70000), departure.getLabel(1));
+  }
+
+  @Test
+  public void testNeedsEnoughHistory() throws Exception {
+    poll(bus("1", route, 0, 0), 0);
+    poll(bus("1", route, 150, 15000), 15000);
+
+    assertNull(predictor.estimate(route, stop, 15000));
+  }
+
+  @Test
+  public void testIgnoresStaleBuses() throws Exception {
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", route, time / 100, time), time);
+    }
+
+    assertNull(predictor.estimate(route, stop, 45000 + EtaPredictor.MAX_FIX_AGE_MS + 1));
+  }
+
+  @Test
+  public void testIgnoresArrivalsPastHorizon() throws Exception {
+    // 1 m/s, 15 minutes and more from the stop
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", route, time / 1000, time), time);
+    }
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  @Test
+  public void testIgnoresHeldUpBuses() throws Exception {
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", route, 100, time), time);
+    }
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  @Test
+  public void testIgnoresPassedStop() throws Exception {
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", route, 2000 + time / 100, time), time);
+    }
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  @Test
+  public void testIgnoresOtherRoutes() throws Exception {
+    Route other = route("TC", "Toms Creek");
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", other, time / 100, time), time);
+    }
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  @Test
+  public void testRouteChangeResetsHistory() throws Exception {
+    Route other = route("TC", "Toms Creek");
+    for (long time = 0; time <= 30000; time += 15000) {
+      poll(bus("1", other, time / 100, time), time);
+    }
+    poll(bus("1", route, 450, 45000), 45000);
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  @Test
+  public void testMatchesBusesByShortName() throws Exception {
+    // Buses may report the route without its full name
+    Route busRoute = route("HWD", null);
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", busRoute, time / 100, time), time);
+    }
+
+    assertEquals(1, predictor.estimate(route, stop, 45000).size());
+  }
+
+  @Test
+  public void testMergeKeepsLaterDepartures() throws Exception {
+    Departure estimated = new Departure("Harding Avenue", new int[]{1000, 1010},
+        new String[]{"~a", "~b"});
+    Departure scheduled = new Departure("Harding Avenue", new int[]{1001, 1012, 1016, 1030},
+        new String[]{"c", "d", "e", "f"});
+    Departure other = new Departure("Toms Creek", new int[]{1005}, new String[]{"g"});
+
+    List<Departure> merged = EtaPredictor.merge(estimated, Arrays.asList(other, scheduled));
+
+    assertEquals(2, merged.size());
+    assertEquals(other, merged.get(0));
+    // 1012 is taken to be the second estimated bus
+    assertEquals("Harding Avenue", merged.get(1).getRouteName());
+    assertEquals("~a\n~b\ne\nf", merged.get(1).getText());
+    assertEquals(1016, merged.get(1).getTime(2));
+  }
+
+  @Test
+  public void testMergeWithoutDeparturesOfRoute() throws Exception {
+    Departure estimated = new Departure("Harding Avenue", new int[]{1000},
+        new String[]{"~a"});
+
+    List<Departure> merged = EtaPredictor.merge(estimated,
+        Collections.<Departure>emptyList());
+
+    assertEquals(Collections.singletonList(estimated), merged);
+  }
+
+  @Test
+  public void testNeedsPlot() throws Exception {
+    for (long time = 0; time <= 45000; time += 15000) {
+      poll(bus("1", route, time / 100, time), time);
+    }
+    route.setPlot(null);
+
+    assertNull(predictor.estimate(route, stop, 45000));
+  }
+
+  private void poll(Bus bus, long nowMs) {
+    predictor.record(Collections.singletonList(bus), nowMs);
+  }
+
+  private void poll(List<Bus> buses, long nowMs) {
+    predictor.record(buses, nowMs);
+  }
+
+  private static String format(long time) {
+    SimpleDateFormat format = new SimpleDateFormat(EtaPredictor.LABEL_FORMAT, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("America/New_York"));
+    return format.format(new Date(time));
+  }
+
+  /**
+   * Returns a bus <code>meters</code> north along the route, at <code>timestamp</code>.
+   */
+  private static Bus bus(String id, Route route, double meters, long timestamp) {
+    Bus bus = new Bus(id);
+    bus.setRoute(route);
+    bus.setPosition(LAT + meters / DEGREE, LNG);
+    bus.setTimestamp(timestamp);
+    return bus;
+  }
+
+  private static Route route(String shortName, String fullName) {
+    Route route = new Route(shortName);
+    route.setFullName(fullName);
+    return route;
+  }
+}
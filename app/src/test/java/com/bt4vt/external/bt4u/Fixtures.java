@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import android.content.Context;
+
+import com.bt4vt.map.RoutePlotCache;
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Scanner;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Loads the BT4U response fixtures under <code>src/test/resources/fixtures</code>, and builds the
+ * collaborators needed to parse them.
+ *
+ * @author Ben Sechrist
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  static String load(String name) throws IOException {
+    InputStream in = Fixtures.class.getClassLoader().getResourceAsStream("fixtures/" + name);
+    if (in == null) {
+      throw new IOException("Missing fixture " + name);
+    }
+    Scanner scanner = new Scanner(new InputStreamReader(in, "UTF-8")).useDelimiter("\\A");
+    try {
+      return scanner.hasNext() ? scanner.next() : "";
+    } finally {
+      scanner.close();
+    }
+  }
+
+  static JsonReader reader(String name) throws IOException {
+    return new JsonReader(new StringReader(load(name)));
+  }
+
+  /**
+   * Returns a {@link RoutePlotCache} keeping its files in <code>cacheDir</code>.
+   */
+  static RoutePlotCache routePlotCache(File cacheDir) {
+    Context context = mock(Context.class);
+    doReturn(context).when(context).getApplicationContext();
+    doReturn(cacheDir).when(context).getCacheDir();
+    return new RoutePlotCache(context);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import android.graphics.Color;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds BT4U entities out of <code>org.json</code> trees, field by field, as an oracle for the
+ * streaming parsers of the factories. Entities go through the same collaborators the factory
+ * passed in uses.
+ *
+ * @author Ben Sechrist
+ */
+final class JsonTrees {
+
+  private JsonTrees() {
+  }
+
+  static List<Stop> stops(StopFactory stopFactory, JSONArray jsonStops) throws JSONException {
+    List<Stop> stops = new ArrayList<>();
+    for (int i = 0; i < jsonStops.length(); i++) {
+      stops.add(stop(stopFactory, jsonStops.getJSONObject(i)));
+    }
+    return stops;
+  }
+
+  static Stop stop(StopFactory stopFactory, JSONObject jsonStop) throws JSONException {
+    Stop stop = new Stop(jsonStop.getString("code"));
+    stop.setName(jsonStop.getString("name"));
+    stop.setLatLng(new LatLng(jsonStop.getDouble("latitude"), jsonStop.getDouble("longitude")));
+    stop.setFavorited(stopFactory.favoriteStopService.isFavorited(stop.getCode()));
+    return stopFactory.entityRegistry.intern(stop);
+  }
+
+  static List<Route> routes(RouteFactory routeFactory, JSONArray jsonRoutes)
+      throws JSONException {
+    List<Route> routes = new ArrayList<>();
+    for (int i = 0; i < jsonRoutes.length(); i++) {
+      routes.add(route(routeFactory, jsonRoutes.getJSONObject(i)));
+    }
+    return routes;
+  }
+
+  static Route route(RouteFactory routeFactory, JSONObject jsonRoute) throws JSONException {
+    Route route = new Route(jsonRoute.getString("shortName"));
+    if (jsonRoute.has("fullName")) {
+      route.setFullName(jsonRoute.getString("fullName"));
+    }
+    if (jsonRoute.has("plot")) {
+      route.setPlot(routeFactory.routePlotCache.get(route.getShortName(),
+          jsonRoute.getString("plot")));
+    }
+    if (jsonRoute.has("plotColor")) {
+      route.setColor(Color.parseColor("#" + jsonRoute.getString("plotColor")));
+    }
+    if (jsonRoute.has("stops")) {
+      route.setStops(stops(routeFactory.stopFactory, jsonRoute.getJSONArray("stops")));
+    }
+    return routeFactory.entityRegistry.intern(route);
+  }
+
+  static List<Bus> buses(BusFactory busFactory, JSONArray jsonBuses) throws JSONException {
+    List<Bus> buses = new ArrayList<>();
+    for (int i = 0; i < jsonBuses.length(); i++) {
+      JSONObject jsonBus = jsonBuses.getJSONObject(i);
+      Bus bus = new Bus(jsonBus.getString("id"));
+      JSONObject jsonRoute = jsonBus.getJSONObject("route");
+      bus.setRoute(busFactory.entityRegistry.route(jsonRoute.getString("shortName"),
+          jsonRoute.getString("fullName")));
+      bus.setPosition(jsonBus.getDouble("latitude"), jsonBus.getDouble("longitude"));
+      bus.setDirection(jsonBus.getInt("direction"));
+      bus.setTripper(jsonBus.getBoolean("isTripper"));
+      bus.setPassengers(jsonBus.getInt("passengers"));
+      if (jsonBus.has("lastStopCode")) {
+        bus.setLastStopCode(jsonBus.getString("lastStopCode"));
+      }
+      if (jsonBus.has("lastStopName")) {
+        bus.setLastStopName(jsonBus.getString("lastStopName"));
+      }
+      bus.setTimestamp(jsonBus.getLong("timestamp"));
+      buses.add(bus);
+    }
+    return buses;
+  }
+}
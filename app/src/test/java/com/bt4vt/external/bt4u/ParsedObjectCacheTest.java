@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the {@link ParsedObjectCache}.
+ *
+ * @author Ben Sechrist
+ */
+public class ParsedObjectCacheTest {
+
+  private long now;
+
+  private ParsedObjectCache cache;
+
+  @Before
+  public void setUp() {
+    now = 1000;
+    cache = new ParsedObjectCache() {
+      @Override
+      long now() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void testExpiresAfterTtl() {
+    cache.put("routes", "value", 1, 100);
+
+    now += 99;
+    assertEquals("value", cache.<String>get("routes"));
+    now += 1;
+    assertNull(cache.get("routes"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedByWeight() {
+    int half = ParsedObjectCache.MAX_WEIGHT / 2;
+    cache.put("a", "a", half, 100);
+    cache.put("b", "b", half, 100);
+    cache.get("a");
+    cache.put("c", "c", half, 100);
+
+    assertEquals("a", cache.<String>get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("c", cache.<String>get("c"));
+  }
+
+  @Test
+  public void testRemovesOnlyGivenKeys() {
+    cache.put(ParsedObjectCache.ROUTES_KEY, "routes", 1, 100);
+    cache.put(ParsedObjectCache.routeKey("HWD"), "HWD", 1, 100);
+    cache.put(ParsedObjectCache.routeKey("UCB"), "UCB", 1, 100);
+    cache.put(ParsedObjectCache.STOPS_KEY, "stops", 1, 100);
+
+    cache.remove(ParsedObjectCache.STOPS_KEY);
+    assertNull(cache.get(ParsedObjectCache.STOPS_KEY));
+    assertEquals("HWD", cache.<String>get(ParsedObjectCache.routeKey("HWD")));
+
+    cache.removeAll(ParsedObjectCache.ROUTE_KEY_PREFIX);
+    assertNull(cache.get(ParsedObjectCache.routeKey("HWD")));
+    assertNull(cache.get(ParsedObjectCache.routeKey("UCB")));
+    assertEquals("routes", cache.<String>get(ParsedObjectCache.ROUTES_KEY));
+  }
+
+  @Test
+  public void testMissingKey() {
+    assertNull(cache.get("stops"));
+  }
+}
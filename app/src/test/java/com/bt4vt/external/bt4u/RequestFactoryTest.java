@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.android.volley.Cache;
+import com.android.volley.Network;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ResponseDelivery;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests conditional requests made by the {@link RequestFactory} against a local stand-in for
+ * BT4U.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RequestFactoryTest {
+
+  @Spy
+  private RouteFactory routeFactory;
+
+  @Spy
+  private ParsedObjectCache parsedObjectCache;
+
+  @Mock
+  private Response.Listener<List<Route>> listener;
+
+  @Mock
+  private Response.ErrorListener errorListener;
+
+  @InjectMocks
+  private RequestFactory requestFactory;
+
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  private StandInServer server;
+
+  private int bodyLength;
+
+  private Cache cache;
+
+  @Before
+  public void startServer() throws Exception {
+    routeFactory.routePlotCache = Fixtures.routePlotCache(cacheDir.getRoot());
+    routeFactory.entityRegistry = new EntityRegistry();
+    String body = Fixtures.load("routes.json");
+    bodyLength = body.getBytes("UTF-8").length;
+    server = new StandInServer();
+    server.serve("routes/", body, "\"v1\"");
+    requestFactory.BT4U_BASE_URL = server.getBaseUrl();
+    cache = new DiskBasedCache(cacheDir.newFolder("volley"));
+    cache.initialize();
+    requestFactory.requestService = new RequestService(null);
+    requestFactory.requestService.requestQueue = new RequestQueue(cache,
+        mock(Network.class), 1, mock(ResponseDelivery.class));
+  }
+
+  @After
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void testWarmRefreshTransfersNoBody() throws Exception {
+    Response<List<Route>> cold = fetchAndCache(requestFactory.routes(listener, errorListener));
+    assertTrue(cold.isSuccess());
+    assertEquals(3, cold.result.size());
+    assertEquals(bodyLength, server.getBytesSent());
+
+    // Like the refresh button, which skips the cache
+    Request<List<Route>> refresh = requestFactory.routes(listener, errorListener);
+    refresh.setShouldCache(false);
+    assertEquals("\"v1\"", refresh.getHeaders().get("If-None-Match"));
+    Response<List<Route>> warm = server.fetch(refresh);
+
+    assertTrue(warm.isSuccess());
+    assertNotSame("Callers share a parsed list", cold.result, warm.result);
+    assertEquals(cold.result, warm.result);
+    assertEquals("Warm refresh downloaded a body", bodyLength, server.getBytesSent());
+  }
+
+  @Test
+  public void testRefreshKeepsCachedBodyInStep() throws Exception {
+    fetchAndCache(requestFactory.routes(listener, errorListener));
+
+    // A refresh downloading a new version leaves it on disk for the next conditional request
+    server.serve("routes/", "[]", "\"v2\"");
+    Request<List<Route>> refresh = requestFactory.routes(listener, errorListener);
+    refresh.setShouldCache(false);
+    assertEquals(0, server.fetch(refresh).result.size());
+
+    refresh = requestFactory.routes(listener, errorListener);
+    refresh.setShouldCache(false);
+    Response<List<Route>> warm = server.fetch(refresh);
+    assertTrue(warm.isSuccess());
+    assertEquals(0, warm.result.size());
+  }
+
+  @Test
+  public void testNotModifiedReusesParsedResult() throws Exception {
+    Response<List<Route>> cold = fetchAndCache(requestFactory.routes(listener, errorListener));
+    parsedObjectCache.put(ParsedObjectCache.ROUTES_KEY, cold.result, cold.result.size(),
+        RequestFactory.ROUTES_CACHE_TTL_MS);
+
+    Request<List<Route>> refresh = requestFactory.routes(listener, errorListener);
+    refresh.setShouldCache(false);
+    Response<List<Route>> warm = server.fetch(refresh);
+
+    assertTrue(warm.isSuccess());
+    assertNotSame("Callers share a parsed list", cold.result, warm.result);
+    assertEquals(cold.result, warm.result);
+    verify(routeFactory, times(1)).routes(any(JsonReader.class));
+  }
+
+  @Test
+  public void testNotModifiedWithoutCachedBodyIsDownloadedAgain() throws Exception {
+    server.fetch(requestFactory.routes(listener, errorListener));
+    RequestService requestService = spy(requestFactory.requestService);
+    requestFactory.requestService = requestService;
+
+    Request<List<Route>> refresh = requestFactory.routes(listener, errorListener);
+    refresh.setShouldCache(false);
+    server.deliver(refresh);
+
+    // Nothing to answer the 304 with, so the request was sent again without validators
+    ArgumentCaptor<Request> resent = ArgumentCaptor.forClass(Request.class);
+    verify(requestService, times(1)).addToRequestQueue(resent.capture(), (RequestToken) isNull());
+    assertFalse(resent.getValue().getHeaders().containsKey("If-None-Match"));
+    server.deliver(resent.getValue());
+
+    ArgumentCaptor<List> routes = ArgumentCaptor.forClass(List.class);
+    verify(listener, times(1)).onResponse(routes.capture());
+    assertEquals(3, routes.getValue().size());
+    verify(errorListener, never()).onErrorResponse(any(VolleyError.class));
+    assertEquals(2 * bodyLength, server.getBytesSent());
+  }
+
+  @Test
+  public void testChangedResourceIsDownloadedAgain() throws Exception {
+    Response<List<Route>> first = server.fetch(requestFactory.routes(listener, errorListener));
+
+    server.serve("routes/", Fixtures.load("routes.json"), "\"v2\"");
+    Response<List<Route>> second = server.fetch(requestFactory.routes(listener, errorListener));
+
+    assertTrue(second.isSuccess());
+    assertNotSame(first.result, second.result);
+    assertEquals(2 * bodyLength, server.getBytesSent());
+  }
+
+  @Test
+  public void testUncachedEndpointsAreNotConditional() throws Exception {
+    server.fetch(requestFactory.routes(listener, errorListener));
+
+    Map<String, String> headers = requestFactory.buses("HWD", null, errorListener).getHeaders();
+    assertFalse(headers.containsKey("If-None-Match"));
+  }
+
+  /**
+   * Fetches <code>request</code> and, like Volley's network dispatcher, puts the response in the
+   * cache.
+   */
+  private <T> Response<T> fetchAndCache(Request<T> request) throws Exception {
+    Response<T> response = server.fetch(request);
+    if (request.shouldCache() && response.cacheEntry != null) {
+      cache.put(request.getCacheKey(), response.cacheEntry);
+    }
+    return response;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link RequestService}.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RequestServiceTest {
+
+  private static final String BASE_URL = "http://base-url";
+
+  @Mock
+  private RequestQueue requestQueue;
+
+  @Mock
+  private Response.Listener<BusPoll> firstListener;
+
+  @Mock
+  private Response.Listener<BusPoll> secondListener;
+
+  @Mock
+  private Response.Listener<List<Route>> firstRoutesListener;
+
+  @Mock
+  private Response.Listener<List<Route>> secondRoutesListener;
+
+  @Mock
+  private Response.ErrorListener errorListener;
+
+  private RequestFactory requestFactory;
+
+  private RequestService requestService;
+
+  @Before
+  public void setUp() {
+    requestFactory = new RequestFactory();
+    requestFactory.BT4U_BASE_URL = BASE_URL;
+    requestService = new RequestService(null);
+    requestService.requestQueue = requestQueue;
+  }
+
+  @Test
+  public void testIdenticalRequestsShareOneCall() throws Exception {
+    RequestFactory.BT4VTRequest<BusPoll> first =
+        (RequestFactory.BT4VTRequest<BusPoll>) requestFactory.buses("HWD", firstListener,
+            errorListener);
+    RequestFactory.BT4VTRequest<BusPoll> second =
+        (RequestFactory.BT4VTRequest<BusPoll>) requestFactory.buses("HWD", secondListener,
+            errorListener);
+
+    requestService.addToRequestQueue(first);
+    requestService.addToRequestQueue(second);
+
+    verify(requestQueue, times(1)).add(any(Request.class));
+    assertEquals(2, requestService.getRequestCount());
+    assertEquals(1, requestService.getCoalescedCount());
+
+    BusPoll buses = new BusPoll();
+    first.deliverResponse(buses);
+    verify(firstListener, times(1)).onResponse(buses);
+    verify(secondListener, times(1)).onResponse(buses);
+  }
+
+  @Test
+  public void testFollowersGetTheirOwnList() throws Exception {
+    RequestFactory.BT4VTRequest<List<Route>> first =
+        (RequestFactory.BT4VTRequest<List<Route>>) requestFactory.routes(firstRoutesListener,
+            errorListener);
+    requestService.addToRequestQueue(first);
+    requestService.addToRequestQueue(requestFactory.routes(secondRoutesListener, errorListener));
+
+    List<Route> routes = new ArrayList<>(Collections.singletonList(new Route("HWD")));
+    first.deliverResponse(routes);
+
+    ArgumentCaptor<List> delivered = ArgumentCaptor.forClass(List.class);
+    verify(firstRoutesListener).onResponse(routes);
+    verify(secondRoutesListener).onResponse(delivered.capture());
+    assertNotSame(routes, delivered.getValue());
+    assertEquals(routes, delivered.getValue());
+  }
+
+  @Test
+  public void testErrorsFanOut() throws Exception {
+    Request<BusPoll> first = requestFactory.buses("HWD", firstListener, errorListener);
+    Request<BusPoll> second = requestFactory.buses("HWD", secondListener, errorListener);
+
+    requestService.addToRequestQueue(first);
+    requestService.addToRequestQueue(second);
+
+    VolleyError error = new VolleyError("boom");
+    first.deliverError(error);
+    verify(errorListener, times(2)).onErrorResponse(error);
+  }
+
+  @Test
+  public void testDifferentRequestsAreNotCoalesced() throws Exception {
+    requestService.addToRequestQueue(requestFactory.buses("HWD", firstListener, errorListener));
+    requestService.addToRequestQueue(requestFactory.buses("TC", secondListener, errorListener));
+
+    Request<BusPoll> uncached = requestFactory.buses("HWD", secondListener, errorListener);
+    uncached.setShouldCache(false);
+    requestService.addToRequestQueue(uncached);
+
+    requestService.addToRequestQueue(requestFactory.buses("HWD", secondListener, errorListener),
+        new RequestToken("map"));
+
+    verify(requestQueue, times(4)).add(any(Request.class));
+    assertEquals(0, requestService.getCoalescedCount());
+  }
+
+  @Test
+  public void testFinishedRequestIsNotJoined() throws Exception {
+    RequestFactory.BT4VTRequest<BusPoll> first =
+        (RequestFactory.BT4VTRequest<BusPoll>) requestFactory.buses("HWD", firstListener,
+            errorListener);
+    requestService.addToRequestQueue(first);
+    first.deliverResponse(new BusPoll());
+    requestService.onRequestFinished((Request) first);
+
+    requestService.addToRequestQueue(requestFactory.buses("HWD", secondListener, errorListener));
+
+    verify(requestQueue, times(2)).add(any(Request.class));
+    verify(secondListener, never()).onResponse(any(BusPoll.class));
+  }
+
+  @Test
+  public void testDeliveredButUnfinishedRequestIsNotJoined() throws Exception {
+    RequestFactory.BT4VTRequest<BusPoll> first =
+        (RequestFactory.BT4VTRequest<BusPoll>) requestFactory.buses("HWD", firstListener,
+            errorListener);
+    requestService.addToRequestQueue(first);
+    first.deliverResponse(new BusPoll());
+
+    requestService.addToRequestQueue(requestFactory.buses("HWD", secondListener, errorListener));
+
+    verify(requestQueue, times(2)).add(any(Request.class));
+    assertEquals(0, requestService.getCoalescedCount());
+  }
+}
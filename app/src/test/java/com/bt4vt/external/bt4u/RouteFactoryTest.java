@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.service.FavoriteStopService;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link RouteFactory}.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RouteFactoryTest {
+
+  @Mock
+  private FavoriteStopService favoriteStopService;
+
+  @Spy
+  private StopFactory stopFactory;
+
+  @InjectMocks
+  private RouteFactory routeFactory;
+
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  @Before
+  public void injectDependencies() {
+    stopFactory.favoriteStopService = favoriteStopService;
+    routeFactory.routePlotCache = Fixtures.routePlotCache(cacheDir.getRoot());
+    EntityRegistry entityRegistry = new EntityRegistry();
+    stopFactory.entityRegistry = entityRegistry;
+    routeFactory.entityRegistry = entityRegistry;
+  }
+
+  @Test
+  public void testStreamingMatchesJsonTree() throws Exception {
+    List<Route> expected = JsonTrees.routes(routeFactory, new JSONArray(Fixtures.load("routes.json")));
+    List<Route> actual = routeFactory.routes(Fixtures.reader("routes.json"));
+
+    assertEquals(3, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertRouteEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  @Test
+  public void testStreamingLeavesOptionalFieldsUnset() throws Exception {
+    Route route = routeFactory.routes(Fixtures.reader("routes.json")).get(2);
+
+    assertEquals("MSN", route.getShortName());
+    assertNull(route.getFullName());
+    assertNull(route.getPlot());
+    assertNull(route.getColor());
+    assertTrue(route.getStops().isEmpty());
+  }
+
+  @Test
+  public void testStreamingRouteWithStops() throws Exception {
+    Route expected = JsonTrees.route(routeFactory, new JSONObject(Fixtures.load("route.json")));
+    Route actual = routeFactory.route(Fixtures.reader("route.json"));
+
+    assertRouteEquals(expected, actual);
+    assertEquals(3, actual.getStops().size());
+    assertEquals(3, actual.getPlot().size());
+    assertEquals(38.5, actual.getPlot().getLatitude(0), 0);
+  }
+
+  private static void assertRouteEquals(Route expected, Route actual) {
+    assertEquals(expected.getShortName(), actual.getShortName());
+    assertEquals(expected.getFullName(), actual.getFullName());
+    assertEquals(expected.getPlot(), actual.getPlot());
+    assertEquals(expected.getColor(), actual.getColor());
+    assertEquals(expected.getStops().size(), actual.getStops().size());
+    for (int i = 0; i < expected.getStops().size(); i++) {
+      StopFactoryTest.assertStopEquals(expected.getStops().get(i), actual.getStops().get(i));
+    }
+  }
+}
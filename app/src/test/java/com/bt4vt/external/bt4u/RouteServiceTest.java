@@ -16,20 +16,33 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonArrayRequest;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.bt4vt.service.FavoriteStopService;
+import com.bt4vt.service.OfflineStoreService;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -47,16 +60,22 @@ public class RouteServiceTest {
   private RequestService requestService;
 
   @Mock
-  private RouteFactory routeFactory;
+  private RequestFactory requestFactory;
 
   @Mock
-  private RequestFactory requestFactory;
+  private ParsedObjectCache parsedObjectCache;
+
+  @Mock
+  private FavoriteStopService favoriteStopService;
+
+  @Mock
+  private OfflineStoreService offlineStoreService;
 
   @Mock
-  private JsonArrayRequest jsonArrayRequest;
+  private CatalogSyncService catalogSyncService;
 
   @Mock
-  private JsonObjectRequest jsonObjectRequest;
+  private RequestFactory.BT4VTRequest request;
 
   @Mock
   private com.bt4vt.external.bt4u.Response.Listener listener;
@@ -74,27 +93,150 @@ public class RouteServiceTest {
 
   @Test
   public void testGetAll() throws Exception {
-    doReturn(jsonArrayRequest).when(requestFactory).routes(any(Response.Listener.class),
+    storedRoutes(Collections.<Route>emptyList());
+    doReturn(request).when(requestFactory).routes(any(Response.Listener.class),
         any(Response.ErrorListener.class));
 
-    routeService.getAll(listener, exceptionListener);
+    routeService.getAll(false, listener, exceptionListener);
 
     verify(requestFactory, times(1)).routes(any(Response.Listener.class),
         any(Response.ErrorListener.class));
-    verify(requestService, times(1)).addToRequestQueue(jsonArrayRequest);
+    verify(requestService, times(1)).addToRequestQueue(request);
   }
 
   @Test
   public void testGet() throws Exception {
     final String shortCode = "test";
 
-    doReturn(jsonObjectRequest).when(requestFactory).route(eq(shortCode), any(Response.Listener.class),
+    doReturn(request).when(requestFactory).route(eq(shortCode), any(Response.Listener.class),
         any(Response.ErrorListener.class));
 
     routeService.get(shortCode, true, listener, exceptionListener);
 
     verify(requestFactory, times(1)).route(eq(shortCode), any(Response.Listener.class),
         any(Response.ErrorListener.class));
-    verify(requestService, times(1)).addToRequestQueue(jsonObjectRequest);
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+  }
+
+  @Test
+  public void testGetAllServedFromCache() throws Exception {
+    List<Route> routes = Collections.singletonList(new Route("HWD"));
+    doReturn(routes).when(parsedObjectCache).get("routes");
+
+    routeService.getAll(false, listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(routes);
+    verify(requestService, never()).addToRequestQueue(any(Request.class));
+  }
+
+  @Test
+  public void testGetIgnoringCacheSkipsIt() throws Exception {
+    doReturn(request).when(requestFactory).route(eq("HWD"), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+
+    routeService.get("HWD", true, listener, exceptionListener);
+
+    verify(parsedObjectCache, never()).get(anyString());
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+  }
+
+  @Test
+  public void testGetRefreshesFavoritesOfCachedRoute() throws Exception {
+    Route route = new Route("HWD");
+    Stop stop = new Stop("1114");
+    route.setStops(Collections.singletonList(stop));
+    doReturn(route).when(parsedObjectCache).get("route/HWD");
+    doReturn(true).when(favoriteStopService).isFavorited("1114");
+
+    routeService.get("HWD", false, listener, exceptionListener);
+
+    ArgumentCaptor<Route> result = ArgumentCaptor.forClass(Route.class);
+    verify(listener, times(1)).onResult(result.capture());
+    assertTrue(result.getValue().getStops().get(0).isFavorited());
+    // The cached route and stop are shared, a copy is handed out instead
+    assertNotSame(route, result.getValue());
+    assertFalse(stop.isFavorited());
+    verify(requestFactory, never()).route(anyString(), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+  }
+
+  @Test
+  public void testGetAllServesStoredRoutesAndSyncs() throws Exception {
+    List<Route> stored = Collections.singletonList(new Route("HWD"));
+    storedRoutes(stored);
+
+    routeService.getAll(false, listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(stored);
+    verify(parsedObjectCache, times(1)).put(eq("routes"), eq(stored), eq(1),
+        eq(RequestFactory.ROUTES_CACHE_TTL_MS));
+    verify(catalogSyncService, times(1)).sync();
+    verify(requestService, never()).addToRequestQueue(any(Request.class));
+  }
+
+  @Test
+  public void testGetServesStoredRouteAndSyncsIt() throws Exception {
+    Route stored = new Route("HWD");
+    storedRoute("HWD", stored);
+
+    routeService.get("HWD", false, listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(stored);
+    verify(parsedObjectCache, times(1)).put(eq("route/HWD"), eq(stored), eq(1),
+        eq(RequestFactory.ROUTE_CACHE_TTL_MS));
+    verify(catalogSyncService, times(1)).syncRoute("HWD");
+    verify(requestService, never()).addToRequestQueue(any(Request.class), any(RequestToken.class));
+  }
+
+  @Test
+  public void testGetIgnoringCacheSkipsStore() throws Exception {
+    doReturn(request).when(requestFactory).route(eq("HWD"), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+
+    routeService.get("HWD", true, listener, exceptionListener);
+
+    verify(offlineStoreService, never()).getRoute(anyString(),
+        any(com.bt4vt.external.bt4u.Response.Listener.class));
+  }
+
+  @Test
+  public void testGetFetchesRouteMissingFromStore() throws Exception {
+    storedRoute("HWD", null);
+    doReturn(request).when(requestFactory).route(eq("HWD"), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+
+    routeService.get("HWD", false, listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+    verify(listener, never()).onResult(any());
+  }
+
+  /**
+   * Has the store deliver <code>routes</code> to whoever asks for every route.
+   */
+  private void storedRoutes(final List<Route> routes) {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<com.bt4vt.external.bt4u.Response.Listener<List<Route>>>getArgument(0)
+            .onResult(routes);
+        return null;
+      }
+    }).when(offlineStoreService).getRoutes(any(com.bt4vt.external.bt4u.Response.Listener.class));
+  }
+
+  /**
+   * Has the store deliver <code>route</code> to whoever asks for <code>shortName</code>.
+   */
+  private void storedRoute(String shortName, final Route route) {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<com.bt4vt.external.bt4u.Response.Listener<Route>>getArgument(1)
+            .onResult(route);
+        return null;
+      }
+    }).when(offlineStoreService).getRoute(eq(shortName),
+        any(com.bt4vt.external.bt4u.Response.Listener.class));
   }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local stand-in for BT4U serving canned bodies, counting what it sends. Requests are performed
+ * the way Volley's network dispatcher would, without a Volley cache unless one is set.
+ *
+ * @author Ben Sechrist
+ */
+class StandInServer {
+
+  private final HttpServer server;
+
+  private final Map<String, byte[]> bodies = new HashMap<>();
+
+  private final Map<String, String> etags = new HashMap<>();
+
+  private final List<String> requestedPaths = new ArrayList<>();
+
+  private int bytesSent;
+
+  private Cache cache;
+
+  StandInServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleExchange(exchange);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Serves <code>body</code> at <code>path</code>, along with <code>etag</code> if not null.
+   */
+  synchronized void serve(String path, String body, String etag) throws IOException {
+    bodies.put(path, body.getBytes("UTF-8"));
+    etags.put(path, etag);
+  }
+
+  synchronized void serve(String path, String body) throws IOException {
+    serve(path, body, null);
+  }
+
+  /**
+   * Makes <code>path</code> answer 404 again.
+   */
+  synchronized void remove(String path) {
+    bodies.remove(path);
+    etags.remove(path);
+  }
+
+  /**
+   * Has requests that should be cached go through <code>cache</code> like Volley's dispatchers
+   * would. Fresh copies are answered from it without going to the network, a 304 is answered with
+   * the body it holds and downloaded bodies are put in it.
+   */
+  void setCache(Cache cache) {
+    this.cache = cache;
+  }
+
+  String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  synchronized int getBytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * Returns the path, with its query, of every request received so far, and forgets them.
+   */
+  synchronized List<String> takeRequestedPaths() {
+    List<String> paths = new ArrayList<>(requestedPaths);
+    requestedPaths.clear();
+    return paths;
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  /**
+   * Performs <code>request</code> against this server and parses the response, without
+   * delivering it.
+   */
+  <T> Response<T> fetch(Request<T> request) throws Exception {
+    RequestFactory.BT4VTRequest<T> bt4vtRequest = (RequestFactory.BT4VTRequest<T>) request;
+    Cache.Entry entry = cache != null && request.shouldCache()
+        ? cache.get(request.getCacheKey()) : null;
+    if (entry != null && !entry.isExpired()) {
+      request.addMarker("cache-hit");
+      return bt4vtRequest.parseNetworkResponse(new NetworkResponse(entry.data,
+          entry.responseHeaders));
+    }
+    HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+    try {
+      for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+        if (header.getKey() != null && header.getValue() != null) {
+          connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+      }
+      int status = connection.getResponseCode();
+      Map<String, String> headers = new HashMap<>();
+      if (connection.getHeaderField("ETag") != null) {
+        headers.put("ETag", connection.getHeaderField("ETag"));
+      }
+      headers.put("Content-Type", connection.getHeaderField("Content-Type"));
+      byte[] data = null;
+      if (status == HttpURLConnection.HTTP_OK) {
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+        data = out.toByteArray();
+      } else if (status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+        return Response.error(new com.android.volley.ServerError(
+            new NetworkResponse(status, null, headers, false)));
+      }
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+        data = entry.data;
+      }
+      NetworkResponse response = new NetworkResponse(status, data, headers,
+          status == HttpURLConnection.HTTP_NOT_MODIFIED);
+      Response<T> parsed = bt4vtRequest.parseNetworkResponse(response);
+      if (cache != null && request.shouldCache() && parsed.isSuccess()
+          && parsed.cacheEntry != null) {
+        cache.put(request.getCacheKey(), parsed.cacheEntry);
+      }
+      return parsed;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Performs <code>request</code> against this server and delivers the result to its listeners.
+   */
+  <T> void deliver(Request<T> request) throws Exception {
+    Response<T> response = fetch(request);
+    if (response.isSuccess()) {
+      ((RequestFactory.BT4VTRequest<T>) request).deliverResponse(response.result);
+    } else {
+      request.deliverError(response.error);
+    }
+  }
+
+  private synchronized void handleExchange(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getRawPath().substring(1);
+    if (exchange.getRequestURI().getRawQuery() != null) {
+      path += "?" + exchange.getRequestURI().getRawQuery();
+    }
+    requestedPaths.add(path);
+    byte[] body = bodies.get(path);
+    String etag = etags.get(path);
+    if (body == null) {
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+    } else {
+      if (etag != null) {
+        exchange.getResponseHeaders().set("ETag", etag);
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+      } else {
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        bytesSent += body.length;
+      }
+    }
+    exchange.close();
+  }
+}
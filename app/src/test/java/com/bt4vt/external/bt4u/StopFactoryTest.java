@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.external.bt4u;
+
+import com.bt4vt.model.FavoriteStop;
+import com.bt4vt.service.FavoriteStopService;
+import com.google.gson.stream.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link StopFactory}.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class StopFactoryTest {
+
+  @Spy
+  private FavoriteStopService favoriteStopService;
+
+  @InjectMocks
+  private StopFactory stopFactory;
+
+  @Before
+  public void stubFavorites() {
+    stopFactory.entityRegistry = new EntityRegistry();
+    FavoriteStop favoriteStop = mock(FavoriteStop.class);
+    doReturn("1114").when(favoriteStop).getCode();
+    doReturn(Collections.singletonList(favoriteStop)).when(favoriteStopService)
+        .getFavoriteStops();
+  }
+
+  @Test
+  public void testStreamingMatchesJsonTree() throws Exception {
+    List<Stop> expected = JsonTrees.stops(stopFactory,
+        new JSONArray(Fixtures.load("stops.json")));
+    List<Stop> actual = stopFactory.stops(Fixtures.reader("stops.json"));
+
+    assertEquals(4, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertStopEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  @Test
+  public void testStreamingSingleStop() throws Exception {
+    String json = new JSONArray(Fixtures.load("stops.json")).getJSONObject(1).toString();
+    Stop expected = JsonTrees.stop(stopFactory, new JSONObject(json));
+    Stop actual = stopFactory.stop(new JsonReader(new StringReader(json)));
+
+    assertStopEquals(expected, actual);
+    assertTrue(actual.isFavorited());
+  }
+
+  @Test
+  public void testStreamingSkipsUnknownFields() throws Exception {
+    Stop stop = stopFactory.stops(Fixtures.reader("stops.json")).get(3);
+
+    assertEquals("2010", stop.getCode());
+    assertFalse(stop.isFavorited());
+  }
+
+  @Test(expected = IOException.class)
+  public void testStreamingRequiresPosition() throws Exception {
+    stopFactory.stop(new JsonReader(new StringReader(
+        "{\"code\":\"1114\",\"name\":\"Stop\",\"latitude\":37.2}")));
+  }
+
+  @Test
+  public void testBuildingStopsDoesNotQueryFavoritesPerStop() throws Exception {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append(String.format("{\"code\":\"%d\",\"name\":\"Stop %d\","
+          + "\"latitude\":37.2,\"longitude\":-80.4}", 1000 + i, i));
+    }
+    json.append(']');
+
+    List<Stop> stops = stopFactory.stops(new JsonReader(new StringReader(json.toString())));
+    stops.addAll(JsonTrees.stops(stopFactory, new JSONArray(json.toString())));
+
+    assertEquals(2000, stops.size());
+    assertTrue(stops.get(114).isFavorited());
+    assertTrue(stops.get(1114).isFavorited());
+    // Favorites are read from the database once, not once per stop
+    verify(favoriteStopService, times(1)).getFavoriteStops();
+  }
+
+  static void assertStopEquals(Stop expected, Stop actual) {
+    assertEquals(expected.getCode(), actual.getCode());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getLatLng().latitude, actual.getLatLng().latitude, 0);
+    assertEquals(expected.getLatLng().longitude, actual.getLatLng().longitude, 0);
+    assertEquals(expected.isFavorited(), actual.isFavorited());
+  }
+}
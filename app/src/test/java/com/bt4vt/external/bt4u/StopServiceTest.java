@@ -16,18 +16,36 @@
 
 package com.bt4vt.external.bt4u;
 
+import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.toolbox.JsonArrayRequest;
+import com.bt4vt.service.FavoriteStopService;
+import com.bt4vt.service.OfflineStoreService;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -45,13 +63,22 @@ public class StopServiceTest {
   private RequestService requestService;
 
   @Mock
-  private StopFactory stopFactory;
+  private RequestFactory requestFactory;
 
   @Mock
-  private RequestFactory requestFactory;
+  private ParsedObjectCache parsedObjectCache;
+
+  @Mock
+  private FavoriteStopService favoriteStopService;
+
+  @Mock
+  private OfflineStoreService offlineStoreService;
 
   @Mock
-  private JsonArrayRequest jsonArrayRequest;
+  private CatalogSyncService catalogSyncService;
+
+  @Mock
+  private RequestFactory.BT4VTRequest request;
 
   @Mock
   private com.bt4vt.external.bt4u.Response.Listener listener;
@@ -69,13 +96,137 @@ public class StopServiceTest {
 
   @Test
   public void testGetAll() throws Exception {
-    doReturn(jsonArrayRequest).when(requestFactory).stops(any(Response.Listener.class),
+    storedStops(Collections.<Stop>emptyList());
+    doReturn(request).when(requestFactory).stops(any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+
+    stopService.getAll(listener, exceptionListener);
+
+    verify(requestFactory, times(1)).stops(any(Response.Listener.class),
         any(Response.ErrorListener.class));
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+  }
+
+  @Test
+  public void testGetAllRefreshesFavoritesOfCachedStops() throws Exception {
+    Stop favorite = new Stop("1114");
+    Stop other = new Stop("1101");
+    doReturn(Arrays.asList(favorite, other)).when(parsedObjectCache).get("stops");
+    doReturn(true).when(favoriteStopService).isFavorited("1114");
 
     stopService.getAll(listener, exceptionListener);
 
+    ArgumentCaptor<List> result = ArgumentCaptor.forClass(List.class);
+    verify(listener, times(1)).onResult(result.capture());
+    assertTrue(((Stop) result.getValue().get(0)).isFavorited());
+    // The cached stops are shared, only the one that changed is copied
+    assertFalse(favorite.isFavorited());
+    assertSame(other, result.getValue().get(1));
+    verify(requestFactory, never()).stops(any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+  }
+
+  @Test
+  public void testGetManyMakesOneRequest() throws Exception {
+    storedStops(Collections.<Stop>emptyList());
+    ArgumentCaptor<Response.Listener> responseListener =
+        ArgumentCaptor.forClass(Response.Listener.class);
+    doReturn(request).when(requestFactory).stops(responseListener.capture(),
+        any(Response.ErrorListener.class));
+    List<String> codes = new ArrayList<>();
+    List<Stop> stops = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      stops.add(new Stop(String.valueOf(i)));
+      if (i % 2 == 1) {
+        codes.add(String.valueOf(i));
+      }
+    }
+    codes.add("unknown");
+
+    stopService.getMany(codes, listener, exceptionListener);
+    responseListener.getValue().onResponse(stops);
+
     verify(requestFactory, times(1)).stops(any(Response.Listener.class),
         any(Response.ErrorListener.class));
-    verify(requestService, times(1)).addToRequestQueue(jsonArrayRequest);
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+    ArgumentCaptor<List> result = ArgumentCaptor.forClass(List.class);
+    verify(listener, times(1)).onResult(result.capture());
+    assertEquals(30, result.getValue().size());
+    assertEquals(new Stop("1"), result.getValue().get(0));
+    assertEquals(new Stop("59"), result.getValue().get(29));
+  }
+
+  @Test
+  public void testGetManyWithoutCodes() throws Exception {
+    stopService.getMany(Collections.<String>emptyList(), listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(Collections.emptyList());
+    verify(requestFactory, never()).stops(any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+  }
+
+  @Test
+  public void testGetAllServesStoredStopsAndSyncs() throws Exception {
+    List<Stop> stored = Collections.singletonList(new Stop("1114"));
+    storedStops(stored);
+
+    stopService.getAll(listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(stored);
+    verify(catalogSyncService, times(1)).sync();
+    verify(requestFactory, never()).stops(any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+  }
+
+  @Test
+  public void testGetServesStoredStop() throws Exception {
+    Stop stored = new Stop("1114");
+    storedStop("1114", stored);
+
+    stopService.get("1114", listener, exceptionListener);
+
+    verify(listener, times(1)).onResult(stored);
+    verify(requestFactory, never()).stop(anyString(), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+  }
+
+  @Test
+  public void testGetFetchesStopMissingFromStore() throws Exception {
+    storedStop("1114", null);
+    doReturn(request).when(requestFactory).stop(eq("1114"), any(Response.Listener.class),
+        any(Response.ErrorListener.class));
+
+    stopService.get("1114", listener, exceptionListener);
+
+    verify(requestService, times(1)).addToRequestQueue(request, null);
+  }
+
+  /**
+   * Has the store deliver <code>stops</code> to whoever asks for every stop.
+   */
+  private void storedStops(final List<Stop> stops) {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<com.bt4vt.external.bt4u.Response.Listener<List<Stop>>>getArgument(0)
+            .onResult(stops);
+        return null;
+      }
+    }).when(offlineStoreService).getStops(any(com.bt4vt.external.bt4u.Response.Listener.class));
+  }
+
+  /**
+   * Has the store deliver <code>stop</code> to whoever asks for <code>code</code>.
+   */
+  private void storedStop(String code, final Stop stop) {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<com.bt4vt.external.bt4u.Response.Listener<Stop>>getArgument(1)
+            .onResult(stop);
+        return null;
+      }
+    }).when(offlineStoreService).getStop(eq(code),
+        any(com.bt4vt.external.bt4u.Response.Listener.class));
   }
 }
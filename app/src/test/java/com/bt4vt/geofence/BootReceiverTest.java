@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.geofence;
+
+import com.bt4vt.external.bt4u.Response;
+import com.bt4vt.external.bt4u.Stop;
+import com.bt4vt.external.bt4u.StopService;
+import com.bt4vt.model.FavoriteStop;
+import com.bt4vt.service.FavoriteStopService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link BootReceiver}.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BootReceiverTest {
+
+  @Mock
+  private FavoriteStopService favoriteStopService;
+
+  @Mock
+  private StopService stopService;
+
+  @Mock
+  private BusStopGeofenceService busStopGeofenceService;
+
+  @InjectMocks
+  private BootReceiver bootReceiver;
+
+  @Test
+  public void testRestoresAllFavoritesInOneBatch() {
+    List<FavoriteStop> favoriteStops = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      FavoriteStop favoriteStop = mock(FavoriteStop.class);
+      doReturn(String.valueOf(i)).when(favoriteStop).getCode();
+      favoriteStops.add(favoriteStop);
+    }
+    doReturn(favoriteStops).when(favoriteStopService).getFavoriteStops();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        List<Stop> stops = new ArrayList<>();
+        for (String code : invocation.<Collection<String>>getArgument(0)) {
+          stops.add(new Stop(code));
+        }
+        invocation.<Response.Listener<List<Stop>>>getArgument(1).onResult(stops);
+        return null;
+      }
+    }).when(stopService).getMany(any(Collection.class), any(Response.Listener.class),
+        any(Response.ExceptionListener.class));
+
+    bootReceiver.restoreGeofences();
+
+    verify(stopService, times(1)).getMany(any(Collection.class), any(Response.Listener.class),
+        any(Response.ExceptionListener.class));
+    verify(stopService, never()).get(anyString(), any(Response.Listener.class),
+        any(Response.ExceptionListener.class));
+    ArgumentCaptor<List> registered = ArgumentCaptor.forClass(List.class);
+    verify(busStopGeofenceService, times(1)).registerGeofences(registered.capture());
+    verify(busStopGeofenceService, never()).registerGeofence(any(Stop.class));
+    assertEquals(30, registered.getValue().size());
+  }
+}
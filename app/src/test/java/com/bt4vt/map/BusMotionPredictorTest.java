@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Bus;
+import com.bt4vt.external.bt4u.Route;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link BusMotionPredictor}.
+ *
+ * @author Ben Sechrist
+ */
+public class BusMotionPredictorTest {
+
+  private static final double LAT = 37.2304516;
+  private static final double LNG = -80.4294548;
+
+  // Meters per degree of latitude
+  private static final double DEGREE = 111320;
+
+  private final BusMotionPredictor predictor = new BusMotionPredictor();
+
+  private final double[] position = new double[2];
+
+  @Test
+  public void testFirstFixStaysPut() throws Exception {
+    assertTrue(predictor.onFix(bus(LAT, LNG, 0, 1000), 500));
+
+    assertFalse(predictor.predict("1", 5500, position));
+    assertEquals(LAT, position[0], 0);
+    assertEquals(LNG, position[1], 0);
+  }
+
+  @Test
+  public void testUnknownBus() throws Exception {
+    assertFalse(predictor.predict("1", 0, position));
+  }
+
+  @Test
+  public void testExtrapolatesAlongDirection() throws Exception {
+    // 100 m north in 10 s, heading north at 10 m/s
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 12000);
+
+    assertTrue(predictor.predict("1", 12000, position));
+    assertEquals(LAT + 100 / DEGREE, position[0], 1e-9);
+    assertTrue(predictor.predict("1", 17000, position));
+    assertEquals(LAT + 150 / DEGREE, position[0], 1e-7);
+    assertEquals(LNG, position[1], 1e-9);
+  }
+
+  @Test
+  public void testExtrapolatesEastScaledByLatitude() throws Exception {
+    double lngDegree = DEGREE * Math.cos(Math.toRadians(LAT));
+    predictor.onFix(bus(LAT, LNG, 90, 0), 0);
+    predictor.onFix(bus(LAT, LNG + 50 / lngDegree, 90, 10000), 10000);
+
+    predictor.predict("1", 20000, position);
+    assertEquals(LAT, position[0], 1e-9);
+    assertEquals(LNG + 100 / lngDegree, position[1], 1e-7);
+  }
+
+  @Test
+  public void testStopsAtHorizon() throws Exception {
+    Route route = new Route("HWD");
+    route.setPlot(RoutePlotBenchmarkTest.plot(new double[][]{
+        {LAT, LNG}, {LAT + 1000 / DEGREE, LNG}}));
+    predictor.onFix(bus(route, LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(route, LAT + 100 / DEGREE, LNG, 0, 10000), 10000);
+
+    long horizon = 10000 + BusMotionPredictor.MAX_EXTRAPOLATION_MS;
+    assertFalse(predictor.predict("1", horizon + 60000, position));
+    double last = position[0];
+    predictor.predict("1", horizon, position);
+    assertEquals(last, position[0], 0);
+    assertEquals(LAT + 300 / DEGREE, last, 1e-5);
+  }
+
+  @Test
+  public void testCapsStraightLineDistance() throws Exception {
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 10000);
+
+    assertTrue(predictor.predict("1", 19000, position));
+    assertEquals(LAT + (100 + BusMotionPredictor.MAX_STRAIGHT_LINE_METERS) / DEGREE,
+        position[0], 1e-7);
+  }
+
+  @Test
+  public void testFollowsRouteAroundCorner() throws Exception {
+    // 100 m north, then east
+    double lngDegree = DEGREE * Math.cos(Math.toRadians(LAT));
+    Route route = new Route("HWD");
+    route.setPlot(RoutePlotBenchmarkTest.plot(new double[][]{
+        {LAT, LNG}, {LAT + 100 / DEGREE, LNG}, {LAT + 100 / DEGREE, LNG + 200 / lngDegree}}));
+    predictor.onFix(bus(route, LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(route, LAT + 50 / DEGREE, LNG, 0, 5000), 5000);
+
+    // 100 m further at 10 m/s, around the corner rather than on north past it
+    assertTrue(predictor.predict("1", 15000, position));
+    assertEquals(LAT + 100 / DEGREE, position[0], 2e-5);
+    assertEquals(LNG + 50 / lngDegree, position[1], 2e-5);
+  }
+
+  @Test
+  public void testKeepsOffsetOfFixFromRoute() throws Exception {
+    // 200 m north, with the bus reported 20 m east of it
+    double lngDegree = DEGREE * Math.cos(Math.toRadians(LAT));
+    double lng = LNG + 20 / lngDegree;
+    Route route = new Route("HWD");
+    route.setPlot(RoutePlotBenchmarkTest.plot(new double[][]{
+        {LAT, LNG}, {LAT + 200 / DEGREE, LNG}}));
+    predictor.onFix(bus(route, LAT, lng, 0, 0), 0);
+    predictor.onFix(bus(route, LAT + 50 / DEGREE, lng, 0, 5000), 5000);
+
+    // Starts out at the fix rather than jumping onto the route
+    predictor.predict("1", 5000, position);
+    assertEquals(LAT + 50 / DEGREE, position[0], 1e-7);
+    assertEquals(lng, position[1], 1e-7);
+
+    assertTrue(predictor.predict("1", 10000, position));
+    assertEquals(LAT + 100 / DEGREE, position[0], 2e-5);
+    assertEquals(lng, position[1], 1e-7);
+  }
+
+  @Test
+  public void testRepeatedFixKeepsMoving() throws Exception {
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 10000);
+
+    assertFalse(predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 15000));
+    predictor.predict("1", 15000, position);
+    assertEquals(LAT + 150 / DEGREE, position[0], 1e-7);
+  }
+
+  @Test
+  public void testNewFixSnapsBack() throws Exception {
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 10000);
+
+    // The bus stopped short of where it was predicted to be
+    assertTrue(predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 25000), 25000));
+    assertFalse(predictor.predict("1", 25000, position));
+    assertEquals(LAT + 100 / DEGREE, position[0], 0);
+  }
+
+  @Test
+  public void testClampsImplausibleSpeed() throws Exception {
+    // A 1 km jump in 1 s
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 1000 / DEGREE, LNG, 0, 1000), 1000);
+
+    predictor.predict("1", 2000, position);
+    assertEquals(LAT + (1000 + BusMotionPredictor.MAX_SPEED_MPS) / DEGREE, position[0], 1e-7);
+  }
+
+  @Test
+  public void testIgnoresSpeedAcrossLongGap() throws Exception {
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0,
+        BusMotionPredictor.MAX_FIX_INTERVAL_MS + 1), 70000);
+
+    assertFalse(predictor.predict("1", 75000, position));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    predictor.onFix(bus(LAT, LNG, 0, 0), 0);
+    predictor.onFix(bus(LAT + 100 / DEGREE, LNG, 0, 10000), 10000);
+    predictor.remove("1");
+
+    assertFalse(predictor.predict("1", 15000, position));
+    assertTrue(predictor.onFix(bus(LAT, LNG, 0, 10000), 15000));
+  }
+
+  private static Bus bus(double latitude, double longitude, int direction, long timestamp) {
+    return bus(null, latitude, longitude, direction, timestamp);
+  }
+
+  private static Bus bus(Route route, double latitude, double longitude, int direction,
+                         long timestamp) {
+    Bus bus = new Bus("1");
+    bus.setRoute(route);
+    bus.setPosition(latitude, longitude);
+    bus.setDirection(direction);
+    bus.setTimestamp(timestamp);
+    return bus;
+  }
+}
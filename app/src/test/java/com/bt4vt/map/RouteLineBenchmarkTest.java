@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks snapping a whole fleet of buses onto every route with {@link RouteLine}, which has to
+ * stay well within a frame, a millisecond or so, to run on every poll.
+ *
+ * @author Ben Sechrist
+ */
+@Category(Benchmark.class)
+public class RouteLineBenchmarkTest {
+
+  private static final int ROUTES = 20;
+
+  private static final int VERTICES = 2000;
+
+  private static final int BUSES = 40;
+
+  private static final int ITERATIONS = 500;
+
+  @Test
+  public void testProjectFleetOntoEveryRoute() throws Exception {
+    Random random = new Random(42);
+    RouteLine[] lines = new RouteLine[ROUTES];
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUTES; i++) {
+      lines[i] = loop(37.2296 + 0.01 * (i % 5 - 2), -80.4139 + 0.01 * (i / 5 - 2),
+          0.01 + 0.002 * i).getLine();
+    }
+    long buildUs = (System.nanoTime() - start) / 1000 / ROUTES;
+
+    // Half the buses on some route, the rest anywhere around town
+    double[][] buses = new double[BUSES][2];
+    for (int i = 0; i < BUSES; i++) {
+      if (i % 2 == 0) {
+        RouteLine line = lines[random.nextInt(ROUTES)];
+        line.locate(random.nextDouble() * line.getLength(), buses[i]);
+      } else {
+        buses[i][0] = 37.2296 + (random.nextDouble() - 0.5) * 0.1;
+        buses[i][1] = -80.4139 + (random.nextDouble() - 0.5) * 0.1;
+      }
+    }
+
+    // Warm up, then time
+    int onRoute = projectAll(lines, buses);
+    for (int i = 0; i < ITERATIONS; i++) {
+      projectAll(lines, buses);
+    }
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      projectAll(lines, buses);
+    }
+    long projectUs = (System.nanoTime() - start) / 1000 / ITERATIONS;
+
+    System.out.println(String.format(Locale.US,
+        "%d routes of %d vertices built in %d us each, %d buses projected onto all of them in"
+            + " %d us (%d on a route)", ROUTES, VERTICES, buildUs, BUSES, projectUs, onRoute));
+    assertTrue(onRoute >= BUSES / 2);
+  }
+
+  private static int projectAll(RouteLine[] lines, double[][] buses) {
+    int onRoute = 0;
+    for (RouteLine line : lines) {
+      for (double[] bus : buses) {
+        if (line.project(bus[0], bus[1]) != RouteLine.OFF_ROUTE) {
+          onRoute++;
+        }
+      }
+    }
+    return onRoute;
+  }
+
+  /**
+   * Returns a wiggly loop of {@link #VERTICES} points around the given center.
+   */
+  private static RoutePlot loop(double latitude, double longitude, double radius) {
+    double[][] points = new double[VERTICES][];
+    for (int i = 0; i < VERTICES; i++) {
+      double angle = 2 * Math.PI * i / VERTICES;
+      double wiggle = 0.00003 * Math.sin(i * 1.7);
+      points[i] = new double[]{
+          latitude + (radius + wiggle) * Math.sin(angle),
+          longitude + 1.4 * (radius + wiggle) * Math.cos(angle)};
+    }
+    return RoutePlotBenchmarkTest.plot(points);
+  }
+}
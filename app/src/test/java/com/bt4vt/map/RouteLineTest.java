@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Stop;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link RouteLine}.
+ *
+ * @author Ben Sechrist
+ */
+public class RouteLineTest {
+
+  private static final double LAT = 37.22;
+  private static final double LNG = -80.42;
+
+  // Meters per degree of latitude
+  private static final double DEGREE = 111320;
+
+  // 1 km due north, in 100 m steps
+  private final RouteLine line = RoutePlotBenchmarkTest.plot(north(11)).getLine();
+
+  @Test
+  public void testLength() throws Exception {
+    assertEquals(1000, line.getLength(), 1);
+    assertFalse(line.isLoop());
+  }
+
+  @Test
+  public void testProjectSnapsOntoRoute() throws Exception {
+    assertEquals(0, line.project(LAT, LNG), 1);
+    assertEquals(250, line.project(LAT + 250 / DEGREE, LNG + offset(50)), 1);
+    assertEquals(1000, line.project(LAT + 1050 / DEGREE, LNG), 1);
+  }
+
+  @Test
+  public void testProjectOffRoute() throws Exception {
+    assertEquals(RouteLine.OFF_ROUTE, line.project(LAT + 500 / DEGREE, LNG + offset(150)), 0);
+    assertEquals(RouteLine.OFF_ROUTE, line.project(LAT - 1, LNG), 0);
+  }
+
+  @Test
+  public void testProjectFollowsOutAndBackLegs() throws Exception {
+    // 1 km north and back down the same street
+    double[][] points = new double[21][];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = new double[]{LAT + (i <= 10 ? i : 20 - i) * 100 / DEGREE, LNG};
+    }
+    RouteLine outAndBack = RoutePlotBenchmarkTest.plot(points).getLine();
+    double latitude = LAT + 300 / DEGREE;
+
+    assertEquals(300, outAndBack.project(latitude, LNG), 1);
+    assertEquals(300, outAndBack.project(latitude, LNG, 250), 1);
+    assertEquals(1700, outAndBack.project(latitude, LNG, 1650), 1);
+    // A bit of jitter backwards keeps the bus on its leg
+    assertEquals(1700, outAndBack.project(latitude, LNG, 1720), 1);
+
+    Stop stop = new Stop("1114");
+    stop.setLatLng(new LatLng(latitude, LNG));
+    assertEquals(200, outAndBack.distanceTo(100, stop), 1);
+    assertEquals(200, outAndBack.distanceTo(1500, stop), 1);
+  }
+
+  @Test
+  public void testBetween() throws Exception {
+    assertEquals(300, line.between(200, 500), 0);
+    assertEquals(RouteLine.OFF_ROUTE, line.between(500, 200), 0);
+    assertEquals(RouteLine.OFF_ROUTE, line.between(RouteLine.OFF_ROUTE, 200), 0);
+  }
+
+  @Test
+  public void testBetweenWrapsAroundLoop() throws Exception {
+    RouteLine loop = RoutePlotBenchmarkTest.wigglyLoop(1000).getLine();
+    assertTrue(loop.isLoop());
+
+    double length = loop.getLength();
+    assertEquals(length - 400, loop.between(500, 100), 1e-9);
+  }
+
+  @Test
+  public void testDistanceTo() throws Exception {
+    Stop stop = new Stop("1114");
+    stop.setLatLng(new LatLng(LAT + 800 / DEGREE, LNG - offset(20)));
+
+    assertEquals(600, line.distanceTo(LAT + 200 / DEGREE, LNG, stop), 1);
+    assertEquals(RouteLine.OFF_ROUTE, line.distanceTo(LAT + 900 / DEGREE, LNG, stop), 0);
+  }
+
+  @Test
+  public void testLocate() throws Exception {
+    double[] position = new double[2];
+    line.locate(350, position);
+    assertEquals(LAT + 350 / DEGREE, position[0], 1e-5);
+    assertEquals(LNG, position[1], 1e-9);
+
+    line.locate(5000, position);
+    assertEquals(LAT + 1000 / DEGREE, position[0], 1e-5);
+  }
+
+  @Test
+  public void testLocateIsInverseOfProject() throws Exception {
+    RouteLine loop = RoutePlotBenchmarkTest.wigglyLoop(1000).getLine();
+    double[] position = new double[2];
+    for (double distance = 0; distance < loop.getLength(); distance += 777) {
+      loop.locate(distance, position);
+      assertEquals(distance, loop.project(position[0], position[1]), 0.01);
+    }
+  }
+
+  @Test
+  public void testLineIsBuiltOnce() throws Exception {
+    RoutePlot plot = RoutePlotBenchmarkTest.plot(north(3));
+    assertSame(plot.getLine(), plot.getLine());
+  }
+
+  /**
+   * Returns <code>points</code> points 100 m apart going north.
+   */
+  private static double[][] north(int points) {
+    double[][] line = new double[points][];
+    for (int i = 0; i < points; i++) {
+      line[i] = new double[]{LAT + i * 100 / DEGREE, LNG};
+    }
+    return line;
+  }
+
+  /**
+   * Returns <code>meters</code> east, in degrees of longitude.
+   */
+  private static double offset(double meters) {
+    return meters / (DEGREE * Math.cos(Math.toRadians(LAT)));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks the levels of detail of a long {@link RoutePlot}: vertices drawn and the time taken
+ * to build them for the map at each zoom.
+ * <p/>
+ * Building the {@link com.google.android.gms.maps.model.LatLng} list, which the map then copies
+ * and tessellates, scales with the vertex count, so it stands in for the render time that can
+ * only be measured on a device.
+ *
+ * @author Ben Sechrist
+ */
+@Category(Benchmark.class)
+public class RoutePlotBenchmarkTest {
+
+  private static final int VERTICES = 5000;
+
+  private static final int ITERATIONS = 200;
+
+  @Test
+  public void testVerticesAndBuildTimePerZoom() throws Exception {
+    RoutePlot plot = wigglyLoop(VERTICES);
+    long start = System.nanoTime();
+    plot.prepareLevels();
+    long prepareUs = (System.nanoTime() - start) / 1000;
+
+    System.out.println(String.format(Locale.US, "Levels prepared in %d us", prepareUs));
+    System.out.println("zoom  vertices  build us");
+    int previous = 0;
+    for (int zoom = 10; zoom <= 17; zoom++) {
+      RoutePlot level = plot.forZoom(zoom);
+      // Warm up, then time
+      for (int i = 0; i < ITERATIONS; i++) {
+        level.toLatLngs();
+      }
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        level.toLatLngs();
+      }
+      long buildUs = (System.nanoTime() - start) / 1000 / ITERATIONS;
+      System.out.println(String.format(Locale.US, "%4d  %8d  %8d", zoom, level.size(), buildUs));
+
+      assertTrue(level.size() >= previous);
+      previous = level.size();
+    }
+    assertEquals(VERTICES, plot.forZoom(17).size());
+    // The default zoom draws a fraction of the vertices
+    assertTrue(plot.forZoom(13).size() * 4 < VERTICES);
+  }
+
+  /**
+   * Returns a plot through <code>points</code>, given as latitude and longitude pairs.
+   */
+  static RoutePlot plot(double[][] points) {
+    StringBuilder encoded = new StringBuilder();
+    int previousLatitude = 0;
+    int previousLongitude = 0;
+    for (double[] point : points) {
+      int latitude = (int) Math.round(point[0] * 1e5);
+      int longitude = (int) Math.round(point[1] * 1e5);
+      encodeValue(latitude - previousLatitude, encoded);
+      encodeValue(longitude - previousLongitude, encoded);
+      previousLatitude = latitude;
+      previousLongitude = longitude;
+    }
+    return RoutePlot.decode(encoded.toString());
+  }
+
+  /**
+   * Returns a roughly 6km wide loop around Blacksburg of <code>vertices</code> points, wiggling by
+   * a few meters like a traced route does.
+   */
+  static RoutePlot wigglyLoop(int vertices) {
+    double[][] points = new double[vertices][];
+    for (int i = 0; i < vertices; i++) {
+      double angle = 2 * Math.PI * i / vertices;
+      double wiggle = 0.00003 * Math.sin(i * 1.7);
+      points[i] = new double[]{
+          37.2296 + (0.025 + wiggle) * Math.sin(angle),
+          -80.4139 + (0.035 + wiggle) * Math.cos(angle)};
+    }
+    return plot(points);
+  }
+
+  private static void encodeValue(int value, StringBuilder encoded) {
+    value = value < 0 ? ~(value << 1) : (value << 1);
+    while (value >= 0x20) {
+      encoded.append((char) ((0x20 | (value & 0x1f)) + 63));
+      value >>= 5;
+    }
+    encoded.append((char) (value + 63));
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+
+/**
+ * Tests the {@link RoutePlotCache}.
+ *
+ * @author Ben Sechrist
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RoutePlotCacheTest {
+
+  private static final String ENCODED = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+
+  private static final String OTHER_ENCODED = "_p~iF~ps|U";
+
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  @Mock
+  private Context context;
+
+  @Before
+  public void setUp() {
+    doReturn(context).when(context).getApplicationContext();
+    doReturn(cacheDir.getRoot()).when(context).getCacheDir();
+  }
+
+  @Test
+  public void testReselectionSkipsDecoding() throws Exception {
+    RoutePlotCache cache = new RoutePlotCache(context);
+
+    RoutePlot first = cache.get("HWD", ENCODED);
+    RoutePlot second = cache.get("HWD", ENCODED);
+
+    assertSame(first, second);
+    assertEquals(1, cache.getDecodeCount());
+  }
+
+  @Test
+  public void testColdStartReadsFromDisk() throws Exception {
+    RoutePlot decoded = new RoutePlotCache(context).get("HWD", ENCODED);
+
+    RoutePlotCache restarted = new RoutePlotCache(context);
+    assertEquals(decoded, restarted.get("HWD", ENCODED));
+    assertEquals(0, restarted.getDecodeCount());
+  }
+
+  @Test
+  public void testChangedPlotReplacesFile() throws Exception {
+    RoutePlotCache cache = new RoutePlotCache(context);
+    cache.get("HWD", ENCODED);
+    cache.get("UCB", ENCODED);
+
+    RoutePlot changed = cache.get("HWD", OTHER_ENCODED);
+
+    assertEquals(1, changed.size());
+    assertEquals(3, cache.getDecodeCount());
+    File[] files = new File(cacheDir.getRoot(), RoutePlotCache.DIRECTORY).listFiles();
+    assertEquals(2, files.length);
+  }
+
+  @Test
+  public void testConcurrentSelectionsDecodeOnce() throws Exception {
+    final RoutePlotCache cache = new RoutePlotCache(context);
+    final RoutePlot[] plots = new RoutePlot[8];
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[plots.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          plots[index] = cache.get(index % 2 == 0 ? "HWD" : "UCB", ENCODED);
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(2, cache.getDecodeCount());
+    for (int i = 2; i < plots.length; i++) {
+      assertSame(plots[i % 2], plots[i]);
+    }
+    assertEquals(2, new File(cacheDir.getRoot(), RoutePlotCache.DIRECTORY).listFiles().length);
+  }
+
+  @Test
+  public void testCorruptFileIsDecodedAgain() throws Exception {
+    new RoutePlotCache(context).get("HWD", ENCODED);
+    File[] files = new File(cacheDir.getRoot(), RoutePlotCache.DIRECTORY).listFiles();
+    assertTrue(files[0].delete() && files[0].createNewFile());
+
+    RoutePlotCache restarted = new RoutePlotCache(context);
+    assertEquals(3, restarted.get("HWD", ENCODED).size());
+    assertEquals(1, restarted.getDecodeCount());
+  }
+}
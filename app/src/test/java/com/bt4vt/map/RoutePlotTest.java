@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link RoutePlot}.
+ *
+ * @author Ben Sechrist
+ */
+public class RoutePlotTest {
+
+  // The example from the encoded polyline format documentation
+  private static final String ENCODED = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+
+  @Test
+  public void testDecode() throws Exception {
+    RoutePlot plot = RoutePlot.decode(ENCODED);
+
+    assertEquals(3, plot.size());
+    assertEquals(38.5, plot.getLatitude(0), 0);
+    assertEquals(-120.2, plot.getLongitude(0), 0);
+    assertEquals(40.7, plot.getLatitude(1), 0);
+    assertEquals(-120.95, plot.getLongitude(1), 0);
+    assertEquals(43.252, plot.getLatitude(2), 0);
+    assertEquals(-126.453, plot.getLongitude(2), 0);
+  }
+
+  @Test
+  public void testEncodeIsLossless() throws Exception {
+    assertEquals(ENCODED, RoutePlot.decode(ENCODED).encode());
+  }
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception {
+    RoutePlot plot = RoutePlot.decode(ENCODED);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    plot.writeTo(new DataOutputStream(bytes));
+
+    // A count and two ints per point
+    assertEquals(4 + 3 * 8, bytes.size());
+    RoutePlot read = RoutePlot.readFrom(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(plot, read);
+  }
+
+  @Test
+  public void testDecodeEmpty() throws Exception {
+    assertEquals(0, RoutePlot.decode("").size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeTruncated() throws Exception {
+    RoutePlot.decode(ENCODED.substring(0, ENCODED.length() - 1));
+  }
+
+  @Test
+  public void testStraightLineSimplifiesToEndpoints() throws Exception {
+    RoutePlot line = RoutePlotBenchmarkTest.plot(new double[][]{
+        {37.20, -80.40}, {37.21, -80.41}, {37.22, -80.42}, {37.23, -80.43}});
+
+    RoutePlot simplified = line.simplify(1);
+
+    assertEquals(2, simplified.size());
+    assertEquals(37.20, simplified.getLatitude(0), 0);
+    assertEquals(37.23, simplified.getLatitude(1), 0);
+  }
+
+  @Test
+  public void testSimplifyKeepsPointsBeyondTolerance() throws Exception {
+    RoutePlot corner = RoutePlotBenchmarkTest.plot(new double[][]{
+        {37.20, -80.40}, {37.20001, -80.41}, {37.20, -80.42}, {37.25, -80.42}});
+
+    // The 1e-5 degree bump is dropped, the corner is not
+    RoutePlot simplified = corner.simplify(2);
+
+    assertEquals(3, simplified.size());
+    assertEquals(37.20, simplified.getLatitude(1), 0);
+    assertEquals(-80.42, simplified.getLongitude(1), 0);
+  }
+
+  @Test
+  public void testLevelsOfDetail() throws Exception {
+    RoutePlot plot = RoutePlotBenchmarkTest.wigglyLoop(2000);
+
+    assertSame(plot, plot.forZoom(16));
+    assertSame(plot.forZoom(10), plot.forZoom(11));
+    assertTrue(plot.forZoom(11).size() <= plot.forZoom(13).size());
+    assertTrue(plot.forZoom(13).size() <= plot.forZoom(15).size());
+    assertTrue(plot.forZoom(15).size() < plot.size());
+    // Levels are only simplified once
+    assertSame(plot.forZoom(13), plot.forZoom(12.5f));
+    assertSame(plot.forZoom(13), plot.forZoom(13).forZoom(17));
+  }
+}
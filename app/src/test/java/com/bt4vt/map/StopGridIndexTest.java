@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Ben Sechrist
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bt4vt.map;
+
+import com.bt4vt.external.bt4u.Stop;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link StopGridIndex}.
+ *
+ * @author Ben Sechrist
+ */
+public class StopGridIndexTest {
+
+  @Test
+  public void testQueryMatchesLinearScan() {
+    Random random = new Random(42);
+    List<Stop> stops = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      Stop stop = new Stop(String.valueOf(i));
+      stop.setLatLng(new LatLng(37.15 + random.nextDouble() * 0.15,
+          -80.5 + random.nextDouble() * 0.15));
+      stops.add(stop);
+    }
+    StopGridIndex index = new StopGridIndex(stops);
+    assertEquals(1000, index.size());
+
+    double south = 37.21;
+    double west = -80.44;
+    double north = 37.24;
+    double east = -80.40;
+    Set<Stop> found = new HashSet<>(index.query(south, west, north, east));
+    for (Stop stop : stops) {
+      LatLng latLng = stop.getLatLng();
+      boolean inside = latLng.latitude >= south && latLng.latitude <= north
+          && latLng.longitude >= west && latLng.longitude <= east;
+      if (inside) {
+        assertTrue(stop.getCode(), found.contains(stop));
+      }
+    }
+    // Only stops from overlapping cells are returned
+    double slack = StopGridIndex.CELL_SIZE_DEGREES;
+    for (Stop stop : found) {
+      LatLng latLng = stop.getLatLng();
+      assertTrue(latLng.latitude >= south - slack && latLng.latitude <= north + slack);
+      assertTrue(latLng.longitude >= west - slack && latLng.longitude <= east + slack);
+    }
+  }
+
+  @Test
+  public void testQueryCoveringEverything() {
+    List<Stop> stops = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      Stop stop = new Stop(String.valueOf(i));
+      stop.setLatLng(new LatLng(37.2 + i * 0.01, -80.4 - i * 0.01));
+      stops.add(stop);
+    }
+    StopGridIndex index = new StopGridIndex(stops);
+    assertEquals(10, index.query(-90, -180, 90, 180).size());
+    assertEquals(0, index.query(0, 0, 1, 1).size());
+  }
+}